@@ -0,0 +1,602 @@
+/* JNI methods added to the posix package since libposix.so was built.
+   They are loaded from a second library, libposixext.so, by
+   LoadLibrary.loadPosix.  Build it with the Makefile in this directory.
+
+   Conventions are those of libposix: an int method returns
+   errno|0x80000000 on failure, a long method returns -errno.
+ */
+#include <jni.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <signal.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#include <sys/ipc.h>
+#include <sys/mman.h>
+#include <sys/msg.h>
+#include <sys/sem.h>
+#include <sys/shm.h>
+#include <sys/signalfd.h>
+#include <sys/stat.h>
+#include <sys/syscall.h>
+#include <ucontext.h>
+#include <pthread.h>
+#include <dlfcn.h>
+#include <link.h>
+
+#define ERR(e)	((jint)((e) | 0x80000000))
+#define PTR(a)	((void *)(intptr_t)(a))
+
+/* Message buffer in msgsnd format. */
+struct msgbuf_t {
+  long mtype;
+  char mtext[1];
+};
+
+static msgbuf_t *newmsg(size_t len) {
+  return (msgbuf_t *)malloc(sizeof (long) + (len ? len : 1));
+}
+
+extern "C" {
+
+/* CPtr */
+
+JNIEXPORT jobject JNICALL
+Java_posix_CPtr_newBuffer(JNIEnv *env,jclass,jlong addr,jint size) {
+  return env->NewDirectByteBuffer(PTR(addr),size);
+}
+
+/* The JNI accessors of libposix.so, bound under private names so that
+   the public accessors can choose a backend.  JNI_OnLoad finds them in
+   the copy of libposix.so that LoadLibrary loaded first. */
+static struct {
+  jbyte (*getByte)(JNIEnv *,jobject,jint);
+  void (*setByte)(JNIEnv *,jobject,jint,jbyte);
+  jshort (*getShort)(JNIEnv *,jobject,jint);
+  void (*setShort)(JNIEnv *,jobject,jint,jshort);
+  jint (*getInt)(JNIEnv *,jobject,jint);
+  void (*setInt)(JNIEnv *,jobject,jint,jint);
+  jshort (*getCShort)(JNIEnv *,jobject,jint,jint);
+  void (*setCShort)(JNIEnv *,jobject,jint,jint,jshort);
+  jint (*getCInt)(JNIEnv *,jobject,jint,jint);
+  void (*setCInt)(JNIEnv *,jobject,jint,jint,jint);
+} posix;
+
+static const char *accessorNames[] = {
+  "Java_posix_CPtr_getByte", "Java_posix_CPtr_setByte",
+  "Java_posix_CPtr_getShort", "Java_posix_CPtr_setShort",
+  "Java_posix_CPtr_getInt", "Java_posix_CPtr_setInt",
+  "Java_posix_CPtr_getCShort", "Java_posix_CPtr_setCShort",
+  "Java_posix_CPtr_getCInt", "Java_posix_CPtr_setCInt"
+};
+
+/* Look for the accessors in one loaded object.  Returns 1 to stop. */
+static int findAccessors(struct dl_phdr_info *info,size_t,void *) {
+  void *h = dlopen(info->dlpi_name,RTLD_LAZY|RTLD_NOLOAD);
+  if (h == 0) return 0;
+  void *f[10];
+  for (int i = 0; i < 10; ++i)
+    if ((f[i] = dlsym(h,accessorNames[i])) == 0) {
+      dlclose(h);
+      return 0;
+    }
+  memcpy(&posix,f,sizeof posix);
+  return 1;
+}
+
+JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM *,void *) {
+  dl_iterate_phdr(findAccessors,0);
+  return JNI_VERSION_1_6;
+}
+
+/* Throw if libposix.so was not found; the accessors are then null. */
+static bool unbound(JNIEnv *env) {
+  if (posix.getByte != 0) return false;
+  jclass c = env->FindClass("java/lang/UnsatisfiedLinkError");
+  if (c != 0) env->ThrowNew(c,"CPtr accessors: libposix.so not loaded");
+  return true;
+}
+
+JNIEXPORT jbyte JNICALL
+Java_posix_CPtr_getByte0(JNIEnv *env,jobject self,jint off) {
+  return unbound(env) ? 0 : posix.getByte(env,self,off);
+}
+
+JNIEXPORT void JNICALL
+Java_posix_CPtr_setByte0(JNIEnv *env,jobject self,jint off,jbyte val) {
+  if (!unbound(env)) posix.setByte(env,self,off,val);
+}
+
+JNIEXPORT jshort JNICALL
+Java_posix_CPtr_getShort0(JNIEnv *env,jobject self,jint off) {
+  return unbound(env) ? 0 : posix.getShort(env,self,off);
+}
+
+JNIEXPORT void JNICALL
+Java_posix_CPtr_setShort0(JNIEnv *env,jobject self,jint off,jshort val) {
+  if (!unbound(env)) posix.setShort(env,self,off,val);
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_CPtr_getInt0(JNIEnv *env,jobject self,jint off) {
+  return unbound(env) ? 0 : posix.getInt(env,self,off);
+}
+
+JNIEXPORT void JNICALL
+Java_posix_CPtr_setInt0(JNIEnv *env,jobject self,jint off,jint val) {
+  if (!unbound(env)) posix.setInt(env,self,off,val);
+}
+
+JNIEXPORT jshort JNICALL
+Java_posix_CPtr_getCShort0(JNIEnv *env,jobject self,jint off,jint idx) {
+  return unbound(env) ? 0 : posix.getCShort(env,self,off,idx);
+}
+
+JNIEXPORT void JNICALL
+Java_posix_CPtr_setCShort0(JNIEnv *env,jobject self,jint off,jint idx,
+	jshort val) {
+  if (!unbound(env)) posix.setCShort(env,self,off,idx,val);
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_CPtr_getCInt0(JNIEnv *env,jobject self,jint off,jint idx) {
+  return unbound(env) ? 0 : posix.getCInt(env,self,off,idx);
+}
+
+JNIEXPORT void JNICALL
+Java_posix_CPtr_setCInt0(JNIEnv *env,jobject self,jint off,jint idx,
+	jint val) {
+  if (!unbound(env)) posix.setCInt(env,self,off,idx,val);
+}
+
+/* Malloc */
+
+JNIEXPORT jlong JNICALL
+Java_posix_Malloc_malloc64(JNIEnv *,jclass,jlong size) {
+  return (jlong)(intptr_t)malloc((size_t)size);
+}
+
+/* MsgQ */
+
+JNIEXPORT jint JNICALL
+Java_posix_MsgQ_msgsnd1(JNIEnv *env,jclass,jint qid,jint type,
+	jbyteArray msg,jint off,jint len,jint flag) {
+  msgbuf_t *m = newmsg(len);
+  if (m == 0) return ERR(ENOMEM);
+  m->mtype = type;
+  env->GetByteArrayRegion(msg,off,len,(jbyte *)m->mtext);
+  int rc = msgsnd(qid,m,len,flag);
+  int err = errno;
+  free(m);
+  return rc < 0 ? ERR(err) : 0;
+}
+
+JNIEXPORT jlong JNICALL
+Java_posix_MsgQ_msgrcv1(JNIEnv *env,jclass,jint qid,jbyteArray msg,
+	jint off,jint len,jint mtype,jint flag) {
+  msgbuf_t *m = newmsg(len);
+  if (m == 0) return -ENOMEM;
+  ssize_t n = msgrcv(qid,m,len,mtype,flag);
+  int err = errno;
+  jlong rc;
+  if (n < 0)
+    rc = -(jlong)err;
+  else {
+    env->SetByteArrayRegion(msg,off,n,(jbyte *)m->mtext);
+    rc = ((jlong)m->mtype << 32) | (jlong)n;
+  }
+  free(m);
+  return rc;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_MsgQ_msgsnd2(JNIEnv *env,jclass,jint qid,jobject msg,
+	jint pos,jint size,jint flag) {
+  char *p = (char *)env->GetDirectBufferAddress(msg);
+  if (p == 0) return ERR(EINVAL);
+  return msgsnd(qid,p + pos,size,flag) < 0 ? ERR(errno) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_MsgQ_msgrcv2(JNIEnv *env,jclass,jint qid,jobject msg,
+	jint pos,jint size,jint mtype,jint flag) {
+  char *p = (char *)env->GetDirectBufferAddress(msg);
+  if (p == 0) return ERR(EINVAL);
+  ssize_t n = msgrcv(qid,p + pos,size,mtype,flag);
+  return n < 0 ? ERR(errno) : (jint)n;
+}
+
+/* Send cnt messages starting at index start.  Stops at the first error.
+   Returns the number sent, or errno|0x80000000 if none was sent. */
+JNIEXPORT jint JNICALL
+Java_posix_MsgQ_msgsndv(JNIEnv *env,jclass,jint qid,jintArray jtype,
+	jbyteArray jbuf,jintArray joff,jintArray jlen,jint start,jint cnt,
+	jint flag) {
+  if (cnt <= 0) return 0;
+  jint *type = new jint[cnt], *off = new jint[cnt], *len = new jint[cnt];
+  env->GetIntArrayRegion(jtype,start,cnt,type);
+  env->GetIntArrayRegion(joff,start,cnt,off);
+  env->GetIntArrayRegion(jlen,start,cnt,len);
+  int n = 0, err = 0;
+  if (!env->ExceptionCheck()) {
+    jint max = 0;
+    for (int i = 0; i < cnt; ++i)
+      if (len[i] > max) max = len[i];
+    msgbuf_t *m = newmsg(max);
+    if (m == 0) err = ENOMEM;
+    while (m != 0 && n < cnt) {
+      m->mtype = type[n];
+      env->GetByteArrayRegion(jbuf,off[n],len[n],(jbyte *)m->mtext);
+      if (env->ExceptionCheck()) break;
+      if (msgsnd(qid,m,len[n],flag) < 0) {
+	err = errno;
+	break;
+      }
+      ++n;
+    }
+    free(m);
+  }
+  delete[] type; delete[] off; delete[] len;
+  return n > 0 || err == 0 ? n : ERR(err);
+}
+
+/* Receive up to max messages packed into buf from pos.  Only the first
+   receive waits or truncates; the rest add IPC_NOWAIT and stop at a
+   message that does not fit.  Returns the number received, or
+   errno|0x80000000 if none was received. */
+JNIEXPORT jint JNICALL
+Java_posix_MsgQ_msgrcvv(JNIEnv *env,jclass,jint qid,jintArray jtype,
+	jbyteArray jbuf,jint pos,jintArray joff,jintArray jlen,jint max,
+	jint mtype,jint flag) {
+  jsize blen = env->GetArrayLength(jbuf);
+  if (max <= 0 || pos < 0 || pos > blen) return 0;
+  msgbuf_t *m = newmsg(blen - pos);
+  if (m == 0) return ERR(ENOMEM);
+  int n = 0, err = 0;
+  while (n < max) {
+    int f = n == 0 ? flag : (flag & ~MSG_NOERROR) | IPC_NOWAIT;
+    ssize_t r = msgrcv(qid,m,blen - pos,mtype,f);
+    if (r < 0) {
+      err = errno;
+      break;
+    }
+    jint t = (jint)m->mtype, o = pos, l = (jint)r;
+    env->SetByteArrayRegion(jbuf,pos,l,(jbyte *)m->mtext);
+    env->SetIntArrayRegion(jtype,n,1,&t);
+    env->SetIntArrayRegion(joff,n,1,&o);
+    env->SetIntArrayRegion(jlen,n,1,&l);
+    pos += l;
+    ++n;
+    if (env->ExceptionCheck()) break;
+  }
+  free(m);
+  return n > 0 ? n : ERR(err);
+}
+
+/* SemSet */
+
+JNIEXPORT jint JNICALL
+Java_posix_SemSet_semtimedop(JNIEnv *env,jclass,jint id,jshortArray jops,
+	jlong nanos) {
+  jsize n = env->GetArrayLength(jops) / 3;
+  if (n <= 0) return ERR(EINVAL);
+  jshort *o = new jshort[n * 3];
+  struct sembuf *sb = new struct sembuf[n];
+  env->GetShortArrayRegion(jops,0,n * 3,o);
+  for (int i = 0; i < n; ++i) {
+    sb[i].sem_num = o[3*i];
+    sb[i].sem_op = o[3*i+1];
+    sb[i].sem_flg = o[3*i+2];
+  }
+  struct timespec ts;
+  ts.tv_sec = nanos / 1000000000L;
+  ts.tv_nsec = nanos % 1000000000L;
+  int rc = semtimedop(id,sb,n,&ts);
+  int err = errno;
+  delete[] o; delete[] sb;
+  return rc < 0 ? ERR(err) : 0;
+}
+
+/* SharedMem */
+
+JNIEXPORT jint JNICALL
+Java_posix_SharedMem_shmget64(JNIEnv *,jclass,jint key,jlong size,
+	jint flag) {
+  return shmget(key,(size_t)size,flag);
+}
+
+JNIEXPORT jlong JNICALL
+Java_posix_SharedMem_shmsize(JNIEnv *,jclass,jint id) {
+  struct shmid_ds ds;
+  return shmctl(id,IPC_STAT,&ds) < 0 ? -(jlong)errno : (jlong)ds.shm_segsz;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_SharedMem_mbind(JNIEnv *,jclass,jlong addr,jlong len,
+	jint mode,jlong nodemask) {
+  unsigned long mask = (unsigned long)nodemask;
+  /* The kernel reads maxnode - 1 bits. */
+  long rc = syscall(SYS_mbind,PTR(addr),(unsigned long)len,mode,
+	mode ? &mask : 0,mode ? 65UL : 0UL,0U);
+  return rc < 0 ? ERR(errno) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_SharedMem_madvise(JNIEnv *,jclass,jlong addr,jlong len,
+	jint advice) {
+  return madvise(PTR(addr),(size_t)len,advice) < 0 ? ERR(errno) : 0;
+}
+
+/* PosixShm */
+
+JNIEXPORT jint JNICALL
+Java_posix_PosixShm_shmOpen(JNIEnv *env,jclass,jstring jname,jint oflag,
+	jint mode) {
+  const char *name = env->GetStringUTFChars(jname,0);
+  if (name == 0) return ERR(ENOMEM);
+  int fd = shm_open(name,oflag,mode);
+  int err = errno;
+  env->ReleaseStringUTFChars(jname,name);
+  return fd < 0 ? ERR(err) : fd;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_PosixShm_shmUnlink(JNIEnv *env,jclass,jstring jname) {
+  const char *name = env->GetStringUTFChars(jname,0);
+  if (name == 0) return ERR(ENOMEM);
+  int rc = shm_unlink(name);
+  int err = errno;
+  env->ReleaseStringUTFChars(jname,name);
+  return rc < 0 ? ERR(err) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_PosixShm_ftruncate(JNIEnv *,jclass,jint fd,jlong len) {
+  return ftruncate(fd,len) < 0 ? ERR(errno) : 0;
+}
+
+JNIEXPORT jlong JNICALL
+Java_posix_PosixShm_fsize(JNIEnv *,jclass,jint fd) {
+  struct stat st;
+  return fstat(fd,&st) < 0 ? -(jlong)errno : (jlong)st.st_size;
+}
+
+JNIEXPORT jlong JNICALL
+Java_posix_PosixShm_mmap(JNIEnv *,jclass,jint fd,jlong len,jint prot,
+	jint flags) {
+  void *p = mmap(0,(size_t)len,prot,flags,fd,0);
+  return p == MAP_FAILED ? -(jlong)errno : (jlong)(intptr_t)p;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_PosixShm_munmap(JNIEnv *,jclass,jlong addr,jlong len) {
+  return munmap(PTR(addr),(size_t)len) < 0 ? ERR(errno) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_PosixShm_madvise(JNIEnv *,jclass,jlong addr,jlong len,
+	jint advice) {
+  return madvise(PTR(addr),(size_t)len,advice) < 0 ? ERR(errno) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_PosixShm_closefd(JNIEnv *,jclass,jint fd) {
+  return close(fd) < 0 ? ERR(errno) : 0;
+}
+
+/* Signal */
+
+JNIEXPORT jint JNICALL
+Java_posix_Signal_sigrtmin(JNIEnv *,jclass) { return SIGRTMIN; }
+
+JNIEXPORT jint JNICALL
+Java_posix_Signal_sigrtmax(JNIEnv *,jclass) { return SIGRTMAX; }
+
+JNIEXPORT jint JNICALL
+Java_posix_Signal_sigqueue(JNIEnv *,jclass,jint pid,jint signo,
+	jint value) {
+  union sigval sv;
+  sv.sival_int = value;
+  return sigqueue(pid,signo,sv) < 0 ? ERR(errno) : 0;
+}
+
+/* The thread that reads the signalfd, or 0 before it starts. */
+static volatile pid_t sigfdReader;
+
+/* Handler for a signal read from the signalfd.  The signal is blocked
+   only in the reader thread, so it may be delivered to any other thread
+   instead.  Forward it to the reader, where it stays pending until read.
+   The kernel allows only a negative code to another thread, so a
+   forwarded kill reads as SI_QUEUE.  If the reader itself catches the
+   signal, it is blocked there from now on and queued again. */
+static void sigfdForward(int signo,siginfo_t *si,void *context) {
+  int err = errno;
+  pid_t reader = sigfdReader;
+  if (reader != 0) {
+    siginfo_t info = *si;
+    if ((pid_t)syscall(SYS_gettid) == reader)
+      sigaddset(&((ucontext_t *)context)->uc_sigmask,signo);
+    else if (info.si_code >= 0 || info.si_code == SI_TKILL)
+      info.si_code = SI_QUEUE;
+    syscall(SYS_rt_tgsigqueueinfo,getpid(),reader,signo,&info);
+  }
+  errno = err;
+}
+
+/* Set SIG_DFL (0), SIG_IGN (1), or the forwarding handler (2) for a
+   signal read from a signalfd. */
+JNIEXPORT void JNICALL
+Java_posix_Signal_sigaction1(JNIEnv *,jclass,jint signo,jint action) {
+  struct sigaction sa;
+  memset(&sa,0,sizeof sa);
+  if (action == 2) {
+    sa.sa_sigaction = sigfdForward;
+    sa.sa_flags = SA_SIGINFO | SA_RESTART;
+  }
+  else
+    sa.sa_handler = action == 1 ? SIG_IGN : SIG_DFL;
+  sigemptyset(&sa.sa_mask);
+  sigaction(signo,&sa,0);
+}
+
+/* Record the calling thread as the signalfd reader. */
+JNIEXPORT void JNICALL
+Java_posix_Signal_sigfdreader(JNIEnv *,jclass) {
+  sigfdReader = (pid_t)syscall(SYS_gettid);
+}
+
+/* Create a signalfd for the signals in mask, or change an existing one. */
+JNIEXPORT jint JNICALL
+Java_posix_Signal_signalfd(JNIEnv *,jclass,jint fd,jlong mask) {
+  sigset_t set;
+  sigemptyset(&set);
+  for (int i = 1; i <= 64; ++i)
+    if (mask & (1LL << (i - 1)))
+      sigaddset(&set,i);
+  int rc = signalfd(fd,&set,SFD_CLOEXEC);
+  return rc < 0 ? ERR(errno) : rc;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_Signal_sigread(JNIEnv *,jclass,jint fd,jlong addr,jint len) {
+  ssize_t n = read(fd,PTR(addr),len);
+  return n < 0 ? ERR(errno) : (jint)n;
+}
+
+/* IPCWaiter */
+
+static void wakeHandler(int) { }
+
+/* Install a handler for SIGRTMAX-2 that does nothing, without
+   SA_RESTART, so that the signal interrupts a blocking system call.
+   The JDK installs the same handler for the same purpose. */
+JNIEXPORT jint JNICALL
+Java_posix_IPCWaiter_wakeinit(JNIEnv *,jclass) {
+  struct sigaction sa;
+  memset(&sa,0,sizeof sa);
+  sa.sa_handler = wakeHandler;
+  sigemptyset(&sa.sa_mask);
+  int signo = SIGRTMAX - 2;
+  return sigaction(signo,&sa,0) < 0 ? ERR(errno) : signo;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_IPCWaiter_gettid(JNIEnv *,jclass) {
+  return (jint)syscall(SYS_gettid);
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_IPCWaiter_wake(JNIEnv *,jclass,jint tid) {
+  return syscall(SYS_tgkill,getpid(),tid,SIGRTMAX - 2) < 0 ? ERR(errno) : 0;
+}
+
+/* Dir */
+
+JNIEXPORT jint JNICALL
+Java_posix_Dir_openat(JNIEnv *env,jclass,jint dirfd,jbyteArray jname,
+	jint off) {
+  jsize len = env->GetArrayLength(jname) - off;
+  if (off < 0 || len <= 0) return ERR(EINVAL);
+  char *name = new char[len + 1];
+  env->GetByteArrayRegion(jname,off,len,(jbyte *)name);
+  name[len] = 0;
+  int fd = openat(dirfd,name,O_RDONLY|O_DIRECTORY|O_CLOEXEC);
+  int err = errno;
+  delete[] name;
+  return fd < 0 ? ERR(err) : fd;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_Dir_closefd(JNIEnv *,jclass,jint fd) {
+  return close(fd) < 0 ? ERR(errno) : 0;
+}
+
+JNIEXPORT jint JNICALL
+Java_posix_Dir_getdents64(JNIEnv *,jclass,jint fd,jlong addr,jint len) {
+  long n = syscall(SYS_getdents64,fd,PTR(addr),(unsigned)len);
+  return n < 0 ? ERR(errno) : (jint)n;
+}
+
+/* StatBatch */
+
+enum { ERRNO, DEV, INO, MODE, NLINK, UID, GID, SIZE, BLOCKS,
+	ATIME, MTIME, CTIME, NFIELDS };
+static jfieldID statFields[NFIELDS];
+
+JNIEXPORT void JNICALL
+Java_posix_StatBatch_init(JNIEnv *env,jclass cls) {
+  static const char *name[NFIELDS] = { "errno", "dev", "ino", "mode",
+	"nlink", "uid", "gid", "size", "blocks", "atime", "mtime", "ctime" };
+  static const char *sig[NFIELDS] = { "[I", "[J", "[J", "[I", "[I", "[I",
+	"[I", "[J", "[J", "[J", "[J", "[J" };
+  for (int k = 0; k < NFIELDS; ++k)
+    if ((statFields[k] = env->GetFieldID(cls,name[k],sig[k])) == 0)
+      return;	// NoSuchFieldError pending
+}
+
+static inline jlong millis(const struct timespec &ts) {
+  return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+/* fstatat each name into C arrays, then copy them to the Java arrays
+   in one call per field, so no array is pinned during the system calls. */
+JNIEXPORT jint JNICALL
+Java_posix_StatBatch_statat(JNIEnv *env,jobject self,jint dirfd,
+	jbyteArray jnames,jintArray joffs,jint cnt,jint flags) {
+  if (cnt <= 0) return 0;
+  jsize nlen = env->GetArrayLength(jnames);
+  char *names = new char[nlen + 1];
+  jint *offs = new jint[cnt];
+  env->GetByteArrayRegion(jnames,0,nlen,(jbyte *)names);
+  names[nlen] = 0;
+  env->GetIntArrayRegion(joffs,0,cnt,offs);
+  jint *ival[NFIELDS];
+  jlong *lval[NFIELDS];
+  for (int k = 0; k < NFIELDS; ++k) {
+    bool isint = k == ERRNO || k == MODE || k == NLINK || k == UID || k == GID;
+    ival[k] = isint ? new jint[cnt] : 0;
+    lval[k] = isint ? 0 : new jlong[cnt];
+  }
+  int ok = 0;
+  for (int i = 0; i < cnt; ++i) {
+    struct stat st;
+    if (fstatat(dirfd,names + offs[i],&st,flags) < 0) {
+      ival[ERRNO][i] = errno;
+      memset(&st,0,sizeof st);
+    }
+    else {
+      ival[ERRNO][i] = 0;
+      ++ok;
+    }
+    lval[DEV][i] = st.st_dev;
+    lval[INO][i] = st.st_ino;
+    ival[MODE][i] = st.st_mode;
+    ival[NLINK][i] = st.st_nlink;
+    ival[UID][i] = st.st_uid;
+    ival[GID][i] = st.st_gid;
+    lval[SIZE][i] = st.st_size;
+    lval[BLOCKS][i] = st.st_blocks;
+    lval[ATIME][i] = millis(st.st_atim);
+    lval[MTIME][i] = millis(st.st_mtim);
+    lval[CTIME][i] = millis(st.st_ctim);
+  }
+  for (int k = 0; k < NFIELDS; ++k) {
+    jobject a = env->GetObjectField(self,statFields[k]);
+    if (ival[k] != 0)
+      env->SetIntArrayRegion((jintArray)a,0,cnt,ival[k]);
+    else
+      env->SetLongArrayRegion((jlongArray)a,0,cnt,lval[k]);
+    env->DeleteLocalRef(a);
+    delete[] ival[k];
+    delete[] lval[k];
+  }
+  delete[] names;
+  delete[] offs;
+  return ok;
+}
+
+}
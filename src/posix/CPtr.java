@@ -1,5 +1,16 @@
 package posix;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /** Read and write memory reachable through a C ptr.  Memory access is
     bounds checked to keep it within the size of region addressed by
     the C ptr.  Only classes within the posix package can create CPtr objects,
@@ -9,8 +20,30 @@ package posix;
     ability to dereference arbitrary C pointers - those dereferences will
     be unsafe.
     <p>
-    We have not yet implemented the floating and 64-bit types for get/set
-    due to a lack of need.
+    The 64-bit and floating point accessors, and the atomic accessors used
+    to share counters and sequence numbers with other processes, are
+    always implemented in Java over the ByteBuffer view.  The atomic
+    accessors use native byte order and require natural alignment.
+    <p>
+    For bulk access, {@link #asByteBuffer} returns a direct ByteBuffer over
+    the same memory, so Java code can scan and update a large region without
+    a JNI call per field.  Releasing the memory through
+    {@link SharedMem#dispose} or {@link Malloc#free} is deferred until every
+    such view is unreachable, so a stale view can never touch memory that
+    has been detached or handed back to malloc.
+    <p>
+    The byte, short and int get/set methods go through
+    {@link CPtrAccess#DEFAULT}: the JNI accessors, or VarHandles over the
+    ByteBuffer view, which the JIT compiles inline instead of making a JNI
+    transition per access, if the system property
+    <code>posix.cptr.backend</code> is <code>java</code>.
+    <p>
+    Memory of 2G or more is addressed with the overloads taking a long
+    offset.  The int offset methods reach the first 2G, and the int
+    <code>size</code> seen by them and by the JNI accessors is at most
+    <code>Integer.MAX_VALUE</code>.  Beyond 2G, long offset accesses go
+    through VarHandles over direct buffers of 1G each, which overlap by 8
+    bytes so that no scalar straddles two buffers.
 
 @author <a href="mailto:stuart@bmsi.com">Stuart D. Gathman</a>
 Copyright (C) 1998 Business Management Systems, Inc.  <br>
@@ -38,7 +71,37 @@ Boston, MA  02111-1307, USA.
 
 public class CPtr {
   long addr;
-  int size;
+  int size;	// size for int offsets, at most Integer.MAX_VALUE
+  long length;	// the whole size
+  private volatile ByteBuffer view;	// direct buffer over this memory
+  // buffers starting at each 1G beyond the view
+  private volatile AtomicReferenceArray<ByteBuffer> segs;
+  // buffers handed out beyond the segments, while reachable
+  private ArrayList<WeakReference<ByteBuffer>> extra;
+  private Reclaim reclaim;	// frees memory never released, if tracked
+  private Leaks.Handle handle;
+
+  /** Defers the release of C memory until all views of it are gone, and
+      releases resources never closed. */
+  static final Cleaner cleaner = Cleaner.create();
+
+  static final VarHandle
+    SHORT = MethodHandles.byteBufferViewVarHandle(short[].class,
+	ByteOrder.BIG_ENDIAN),
+    INT = MethodHandles.byteBufferViewVarHandle(int[].class,
+	ByteOrder.BIG_ENDIAN),
+    CSHORT = MethodHandles.byteBufferViewVarHandle(short[].class,
+	ByteOrder.nativeOrder()),
+    CINT = MethodHandles.byteBufferViewVarHandle(int[].class,
+	ByteOrder.nativeOrder()),
+    LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+	ByteOrder.BIG_ENDIAN),
+    FLOAT = MethodHandles.byteBufferViewVarHandle(float[].class,
+	ByteOrder.BIG_ENDIAN),
+    DOUBLE = MethodHandles.byteBufferViewVarHandle(double[].class,
+	ByteOrder.BIG_ENDIAN),
+    CLONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+	ByteOrder.nativeOrder());
 
   /** A null CPtr value. */
   static final long NULL = getNULL();
@@ -48,8 +111,22 @@ public class CPtr {
   CPtr(long addr,int size) {
     this.addr = addr;
     this.size = size;
+    this.length = size;
+  }
+
+  CPtr(long addr,long size) {
+    this.addr = addr;
+    this.size = (int)Math.min(size,Integer.MAX_VALUE);
+    this.length = size;
   }
 
+  private static final int SEG_SHIFT = 30;
+  private static final long SEG_MASK = (1L << SEG_SHIFT) - 1;
+
+  /** Return the size of the memory, which may be 2G or more, or 0 once
+      released. */
+  public final long size() { return length; }
+
   private static final long getNULL() {
     LoadLibrary.loadPosix();
     return init();
@@ -67,6 +144,9 @@ public class CPtr {
     CDBL_TYPE = 5,
     CPTR_TYPE = 6;
 
+  /** The size of a C long, 4 or 8. */
+  private static final int CLONG_SIZE = sizeOf(CLONG_TYPE);
+
   /** Get the alignment of a C type.  Can be used to compute C struct
       offsets in a mostly system independent manner.
    */
@@ -134,24 +214,811 @@ public class CPtr {
     }
   }
 
+  /** Return a direct ByteBuffer over the memory addressed by this CPtr.
+      The buffer has the same size as this CPtr, is in native byte order,
+      and is bounds checked like any other ByteBuffer.  Each call returns
+      an independent position and limit over the same memory.
+      <p>
+      After the CPtr is released, the view remains safe to use but no
+      longer reflects the original object: the underlying memory is only
+      detached or freed once all views are unreachable.
+      @throws IllegalStateException if the memory has been released,
+		or is 2G or more
+   */
+  public ByteBuffer asByteBuffer() {
+    ByteBuffer v = view();
+    if (v == null)
+      throw new IllegalStateException("CPtr has been released");
+    if (length > size)
+      throw new IllegalStateException(
+	"CPtr of "+length+" bytes is too large for one ByteBuffer");
+    return v.duplicate().order(ByteOrder.nativeOrder());
+  }
+
+  /** Return a direct ByteBuffer over <code>len</code> bytes at
+      <code>off</code>, in native byte order.  A range beyond the first 2G
+      is a slice of the buffer for the 1G containing <code>off</code>,
+      unless it is longer than 1G and runs past that buffer, in which
+      case it gets a new buffer that is only tracked while reachable.
+   */
+  public ByteBuffer asByteBuffer(long off,int len) {
+    if (off < 0 || len < 0 || off > length - len)
+      throw new ArrayIndexOutOfBoundsException(
+	String.format("offset %d, length %d",off,len));
+    if (off <= size - len) {
+      ByteBuffer b = asByteBuffer0();
+      b.limit((int)off + len).position((int)off);
+      return b.slice().order(ByteOrder.nativeOrder());
+    }
+    ByteBuffer b;
+    try {
+      b = segmentAt(off);
+    }
+    catch (ArrayIndexOutOfBoundsException x) {
+      b = null;
+    }
+    if (b == null)
+      throw new IllegalStateException("CPtr has been released");
+    int p = (int)(off & SEG_MASK);
+    if (p <= b.capacity() - len) {
+      b = b.duplicate();
+      b.limit(p + len).position(p);
+      return b.slice().order(ByteOrder.nativeOrder());
+    }
+    synchronized (this) {
+      if (addr == NULL || off > length - len)
+	throw new IllegalStateException("CPtr has been released");
+      return keep(newBuffer(addr + off,len)).order(ByteOrder.nativeOrder());
+    }
+  }
+
+  private ByteBuffer asByteBuffer0() {
+    ByteBuffer v = view();
+    if (v == null)
+      throw new IllegalStateException("CPtr has been released");
+    return v.duplicate();
+  }
+
+  /** Return the shared view, creating it if needed, or null if released. */
+  private synchronized ByteBuffer view() {
+    if (view == null && addr != NULL) {
+      LoadLibrary.requireExt("CPtr ByteBuffer view");
+      view = newBuffer(addr,size);
+      if (reclaim != null)
+	reclaim.keep(view);
+    }
+    return view;
+  }
+
+  /** Add a buffer to those that must be unreachable before the memory
+      is freed, dropping those already gone. */
+  private ByteBuffer keep(ByteBuffer b) {
+    if (extra == null) extra = new ArrayList<>();
+    extra.removeIf(r -> r.get() == null);
+    extra.add(new WeakReference<>(b));
+    if (reclaim != null)
+      reclaim.keep(b);
+    return b;
+  }
+
+  /** Return the buffers that must be unreachable before the memory
+      is freed. */
+  private ArrayList<ByteBuffer> views() {
+    ArrayList<ByteBuffer> v = new ArrayList<>(1);
+    if (view != null) v.add(view);
+    AtomicReferenceArray<ByteBuffer> s = segs;
+    for (int k = 0; s != null && k < s.length(); k++)
+      if (s.get(k) != null) v.add(s.get(k));
+    if (extra != null)
+      for (WeakReference<ByteBuffer> r: extra) {
+	ByteBuffer b = r.get();
+	if (b != null) v.add(b);
+      }
+    return v;
+  }
+
+  /** Return the shared view for an access of <code>len</code> bytes at
+      <code>off</code>.  The checks match the JNI accessors, and a released
+      CPtr has size 0.  A view obtained before a release remains valid, so
+      there is no window in which freed memory can be touched.
+   */
+  final ByteBuffer buffer(int off,int len) {
+    ByteBuffer b = view;
+    if (b == null) b = view();
+    if (b == null || off < 0 || off > b.capacity() - len)
+      throw new ArrayIndexOutOfBoundsException(
+	String.format("offset %d, length %d",off,len));
+    return b;
+  }
+
+  /** Return the buffer for an access of <code>len</code> bytes at a long
+      offset, which is the view when the access is within the first 2G,
+      and otherwise the buffer starting at the 1G containing
+      <code>off</code>.  The index in the buffer is <code>pos(off,len)</code>.
+   */
+  final ByteBuffer buffer(long off,int len) {
+    if (off >= 0 && off <= Integer.MAX_VALUE - len)
+      return buffer((int)off,len);
+    if (off < 0 || off > length - len)
+      throw new ArrayIndexOutOfBoundsException(
+	String.format("offset %d, length %d",off,len));
+    return segmentAt(off);
+  }
+
+  /** Return the buffer starting at the 1G containing <code>off</code>. */
+  private ByteBuffer segmentAt(long off) {
+    int k = (int)(off >>> SEG_SHIFT);
+    AtomicReferenceArray<ByteBuffer> s = segs;
+    ByteBuffer b = s == null ? null : s.get(k);
+    return b != null ? b : segment(k);
+  }
+
+  /** Return the index in <code>buffer(off,len)</code>. */
+  private static int pos(long off,int len) {
+    return off <= Integer.MAX_VALUE - len ? (int)off : (int)(off & SEG_MASK);
+  }
+
+  /** Create the buffer starting at 1G number <code>k</code>.  It runs
+      up to 2G, so any range of up to 1G starting in that 1G is within it.
+   */
+  private synchronized ByteBuffer segment(int k) {
+    if (addr == NULL)
+      throw new ArrayIndexOutOfBoundsException("CPtr has been released");
+    if (k == 0) return view();
+    AtomicReferenceArray<ByteBuffer> s = segs;
+    if (s == null)
+      segs = s = new AtomicReferenceArray<>(
+	(int)((length - 1 >>> SEG_SHIFT) + 1));
+    ByteBuffer b = s.get(k);
+    if (b == null) {
+      long base = (long)k << SEG_SHIFT;
+      b = newBuffer(addr + base,(int)Math.min(length - base,Integer.MAX_VALUE));
+      if (reclaim != null)
+	reclaim.keep(b);
+      s.set(k,b);
+    }
+    return b;
+  }
+
+  /** Copy <code>cnt</code> elements of <code>1 &lt;&lt; shift</code>
+      bytes at a long offset beyond the first 2G, one segment at a time.
+   */
+  private void copy(long off,int cnt,int shift,ByteOrder order,Copy c) {
+    if (cnt < 0 || cnt > Integer.MAX_VALUE >> shift
+	|| off < 0 || off > length - ((long)cnt << shift))
+      throw new ArrayIndexOutOfBoundsException(
+	String.format("offset %d, count %d",off,cnt));
+    for (int done = 0; done < cnt;) {
+      long at = off + ((long)done << shift);
+      ByteBuffer b = buffer(at,1 << shift);
+      int p = pos(at,1 << shift);
+      int n = Math.min(cnt - done,(b.capacity() - p) >> shift);
+      b = b.duplicate();
+      b.limit(p + (n << shift)).position(p);
+      c.copy(b.slice().order(order),done,n);
+      done += n;
+    }
+  }
+
+  /** Copies part of an array to or from a buffer. */
+  private interface Copy {
+    void copy(ByteBuffer b,int done,int n);
+  }
+
+  /** True if <code>cnt</code> elements at a long offset are within the
+      first 2G, so the int offset methods apply. */
+  private static boolean small(long off,int cnt,int shift) {
+    return off >= 0 && cnt >= 0 && cnt <= Integer.MAX_VALUE >> shift
+	&& off <= Integer.MAX_VALUE - ((long)cnt << shift);
+  }
+
+  /** Return the offset of element <code>idx</code> of a C array of
+      <code>len</code> byte elements at <code>off</code>, checking alignment
+      like the JNI accessors.
+   */
+  static int index(int off,int idx,int len) {
+    if ((off & (len - 1)) != 0)
+      throw new AlignmentException(
+	String.format("offset %d, align %d",off,len));
+    return off + idx * len;
+  }
+
+  /** Return the offset of element <code>idx</code> of a C array at a
+      long offset. */
+  private static long index(long off,int idx,int len) {
+    if ((off & (len - 1)) != 0)
+      throw new AlignmentException(
+	String.format("offset %d, align %d",off,len));
+    return off + (long)idx * len;
+  }
+
+  /** Prevent further access through this CPtr and release the memory
+      with <code>free</code>.  If views have been handed out, the release is
+      deferred until they are all unreachable.  Only the first call
+      has any effect.
+   */
+  synchronized void release(Runnable free) {
+    if (addr == NULL) return;
+    ArrayList<ByteBuffer> v = detach();
+    if (handle != null) {
+      handle.close();
+      handle = null;
+      reclaim = null;
+    }
+    defer(v,free);
+  }
+
+  /** Release like <code>release</code>, but stay tracked so that the
+      same memory can be handed out again with <code>reopen</code>.
+      Until then, the memory is not freed if this CPtr becomes unreachable.
+   */
+  synchronized void recycle(Runnable free) {
+    if (addr == NULL) return;
+    ArrayList<ByteBuffer> v = detach();
+    if (reclaim != null)
+      reclaim.disarm();
+    defer(v,free);
+  }
+
+  /** Make a recycled CPtr address its memory again. */
+  final synchronized void reopen(long addr,int size) {
+    this.addr = addr;
+    this.size = size;
+    this.length = size;
+    if (reclaim != null)
+      reclaim.arm();
+  }
+
+  /** Prevent further access, and return the views handed out. */
+  private ArrayList<ByteBuffer> detach() {
+    ArrayList<ByteBuffer> v = views();
+    size = 0;	// prevent further access
+    length = 0;
+    addr = NULL;
+    view = null;
+    segs = null;
+    extra = null;
+    return v;
+  }
+
+  /** Run <code>free</code> once all the buffers are unreachable. */
+  private static void defer(List<ByteBuffer> bufs,Runnable free) {
+    if (bufs.isEmpty()) {
+      free.run();
+      return;
+    }
+    if (bufs.size() == 1) {
+      cleaner.register(bufs.get(0),free);
+      return;
+    }
+    AtomicInteger n = new AtomicInteger(bufs.size());
+    Runnable last = () -> {
+      if (n.decrementAndGet() == 0) free.run();
+    };
+    for (ByteBuffer b: bufs)
+      cleaner.register(b,last);
+  }
+
+  /** Release the memory with <code>free</code> if this CPtr becomes
+      unreachable without being released, once its views are unreachable
+      too.  The free action must not refer to this CPtr.
+      @param what	the kind of memory, for leak reports, or null if
+			the CPtr need not be released explicitly
+   */
+  final synchronized void track(String what,Runnable free) {
+    reclaim = new Reclaim(free);
+    for (ByteBuffer b: views()) reclaim.keep(b);
+    handle = Leaks.register(this,what,reclaim);
+  }
+
+  /** Frees the memory of an unreachable CPtr, after its views. */
+  private static final class Reclaim implements Runnable {
+    private final Runnable free;
+    // the views, which need only be waited for while reachable
+    private final ArrayList<WeakReference<ByteBuffer>> views =
+	new ArrayList<>(1);
+    private boolean armed = true;	// false while recycled
+    Reclaim(Runnable free) { this.free = free; }
+    synchronized void keep(ByteBuffer v) {
+      views.removeIf(r -> r.get() == null);
+      views.add(new WeakReference<>(v));
+    }
+    synchronized void disarm() {
+      armed = false;
+      views.clear();
+    }
+    synchronized void arm() { armed = true; }
+    public synchronized void run() {
+      if (!armed) return;
+      ArrayList<ByteBuffer> v = new ArrayList<>(views.size());
+      for (WeakReference<ByteBuffer> r: views) {
+	ByteBuffer b = r.get();
+	if (b != null) v.add(b);
+      }
+      views.clear();
+      defer(v,free);
+    }
+  }
+
+  /** Create a direct ByteBuffer for a region of C memory. */
+  private static native ByteBuffer newBuffer(long addr,int size);
+
   /** Copy bytes out of C memory into a Java byte array. */
   public native void copyOut(int off,byte[] ba,int pos,int cnt);
   /** Copy a Java byte array into C memory. */
   public native void copyIn(int off,byte[] ba,int pos,int cnt);
-  public native byte getByte(int off);
-  public native void setByte(int off,byte val);
-  public native short getShort(int off);
-  public native void setShort(int off,short val);
-  public native int getInt(int off);
-  public native void setInt(int off,int val);
-
-  public native short getCShort(int off,int idx);
-  public native void setCShort(int off,int idx,short val);
-  public native int getCInt(int off,int idx);
-  public native void setCInt(int off,int idx,int val);
+
+  /** Return a buffer over <code>cnt</code> elements of
+      <code>1 &lt;&lt; shift</code> bytes at <code>off</code>, checking the
+      whole range once.
+   */
+  private ByteBuffer slice(int off,int cnt,int shift,ByteOrder order) {
+    if (cnt < 0 || cnt > Integer.MAX_VALUE >> shift)
+      throw new ArrayIndexOutOfBoundsException(
+	String.format("offset %d, count %d",off,cnt));
+    int len = cnt << shift;
+    ByteBuffer b = buffer(off,len).duplicate();
+    b.limit(off + len).position(off);
+    return b.slice().order(order);
+  }
+
+  /* Bulk copies of primitive arrays.  Each copy is a single bounds check
+     and a memory copy, or a byte swapping copy when the requested order
+     differs from native order. */
+
+  /** Copy C shorts out of C memory into a Java array. */
+  public void copyOut(int off,short[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(int off,short[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,1,order).asShortBuffer().get(a,pos,cnt);
+  }
+  /** Copy a Java array into C memory as C shorts. */
+  public void copyIn(int off,short[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(int off,short[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,1,order).asShortBuffer().put(a,pos,cnt);
+  }
+
+  /** Copy C ints out of C memory into a Java array. */
+  public void copyOut(int off,int[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(int off,int[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,2,order).asIntBuffer().get(a,pos,cnt);
+  }
+  /** Copy a Java array into C memory as C ints. */
+  public void copyIn(int off,int[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(int off,int[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,2,order).asIntBuffer().put(a,pos,cnt);
+  }
+
+  /** Copy 64-bit values out of C memory into a Java array. */
+  public void copyOut(int off,long[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(int off,long[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,3,order).asLongBuffer().get(a,pos,cnt);
+  }
+  /** Copy a Java array into C memory as 64-bit values. */
+  public void copyIn(int off,long[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(int off,long[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,3,order).asLongBuffer().put(a,pos,cnt);
+  }
+
+  /** Copy C floats out of C memory into a Java array. */
+  public void copyOut(int off,float[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(int off,float[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,2,order).asFloatBuffer().get(a,pos,cnt);
+  }
+  /** Copy a Java array into C memory as C floats. */
+  public void copyIn(int off,float[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(int off,float[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,2,order).asFloatBuffer().put(a,pos,cnt);
+  }
+
+  /** Copy C doubles out of C memory into a Java array. */
+  public void copyOut(int off,double[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(int off,double[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,3,order).asDoubleBuffer().get(a,pos,cnt);
+  }
+  /** Copy a Java array into C memory as C doubles. */
+  public void copyIn(int off,double[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(int off,double[] a,int pos,int cnt,ByteOrder order) {
+    slice(off,cnt,3,order).asDoubleBuffer().put(a,pos,cnt);
+  }
+
+  /* Bulk copies at long offsets. */
+
+  public void copyOut(long off,byte[] ba,int pos,int cnt) {
+    if (small(off,cnt,0))
+      copyOut((int)off,ba,pos,cnt);
+    else
+      copy(off,cnt,0,ByteOrder.nativeOrder(),(b,i,n) -> b.get(ba,pos + i,n));
+  }
+  public void copyIn(long off,byte[] ba,int pos,int cnt) {
+    if (small(off,cnt,0))
+      copyIn((int)off,ba,pos,cnt);
+    else
+      copy(off,cnt,0,ByteOrder.nativeOrder(),(b,i,n) -> b.put(ba,pos + i,n));
+  }
+  public void copyOut(long off,short[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(long off,short[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,1))
+      copyOut((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,1,order,(b,i,n) -> b.asShortBuffer().get(a,pos + i,n));
+  }
+  public void copyIn(long off,short[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(long off,short[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,1))
+      copyIn((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,1,order,(b,i,n) -> b.asShortBuffer().put(a,pos + i,n));
+  }
+  public void copyOut(long off,int[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(long off,int[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,2))
+      copyOut((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,2,order,(b,i,n) -> b.asIntBuffer().get(a,pos + i,n));
+  }
+  public void copyIn(long off,int[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(long off,int[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,2))
+      copyIn((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,2,order,(b,i,n) -> b.asIntBuffer().put(a,pos + i,n));
+  }
+  public void copyOut(long off,long[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(long off,long[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,3))
+      copyOut((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,3,order,(b,i,n) -> b.asLongBuffer().get(a,pos + i,n));
+  }
+  public void copyIn(long off,long[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(long off,long[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,3))
+      copyIn((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,3,order,(b,i,n) -> b.asLongBuffer().put(a,pos + i,n));
+  }
+  public void copyOut(long off,float[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(long off,float[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,2))
+      copyOut((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,2,order,(b,i,n) -> b.asFloatBuffer().get(a,pos + i,n));
+  }
+  public void copyIn(long off,float[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(long off,float[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,2))
+      copyIn((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,2,order,(b,i,n) -> b.asFloatBuffer().put(a,pos + i,n));
+  }
+  public void copyOut(long off,double[] a,int pos,int cnt) {
+    copyOut(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyOut(long off,double[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,3))
+      copyOut((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,3,order,(b,i,n) -> b.asDoubleBuffer().get(a,pos + i,n));
+  }
+  public void copyIn(long off,double[] a,int pos,int cnt) {
+    copyIn(off,a,pos,cnt,ByteOrder.nativeOrder());
+  }
+  public void copyIn(long off,double[] a,int pos,int cnt,ByteOrder order) {
+    if (small(off,cnt,3))
+      copyIn((int)off,a,pos,cnt,order);
+    else
+      copy(off,cnt,3,order,(b,i,n) -> b.asDoubleBuffer().put(a,pos + i,n));
+  }
+
+  public byte getByte(int off) { return CPtrAccess.DEFAULT.getByte(this,off); }
+  public void setByte(int off,byte val) {
+    CPtrAccess.DEFAULT.setByte(this,off,val);
+  }
+  /** Get a big-endian 16-bit value. */
+  public short getShort(int off) {
+    return CPtrAccess.DEFAULT.getShort(this,off);
+  }
+  /** Set a big-endian 16-bit value. */
+  public void setShort(int off,short val) {
+    CPtrAccess.DEFAULT.setShort(this,off,val);
+  }
+  /** Get a big-endian 32-bit value. */
+  public int getInt(int off) { return CPtrAccess.DEFAULT.getInt(this,off); }
+  /** Set a big-endian 32-bit value. */
+  public void setInt(int off,int val) {
+    CPtrAccess.DEFAULT.setInt(this,off,val);
+  }
+
+  /** Get a native C short from an array at <code>off</code>, which
+      must be aligned. */
+  public short getCShort(int off,int idx) {
+    return CPtrAccess.DEFAULT.getCShort(this,off,idx);
+  }
+  public void setCShort(int off,int idx,short val) {
+    CPtrAccess.DEFAULT.setCShort(this,off,idx,val);
+  }
+  /** Get a native C int from an array at <code>off</code>, which
+      must be aligned. */
+  public int getCInt(int off,int idx) {
+    return CPtrAccess.DEFAULT.getCInt(this,off,idx);
+  }
+  public void setCInt(int off,int idx,int val) {
+    CPtrAccess.DEFAULT.setCInt(this,off,idx,val);
+  }
 
   public short getCShort(int off) { return getCShort(off,0); }
   public void setCShort(int off,short val ) { setCShort(off,0,val); }
   public int getCInt(int off) { return getCInt(off,0); }
   public void setCInt(int off,int val) { setCInt(off,0,val); }
+
+  /** Get a big-endian 64-bit value. */
+  public long getLong(int off) {
+    return (long)LONG.get(buffer(off,8),off);
+  }
+  /** Set a big-endian 64-bit value. */
+  public void setLong(int off,long val) {
+    LONG.set(buffer(off,8),off,val);
+  }
+  /** Get a big-endian IEEE float. */
+  public float getFloat(int off) {
+    return (float)FLOAT.get(buffer(off,4),off);
+  }
+  /** Set a big-endian IEEE float. */
+  public void setFloat(int off,float val) {
+    FLOAT.set(buffer(off,4),off,val);
+  }
+  /** Get a big-endian IEEE double. */
+  public double getDouble(int off) {
+    return (double)DOUBLE.get(buffer(off,8),off);
+  }
+  /** Set a big-endian IEEE double. */
+  public void setDouble(int off,double val) {
+    DOUBLE.set(buffer(off,8),off,val);
+  }
+
+  /** Get a native C long from an array at <code>off</code>, which
+      must be aligned.  The element size is <code>sizeOf(CLONG_TYPE)</code>,
+      and a 32-bit C long is sign extended.
+   */
+  public long getCLong(int off,int idx) {
+    int pos = index(off,idx,CLONG_SIZE);
+    if (CLONG_SIZE == 4)
+      return (int)CINT.get(buffer(pos,4),pos);
+    return (long)CLONG.get(buffer(pos,8),pos);
+  }
+  /** Set a native C long.  A 32-bit C long receives the low order bits. */
+  public void setCLong(int off,int idx,long val) {
+    int pos = index(off,idx,CLONG_SIZE);
+    if (CLONG_SIZE == 4)
+      CINT.set(buffer(pos,4),pos,(int)val);
+    else
+      CLONG.set(buffer(pos,8),pos,val);
+  }
+  public long getCLong(int off) { return getCLong(off,0); }
+  public void setCLong(int off,long val) { setCLong(off,0,val); }
+
+  /* Atomic access to native int and 64-bit values.  Offsets must
+     be naturally aligned. */
+
+  public int getIntVolatile(int off) {
+    return (int)CINT.getVolatile(buffer(index(off,0,4),4),off);
+  }
+  public void setIntVolatile(int off,int val) {
+    CINT.setVolatile(buffer(index(off,0,4),4),off,val);
+  }
+  public int getIntAcquire(int off) {
+    return (int)CINT.getAcquire(buffer(index(off,0,4),4),off);
+  }
+  public void setIntRelease(int off,int val) {
+    CINT.setRelease(buffer(index(off,0,4),4),off,val);
+  }
+  /** Atomically set the value at <code>off</code> to <code>val</code>
+      if it is currently <code>expect</code>.
+      @return true if successful
+   */
+  public boolean compareAndSetInt(int off,int expect,int val) {
+    return CINT.compareAndSet(buffer(index(off,0,4),4),off,expect,val);
+  }
+  /** Atomically add to the value at <code>off</code>.
+      @return the previous value
+   */
+  public int getAndAddInt(int off,int delta) {
+    return (int)CINT.getAndAdd(buffer(index(off,0,4),4),off,delta);
+  }
+  /** Atomically replace the value at <code>off</code>.
+      @return the previous value
+   */
+  public int getAndSetInt(int off,int val) {
+    return (int)CINT.getAndSet(buffer(index(off,0,4),4),off,val);
+  }
+
+  public long getLongVolatile(int off) {
+    return (long)CLONG.getVolatile(buffer(index(off,0,8),8),off);
+  }
+  public void setLongVolatile(int off,long val) {
+    CLONG.setVolatile(buffer(index(off,0,8),8),off,val);
+  }
+  public long getLongAcquire(int off) {
+    return (long)CLONG.getAcquire(buffer(index(off,0,8),8),off);
+  }
+  public void setLongRelease(int off,long val) {
+    CLONG.setRelease(buffer(index(off,0,8),8),off,val);
+  }
+  public boolean compareAndSetLong(int off,long expect,long val) {
+    return CLONG.compareAndSet(buffer(index(off,0,8),8),off,expect,val);
+  }
+  public long getAndAddLong(int off,long delta) {
+    return (long)CLONG.getAndAdd(buffer(index(off,0,8),8),off,delta);
+  }
+  public long getAndSetLong(int off,long val) {
+    return (long)CLONG.getAndSet(buffer(index(off,0,8),8),off,val);
+  }
+
+  /* Scalar access at long offsets, for memory of 2G or more.  These
+     always use VarHandles, whatever the backend. */
+
+  public byte getByte(long off) {
+    return buffer(off,1).get(pos(off,1));
+  }
+  public void setByte(long off,byte val) {
+    buffer(off,1).put(pos(off,1),val);
+  }
+  public short getShort(long off) {
+    return (short)SHORT.get(buffer(off,2),pos(off,2));
+  }
+  public void setShort(long off,short val) {
+    SHORT.set(buffer(off,2),pos(off,2),val);
+  }
+  public int getInt(long off) {
+    return (int)INT.get(buffer(off,4),pos(off,4));
+  }
+  public void setInt(long off,int val) {
+    INT.set(buffer(off,4),pos(off,4),val);
+  }
+  public long getLong(long off) {
+    return (long)LONG.get(buffer(off,8),pos(off,8));
+  }
+  public void setLong(long off,long val) {
+    LONG.set(buffer(off,8),pos(off,8),val);
+  }
+  public float getFloat(long off) {
+    return (float)FLOAT.get(buffer(off,4),pos(off,4));
+  }
+  public void setFloat(long off,float val) {
+    FLOAT.set(buffer(off,4),pos(off,4),val);
+  }
+  public double getDouble(long off) {
+    return (double)DOUBLE.get(buffer(off,8),pos(off,8));
+  }
+  public void setDouble(long off,double val) {
+    DOUBLE.set(buffer(off,8),pos(off,8),val);
+  }
+
+  public short getCShort(long off,int idx) {
+    long at = index(off,idx,2);
+    return (short)CSHORT.get(buffer(at,2),pos(at,2));
+  }
+  public void setCShort(long off,int idx,short val) {
+    long at = index(off,idx,2);
+    CSHORT.set(buffer(at,2),pos(at,2),val);
+  }
+  public int getCInt(long off,int idx) {
+    long at = index(off,idx,4);
+    return (int)CINT.get(buffer(at,4),pos(at,4));
+  }
+  public void setCInt(long off,int idx,int val) {
+    long at = index(off,idx,4);
+    CINT.set(buffer(at,4),pos(at,4),val);
+  }
+  public long getCLong(long off,int idx) {
+    long at = index(off,idx,CLONG_SIZE);
+    if (CLONG_SIZE == 4)
+      return (int)CINT.get(buffer(at,4),pos(at,4));
+    return (long)CLONG.get(buffer(at,8),pos(at,8));
+  }
+  public void setCLong(long off,int idx,long val) {
+    long at = index(off,idx,CLONG_SIZE);
+    if (CLONG_SIZE == 4)
+      CINT.set(buffer(at,4),pos(at,4),(int)val);
+    else
+      CLONG.set(buffer(at,8),pos(at,8),val);
+  }
+  public short getCShort(long off) { return getCShort(off,0); }
+  public void setCShort(long off,short val) { setCShort(off,0,val); }
+  public int getCInt(long off) { return getCInt(off,0); }
+  public void setCInt(long off,int val) { setCInt(off,0,val); }
+  public long getCLong(long off) { return getCLong(off,0); }
+  public void setCLong(long off,long val) { setCLong(off,0,val); }
+
+  public int getIntVolatile(long off) {
+    return (int)CINT.getVolatile(buffer(index(off,0,4),4),pos(off,4));
+  }
+  public void setIntVolatile(long off,int val) {
+    CINT.setVolatile(buffer(index(off,0,4),4),pos(off,4),val);
+  }
+  public int getIntAcquire(long off) {
+    return (int)CINT.getAcquire(buffer(index(off,0,4),4),pos(off,4));
+  }
+  public void setIntRelease(long off,int val) {
+    CINT.setRelease(buffer(index(off,0,4),4),pos(off,4),val);
+  }
+  public boolean compareAndSetInt(long off,int expect,int val) {
+    return CINT.compareAndSet(buffer(index(off,0,4),4),pos(off,4),expect,val);
+  }
+  public int getAndAddInt(long off,int delta) {
+    return (int)CINT.getAndAdd(buffer(index(off,0,4),4),pos(off,4),delta);
+  }
+  public int getAndSetInt(long off,int val) {
+    return (int)CINT.getAndSet(buffer(index(off,0,4),4),pos(off,4),val);
+  }
+  public long getLongVolatile(long off) {
+    return (long)CLONG.getVolatile(buffer(index(off,0,8),8),pos(off,8));
+  }
+  public void setLongVolatile(long off,long val) {
+    CLONG.setVolatile(buffer(index(off,0,8),8),pos(off,8),val);
+  }
+  public long getLongAcquire(long off) {
+    return (long)CLONG.getAcquire(buffer(index(off,0,8),8),pos(off,8));
+  }
+  public void setLongRelease(long off,long val) {
+    CLONG.setRelease(buffer(index(off,0,8),8),pos(off,8),val);
+  }
+  public boolean compareAndSetLong(long off,long expect,long val) {
+    return CLONG.compareAndSet(buffer(index(off,0,8),8),pos(off,8),expect,val);
+  }
+  public long getAndAddLong(long off,long delta) {
+    return (long)CLONG.getAndAdd(buffer(index(off,0,8),8),pos(off,8),delta);
+  }
+  public long getAndSetLong(long off,long val) {
+    return (long)CLONG.getAndSet(buffer(index(off,0,8),8),pos(off,8),val);
+  }
+
+  /* The JNI accessors of libposix.so, bound to these names by
+     libposixext.so. */
+  native byte getByte0(int off);
+  native void setByte0(int off,byte val);
+  native short getShort0(int off);
+  native void setShort0(int off,short val);
+  native int getInt0(int off);
+  native void setInt0(int off,int val);
+  native short getCShort0(int off,int idx);
+  native void setCShort0(int off,int idx,short val);
+  native int getCInt0(int off,int idx);
+  native void setCInt0(int off,int idx,int val);
 }
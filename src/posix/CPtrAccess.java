@@ -0,0 +1,105 @@
+package posix;
+
+/** The byte, short and int accessors of {@link CPtr}, implemented either
+  by its JNI methods or by VarHandles over its direct ByteBuffer view.
+  The JIT compiles the VarHandle accessors inline, where each JNI access
+  is a JNI transition.  Both have the same bounds and alignment checks
+  and byte order: getShort and getInt are big-endian and allow any offset,
+  getCShort and getCInt are native order and throw
+  {@link AlignmentException} for a misaligned array offset, and a range
+  error throws ArrayIndexOutOfBoundsException.
+  <p>
+  {@link #DEFAULT} is {@link #JNI} unless the system property
+  <code>posix.cptr.backend</code> is set to <code>java</code>.  The
+  accessors of CPtr itself go through it, so the two can be compared
+  without change.
+ */
+public abstract class CPtrAccess {
+  private CPtrAccess() { }
+
+  /** The JNI accessors of CPtr. */
+  public static final CPtrAccess JNI = new CPtrAccess() {
+    public byte getByte(CPtr p,int off) { return p.getByte0(off); }
+    public void setByte(CPtr p,int off,byte val) { p.setByte0(off,val); }
+    public short getShort(CPtr p,int off) { return p.getShort0(off); }
+    public void setShort(CPtr p,int off,short val) { p.setShort0(off,val); }
+    public int getInt(CPtr p,int off) { return p.getInt0(off); }
+    public void setInt(CPtr p,int off,int val) { p.setInt0(off,val); }
+    public short getCShort(CPtr p,int off,int idx) {
+      return p.getCShort0(off,idx);
+    }
+    public void setCShort(CPtr p,int off,int idx,short val) {
+      p.setCShort0(off,idx,val);
+    }
+    public int getCInt(CPtr p,int off,int idx) { return p.getCInt0(off,idx); }
+    public void setCInt(CPtr p,int off,int idx,int val) {
+      p.setCInt0(off,idx,val);
+    }
+  };
+
+  /** Accessors by VarHandles over the ByteBuffer view of a CPtr. */
+  public static final CPtrAccess JAVA = new CPtrAccess() {
+    public byte getByte(CPtr p,int off) {
+      return p.buffer(off,1).get(off);
+    }
+    public void setByte(CPtr p,int off,byte val) {
+      p.buffer(off,1).put(off,val);
+    }
+    public short getShort(CPtr p,int off) {
+      return (short)CPtr.SHORT.get(p.buffer(off,2),off);
+    }
+    public void setShort(CPtr p,int off,short val) {
+      CPtr.SHORT.set(p.buffer(off,2),off,val);
+    }
+    public int getInt(CPtr p,int off) {
+      return (int)CPtr.INT.get(p.buffer(off,4),off);
+    }
+    public void setInt(CPtr p,int off,int val) {
+      CPtr.INT.set(p.buffer(off,4),off,val);
+    }
+    public short getCShort(CPtr p,int off,int idx) {
+      int pos = CPtr.index(off,idx,2);
+      return (short)CPtr.CSHORT.get(p.buffer(pos,2),pos);
+    }
+    public void setCShort(CPtr p,int off,int idx,short val) {
+      int pos = CPtr.index(off,idx,2);
+      CPtr.CSHORT.set(p.buffer(pos,2),pos,val);
+    }
+    public int getCInt(CPtr p,int off,int idx) {
+      int pos = CPtr.index(off,idx,4);
+      return (int)CPtr.CINT.get(p.buffer(pos,4),pos);
+    }
+    public void setCInt(CPtr p,int off,int idx,int val) {
+      int pos = CPtr.index(off,idx,4);
+      CPtr.CINT.set(p.buffer(pos,4),pos,val);
+    }
+  };
+
+  /** The accessors chosen by <code>posix.cptr.backend</code>. */
+  public static final CPtrAccess DEFAULT =
+    "java".equals(System.getProperty("posix.cptr.backend","jni")) ? JAVA : JNI;
+
+  public abstract byte getByte(CPtr p,int off);
+  public abstract void setByte(CPtr p,int off,byte val);
+  /** Get a big-endian 16-bit value. */
+  public abstract short getShort(CPtr p,int off);
+  /** Set a big-endian 16-bit value. */
+  public abstract void setShort(CPtr p,int off,short val);
+  /** Get a big-endian 32-bit value. */
+  public abstract int getInt(CPtr p,int off);
+  /** Set a big-endian 32-bit value. */
+  public abstract void setInt(CPtr p,int off,int val);
+  /** Get a native C short from an array at <code>off</code>, which
+    must be aligned. */
+  public abstract short getCShort(CPtr p,int off,int idx);
+  public abstract void setCShort(CPtr p,int off,int idx,short val);
+  /** Get a native C int from an array at <code>off</code>, which
+    must be aligned. */
+  public abstract int getCInt(CPtr p,int off,int idx);
+  public abstract void setCInt(CPtr p,int off,int idx,int val);
+
+  public short getCShort(CPtr p,int off) { return getCShort(p,off,0); }
+  public void setCShort(CPtr p,int off,short val) { setCShort(p,off,0,val); }
+  public int getCInt(CPtr p,int off) { return getCInt(p,off,0); }
+  public void setCInt(CPtr p,int off,int val) { setCInt(p,off,0,val); }
+}
@@ -0,0 +1,132 @@
+package posix;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/** An open directory, for looking up names relative to it with the
+  posix <code>*at</code> functions.  This avoids resolving the whole path
+  for each file, and marshalling a path String for each call.
+  <p>
+  Names are converted with the charset of <code>sun.jnu.encoding</code>,
+  as by java.io.File.  A name read from a directory may not be valid in
+  it, so code that opens such names keeps their bytes.
+  <p>
+  A Dir holds a file descriptor, which should be closed.  If a Dir
+  becomes unreachable first, the descriptor is closed by a
+  {@link java.lang.ref.Cleaner}.
+ */
+public class Dir implements AutoCloseable {
+  /** The dirfd meaning the current directory (Linux). */
+  private static final int AT_FDCWD = -100;
+
+  /** The charset of file names. */
+  static final Charset JNU = jnuCharset();
+
+  private static Charset jnuCharset() {
+    try {
+      return Charset.forName(System.getProperty("sun.jnu.encoding"));
+    }
+    catch (RuntimeException x) {	// unset or unsupported
+      return Charset.defaultCharset();
+    }
+  }
+
+  static {
+    LoadLibrary.loadPosix();
+  }
+
+  private volatile int fd;
+  private final Leaks.Handle handle;
+
+  /** Open a directory by path. */
+  public Dir(String path) throws IOException {
+    this(AT_FDCWD,path,toC(path),0);
+  }
+
+  /** Open a subdirectory. */
+  public Dir(Dir parent,String name) throws IOException {
+    this(parent.getFd(),name,toC(name),0);
+  }
+
+  /** Open a subdirectory by its NUL terminated name, naming it by
+    <code>path</code> in errors. */
+  Dir(Dir parent,byte[] name,String path) throws IOException {
+    this(parent.getFd(),path,name,0);
+  }
+
+  /** Open a subdirectory whose name is NUL terminated at
+    <code>off</code> in <code>name</code>. */
+  public Dir(Dir parent,byte[] name,int off) throws IOException {
+    this(parent.getFd(),null,name,off);
+  }
+
+  private Dir(int dirfd,String path,byte[] name,int off) throws IOException {
+    LoadLibrary.requireExt("Dir");
+    int rc = openat(dirfd,name,off);
+    if (rc < 0) {
+      if (path == null) path = fromC(name,off);
+      throw new IOException(path+": "+Errno.getErrdesc(rc & 0x7fffffff));
+    }
+    fd = rc;
+    final int cfd = rc;
+    handle = Leaks.register(this,"Dir",() -> closefd(cfd));
+  }
+
+  /** Return the file descriptor.
+    @throws IllegalStateException if closed
+   */
+  public final int getFd() {
+    int f = fd;
+    if (f < 0)
+      throw new IllegalStateException("Dir closed");
+    return f;
+  }
+
+  /** Close the file descriptor.  Only the first call has any effect. */
+  public void close() {
+    int f;
+    synchronized (this) {
+      f = fd;
+      fd = -1;
+    }
+    if (f >= 0) {
+      handle.close();
+      closefd(f);
+    }
+  }
+
+  /** Read the next directory entries into C memory, as Linux
+    <code>struct linux_dirent64</code> records.  "." and ".." are
+    included.
+    @return the number of bytes read, 0 at the end of the directory
+   */
+  int getdents(CPtr buf) throws IOException {
+    int rc = getdents64(getFd(),buf.addr,buf.size);
+    if (rc < 0)
+      throw new IOException("getdents64: "+Errno.getErrdesc(rc & 0x7fffffff));
+    return rc;
+  }
+
+  /** Return a name as a NUL terminated C string. */
+  static byte[] toC(String name) {
+    byte[] b = name.getBytes(JNU);
+    byte[] c = new byte[b.length + 1];
+    System.arraycopy(b,0,c,0,b.length);
+    return c;
+  }
+
+  /** Return the NUL terminated name at <code>off</code>. */
+  static String fromC(byte[] name,int off) {
+    int end = off;
+    while (end < name.length && name[end] != 0) ++end;
+    return new String(name,off,end - off,JNU);
+  }
+
+  /** Open a directory with O_DIRECTORY|O_CLOEXEC.
+    @return the fd or errno|0x80000000
+   */
+  private static native int openat(int dirfd,byte[] name,int off);
+  private static native int closefd(int fd);
+  /** @return bytes read, or errno|0x80000000 */
+  private static native int getdents64(int fd,long addr,int len);
+}
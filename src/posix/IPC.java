@@ -26,9 +26,10 @@ Boston, MA  02111-1307, USA.
 
  */
 
-public abstract class IPC {
+public abstract class IPC implements AutoCloseable {
   protected int id = -1;
   protected boolean owner;
+  private Leaks.Handle handle;
 
   /* Common IPC Definitions. */                                                 
 
@@ -120,9 +121,27 @@ public abstract class IPC {
   /** Remove this IPC data structure from the system. */
   public abstract void remove();
 
+  /** Remove the IPC data structure if this process created it.  If an
+    IPC object becomes unreachable without being disposed, the
+    release action passed to {@link #track} is run by a
+    {@link java.lang.ref.Cleaner}. */
   public synchronized void dispose() {
     if (owner) remove();
+    if (handle != null) {
+      handle.close();
+      handle = null;
+    }
   }
 
-  public void finalize() { dispose(); }
+  /** Same as {@link #dispose}, for try-with-resources. */
+  public void close() { dispose(); }
+
+  /** Register the release action for when this object becomes
+    unreachable without being disposed.  Called once the id and owner
+    are known.
+    @param release	the action, which must not refer to this object
+   */
+  final void track(String what,Runnable release) {
+    handle = Leaks.register(this,what,release);
+  }
 }
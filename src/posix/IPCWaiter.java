@@ -0,0 +1,169 @@
+package posix;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Run blocking IPC calls for the asynchronous methods of MsgQ and
+  SemSet.  A blocking system call inside JNI pins the calling thread, so
+  the caller never makes one.  An operation is first tried with
+  IPC_NOWAIT.  If it would block, it is handed to one of a small pool
+  of dedicated waiter threads which make the blocking call.  If all
+  waiters are busy, the operation is instead polled with IPC_NOWAIT at
+  increasing intervals.
+  <p>
+  Cancelling the future of an operation in a waiter thread interrupts
+  its system call with a signal, SIGRTMAX-2, which the JDK also uses to
+  interrupt blocking I/O (Linux).  The waiter then sees the future is
+  done and gives up the operation.  Without libposixext.so, waiters
+  cannot be interrupted, and operations that would block are polled.
+  <p>
+  The maximum number of waiter threads is set by the system property
+  <code>posix.ipc.waiters</code> and defaults to 16.
+ */
+final class IPCWaiter {
+  private IPCWaiter() { }
+
+  /** Returned by {@link Op#call} when the operation would block. */
+  static final Object AGAIN = new Object();
+
+  private static final long MIN_POLL = 50_000L;	// nanoseconds
+  private static final long MAX_POLL = 10_000_000L;
+
+  /** A retryable IPC operation. */
+  abstract static class Op {
+    /** Try the operation.  A blocking call interrupted by a signal
+      (EINTR) must also return AGAIN, so that a cancelled waiter can
+      give up.
+      @param nowait true to fail with AGAIN rather than block
+      @return the result, or AGAIN
+     */
+    abstract Object call(boolean nowait) throws IPCException;
+    /** Undo an operation that completed after its future was cancelled. */
+    void undo(Object result) throws IPCException { }
+  }
+
+  private static ThreadFactory daemons(final String name) {
+    final AtomicInteger cnt = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r,name + "-" + cnt.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  private static final ThreadPoolExecutor waiters = new ThreadPoolExecutor(
+      0,Integer.getInteger("posix.ipc.waiters",16),30L,TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(),daemons("posix-ipc-waiter"));
+
+  private static final ScheduledExecutorService poller =
+      Executors.newSingleThreadScheduledExecutor(daemons("posix-ipc-poller"));
+
+  /** True if waiters can be interrupted. */
+  private static final boolean WAKE = LoadLibrary.hasExt() && wakeinit() > 0;
+
+  /** The waiter thread running an operation. */
+  private static final class Waiter {
+    private int tid;		// native thread id, 0 when not running
+
+    synchronized void start() { tid = gettid(); }
+    synchronized void stop() { tid = 0; }
+
+    /** Interrupt the system call of the waiter until it stops.  A signal
+      sent just before the call is lost, so it is repeated. */
+    synchronized void wake() {
+      if (tid == 0) return;
+      IPCWaiter.wake(tid);
+      poller.schedule(this::wake,10L,TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Start an operation and return a future for its result. */
+  @SuppressWarnings("unchecked")
+  static <T> CompletableFuture<T> submit(final Op op) {
+    final CompletableFuture<T> f = new CompletableFuture<>();
+    try {
+      Object rc = op.call(true);
+      if (rc != AGAIN) {
+	f.complete((T)rc);
+	return f;
+      }
+    }
+    catch (IPCException x) {
+      f.completeExceptionally(x);
+      return f;
+    }
+    if (!WAKE) {
+      poll(f,op,MIN_POLL);
+      return f;
+    }
+    final Waiter w = new Waiter();
+    try {
+      waiters.execute(() -> {
+	w.start();
+	try {
+	  while (!f.isDone()) {
+	    Object rc = op.call(false);
+	    if (rc != AGAIN) {
+	      complete(f,op,rc);
+	      break;
+	    }
+	  }
+	}
+	catch (IPCException | RuntimeException x) {
+	  f.completeExceptionally(x);
+	}
+	finally {
+	  w.stop();
+	}
+      });
+      f.whenComplete((rc,x) -> {
+	if (f.isCancelled()) w.wake();
+      });
+    }
+    catch (RejectedExecutionException x) {
+      poll(f,op,MIN_POLL);
+    }
+    return f;
+  }
+
+  /** Complete a future, undoing the operation if it was cancelled. */
+  @SuppressWarnings("unchecked")
+  private static <T> void complete(CompletableFuture<T> f,Op op,Object rc)
+	throws IPCException {
+    if (!f.complete((T)rc))
+      op.undo(rc);
+  }
+
+  private static <T> void poll(final CompletableFuture<T> f,final Op op,
+	final long delay) {
+    poller.schedule(() -> {
+      if (f.isDone()) return;
+      try {
+	Object rc = op.call(true);
+	if (rc == AGAIN)
+	  poll(f,op,Math.min(delay * 2,MAX_POLL));
+	else
+	  complete(f,op,rc);
+      }
+      catch (IPCException | RuntimeException x) {
+	f.completeExceptionally(x);
+      }
+    },delay,TimeUnit.NANOSECONDS);
+  }
+
+  /** Install a handler for the wake signal that does nothing, so that
+    it interrupts system calls.
+    @return the signal, or errno|0x80000000 */
+  private static native int wakeinit();
+  /** Return the native id of the calling thread. */
+  private static native int gettid();
+  /** Send the wake signal to a thread of this process. */
+  private static native int wake(int tid);
+}
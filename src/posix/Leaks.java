@@ -0,0 +1,88 @@
+package posix;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The safety net for native resources that are not closed.  Objects
+  owning C memory, IPC ids or lock files should be closed or disposed
+  explicitly, but if one becomes unreachable first, its resource is
+  released by a {@link Cleaner}.  Unlike finalization, this costs
+  nothing for objects that are closed, and the object itself cannot be
+  resurrected.
+  <p>
+  When the system property <code>posix.leaks</code> is true, the stack
+  trace where each resource was allocated is recorded.  A resource
+  released by the Cleaner is then reported on System.err with that
+  trace, and {@link #open} lists the resources not yet released.
+ */
+public final class Leaks {
+  private Leaks() { }
+
+  /** True if allocation stack traces are recorded. */
+  public static final boolean TRACKING = Boolean.getBoolean("posix.leaks");
+
+  private static final Set<Handle> live = ConcurrentHashMap.newKeySet();
+
+  /** Return the allocation traces of resources that have not been
+    released, or an empty list if not tracking.  The message of each
+    trace names the kind of resource. */
+  public static List<Throwable> open() {
+    List<Throwable> l = new ArrayList<>();
+    for (Handle h: live)
+      l.add(h.origin);
+    return l;
+  }
+
+  /** Register an object owning a native resource.  The release action
+    must not refer to the object, or it will never become unreachable.
+    @param obj	the owner of the resource
+    @param what	the kind of resource, for reports, or null if the
+		resource need not be released explicitly
+    @param release	releases the resource, or null if there is nothing
+		to release but the object should still be tracked
+   */
+  static Handle register(Object obj,String what,Runnable release) {
+    Handle h = new Handle(what,release);
+    h.cleanable = CPtr.cleaner.register(obj,h);
+    if (h.origin != null)
+      live.add(h);
+    return h;
+  }
+
+  /** The registration of one resource. */
+  static final class Handle implements Runnable {
+    private final Runnable release;
+    private final Throwable origin;
+    private Cleaner.Cleanable cleanable;
+    private volatile boolean closed;
+
+    private Handle(String what,Runnable release) {
+      this.release = release;
+      this.origin = TRACKING && what != null
+	? new Throwable(what + " allocated") : null;
+    }
+
+    /** The resource was released explicitly.  Unregister without
+      running the release action. */
+    void close() {
+      closed = true;
+      cleanable.clean();
+    }
+
+    /** Run by the Cleaner, or by close. */
+    public void run() {
+      if (origin != null)
+	live.remove(this);
+      if (closed) return;
+      if (origin != null) {
+	System.err.println("posix: resource was not closed");
+	origin.printStackTrace();
+      }
+      if (release != null)
+	release.run();
+    }
+  }
+}
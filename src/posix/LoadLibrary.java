@@ -9,23 +9,27 @@ import java.io.InputStream;
 public class LoadLibrary
 {
   private static final String RESOURCE_PATH = "/jnl/libposix.so";
+  /** The natives added since libposix.so, built from jni/posixext.cc. */
+  private static final String EXT_PATH = "/jnl/libposixext.so";
+  private static boolean loaded;
+  private static boolean extLoaded;
   
-  protected static void loadPosix()
+  /** Load the posix library once.  Each copy loaded would have its own
+    cached JNI IDs, and natives could bind to a copy never initialized. */
+  protected static synchronized void loadPosix()
   {
+    if (loaded)
+      return;
     try
     {
-      InputStream in = LoadLibrary.class.getClass().getResource(RESOURCE_PATH).openStream();
-      File so = File.createTempFile("posix", ".so");
-      FileOutputStream out = new FileOutputStream(so);
-      
-      byte[] buf = new byte[2048];
-      int i;
-      while ((i = in.read(buf)) != -1)
-        out.write(buf, 0, i);
-      in.close();
-      out.close();
-      so.deleteOnExit();
-      System.load(so.toString());
+      load(LoadLibrary.class.getResource(RESOURCE_PATH).openStream());
+      loaded = true;
+      InputStream ext = LoadLibrary.class.getResourceAsStream(EXT_PATH);
+      if (ext != null)
+      {
+        load(ext);
+        extLoaded = true;
+      }
     }
     catch (FileNotFoundException e)
     {
@@ -38,4 +42,40 @@ public class LoadLibrary
       System.exit(1);
     }
   }
+
+  /** Copy a library to a temporary file and load it. */
+  private static void load(InputStream in) throws IOException
+  {
+    File so = File.createTempFile("posix", ".so");
+    FileOutputStream out = new FileOutputStream(so);
+    
+    byte[] buf = new byte[2048];
+    int i;
+    while ((i = in.read(buf)) != -1)
+      out.write(buf, 0, i);
+    in.close();
+    out.close();
+    so.deleteOnExit();
+    System.load(so.toString());
+  }
+
+  /** Check that libposixext.so was loaded, before a method that needs
+    its natives.
+    @param what	the feature, for the error message
+    @throws UnsatisfiedLinkError if it was not found
+   */
+  static void requireExt(String what)
+  {
+    loadPosix();
+    if (!extLoaded)
+      throw new UnsatisfiedLinkError(what + " needs " + EXT_PATH
+        + ", built from jni/posixext.cc");
+  }
+
+  /** True if libposixext.so was loaded. */
+  static boolean hasExt()
+  {
+    loadPosix();
+    return extLoaded;
+  }
 }
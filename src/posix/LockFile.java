@@ -8,8 +8,9 @@ import java.io.*;
  * a race condition when removing stale locks.
  */
 
-public class LockFile {
+public class LockFile implements AutoCloseable {
 	private java.io.File lockfile;
+	private Leaks.Handle handle;
 
 	@SuppressWarnings("resource")
 	private void checkPID(int mypid) throws IOException {
@@ -47,14 +48,12 @@ public class LockFile {
 			lf.close();
 			checkPID(pid);
 		}
-	}
-
-	/** Remove the lockfile when garbage collected. */
-	public void finalize() {
-		final java.io.File lockfile = this.lockfile;
-		delete();
-		if (lockfile != null)
-			System.err.println("Released LockFile: " + lockfile);
+		// remove the lockfile if garbage collected without delete
+		final java.io.File file = lockfile;
+		handle = Leaks.register(this, "LockFile", () -> {
+			file.delete();
+			System.err.println("Released LockFile: " + file);
+		});
 	}
 
 	/** Remove the lockfile. */
@@ -62,9 +61,15 @@ public class LockFile {
 		if (lockfile != null) {
 			lockfile.delete();
 			lockfile = null;
+			handle.close();
 		}
 	}
 
+	/** Same as {@link #delete}, for try-with-resources. */
+	public void close() {
+		delete();
+	}
+
 	/**
 	 * Exercise LockFile. Create one or more lock files from command line, print
 	 * an error if they cannot all be locked at once, and remove them when user
@@ -27,7 +27,7 @@ Boston, MA  02111-1307, USA.
 
  */
 
-public class Malloc extends CPtr {
+public class Malloc extends CPtr implements AutoCloseable {
   public Malloc(int size) {
     super(malloc(size),size);
     if (addr == NULL)
@@ -36,16 +36,41 @@ public class Malloc extends CPtr {
       free();
       throw new IllegalArgumentException("malloc");
     }
+    final long caddr = addr;
+    track("Malloc",() -> free(caddr));
   }
 
-  protected void finalize() { free(); }
+  /** Allocate C memory of any size, which is accessed beyond 2G with the
+    long offset methods of CPtr. */
+  public Malloc(long size) {
+    super(size < 0 ? NULL
+	: size <= Integer.MAX_VALUE ? malloc((int)size) : malloc2G(size),size);
+    if (size < 0)
+      throw new IllegalArgumentException("malloc");
+    if (addr == NULL)
+      throw new OutOfMemoryError("malloc");
+    final long caddr = addr;
+    track("Malloc",() -> free(caddr));
+  }
 
+  /** Release the C memory.  Any further access through this CPtr fails,
+    and the memory is returned to malloc once no ByteBuffer views of it
+    remain.  If a Malloc becomes unreachable without being freed, the
+    memory is freed by a {@link java.lang.ref.Cleaner}.
+   */
   public synchronized void free() {
-    size = 0;	// prevent further access
-    free(addr);
-    addr = NULL;
+    final long caddr = addr;
+    release(() -> free(caddr));
   }
 
+  /** Same as {@link #free}, for try-with-resources. */
+  public void close() { free(); }
+
   private static native long malloc(int size);
+  private static native long malloc64(long size);
+  private static long malloc2G(long size) {
+    LoadLibrary.requireExt("Malloc over 2G");
+    return malloc64(size);
+  }
   private static native void free(long caddr);
 }
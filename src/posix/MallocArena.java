@@ -0,0 +1,309 @@
+package posix;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A pool of C memory blocks for buffers that are allocated and freed
+  at a high rate, e.g. messages sent with {@link MsgQ#send(CPtr,int,int)}.
+  Memory is obtained from malloc in large chunks and divided into
+  blocks whose sizes are powers of 2 from 16 bytes.  A block closed with
+  {@link Block#close} goes back on the free list of its size, Block
+  object and all, so after warming up, alloc and close do not call
+  malloc or free, nor allocate in Java.
+  <p>
+  A closed block is released like {@link Malloc#free}: further access
+  fails, and it goes back on the free list once no ByteBuffer view of it
+  remains.  Since alloc hands out the same Block again with a new
+  {@link Block#generation}, a reference kept after close may reach the
+  memory of a later alloc.  Code that may hold a stale reference should
+  close with {@link Block#close(int)}.  A Block that becomes unreachable
+  without being closed is returned to its free list by a
+  {@link java.lang.ref.Cleaner}.
+  An arena that becomes unreachable without being closed is closed the
+  same way.  An arena is not reachable from free blocks, only from the
+  blocks in use.
+  <p>
+  Closing the arena releases the blocks still in use, and frees the
+  chunks once every block has been returned.
+ */
+public class MallocArena implements AutoCloseable {
+  private static final int MIN_SHIFT = 4;	// smallest block is 16 bytes
+
+  private final Pool pool;
+  private final Cleaner.Cleanable cleanable;
+
+  /** A block of C memory from an arena.  The size of the CPtr is the
+    size of its class, which may be more than requested. */
+  public static final class Block extends CPtr implements AutoCloseable {
+    private final int cls;
+    private final long base;		// the memory, also while closed
+    private final Runnable back;	// puts the closed block on its free list
+    private volatile int gen;
+    private MallocArena arena;	// keeps arena alive while in use
+
+    private Block(MallocArena arena,int cls,long addr) {
+      super(addr,1 << (cls + MIN_SHIFT));
+      this.cls = cls;
+      this.arena = arena;
+      base = addr;
+      Pool pool = arena.pool;
+      back = () -> pool.put(this);
+      track(null,new Reclaim(pool,cls,addr));
+    }
+
+    /** Hand out a closed block again. */
+    private synchronized void open(MallocArena arena) {
+      reopen(base,1 << (cls + MIN_SHIFT));
+      this.arena = arena;
+      gen++;
+    }
+
+    /** Return the generation of this block, which changes each time
+      alloc hands it out. */
+    public int generation() { return gen; }
+
+    /** Return the block to its arena, once its views are unreachable.
+      Only the first call has any effect until alloc hands the block
+      out again.  The block cannot be used afterwards. */
+    public void close() {
+      synchronized (this) {
+	arena = null;
+      }
+      recycle(back);
+    }
+
+    /** Close the block if it is still the given generation and open.
+      @return true if this call closed it */
+    public synchronized boolean close(int generation) {
+      if (gen != generation || addr == NULL) return false;
+      close();
+      return true;
+    }
+  }
+
+  /** Return the memory of a block that was never closed to its free list.
+   */
+  private static final class Reclaim implements Runnable {
+    private final Pool pool;
+    private final int cls;
+    private final long addr;
+    Reclaim(Pool pool,int cls,long addr) {
+      this.pool = pool;
+      this.cls = cls;
+      this.addr = addr;
+    }
+    public void run() { pool.put(cls,addr); }
+  }
+
+  /** The closed blocks of one size, used as a stack, and the memory of
+    blocks that were never closed. */
+  private static final class FreeList {
+    private Block[] blocks = new Block[16];
+    private int n;
+    private long[] addr = new long[4];
+    private int na;
+
+    synchronized Block pop() {
+      if (n == 0) return null;
+      Block b = blocks[--n];
+      blocks[n] = null;
+      return b;
+    }
+
+    synchronized long popAddr() {
+      return na > 0 ? addr[--na] : CPtr.NULL;
+    }
+
+    synchronized void push(Block b) {
+      if (n == blocks.length)
+	blocks = Arrays.copyOf(blocks,n * 2);
+      blocks[n++] = b;	// LIFO: reuse memory that is still in cache
+    }
+
+    synchronized void push(long a) {
+      if (na == addr.length)
+	addr = Arrays.copyOf(addr,na * 2);
+      addr[na++] = a;
+    }
+
+    synchronized void clear() {
+      Arrays.fill(blocks,0,n,null);
+      n = 0;
+      na = 0;
+    }
+  }
+
+  /** The state of an arena, shared with its blocks and cleaner actions. */
+  private static final class Pool implements Runnable {
+    private final int chunkSize;
+    private final FreeList[] free;
+    private final ArrayList<Malloc> chunks = new ArrayList<>();
+    private final ArrayList<WeakReference<Block>> blocks = new ArrayList<>();
+    private int purgeAt = 64;
+    private Malloc chunk;		// chunk being divided
+    private int top;			// offset of unused memory in chunk
+    private volatile boolean closed;
+    /** Blocks handed out and not yet back on a free list. */
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    Pool(int chunkSize,int nclasses) {
+      this.chunkSize = chunkSize;
+      free = new FreeList[nclasses];
+      for (int i = 0; i < nclasses; ++i)
+	free[i] = new FreeList();
+    }
+
+    /** Take a block off its free list, or carve a new one.  It is
+      counted in use first, so that close keeps the chunks, and what was
+      taken is dropped if the arena was closed meanwhile. */
+    Block take(int cls,MallocArena arena) {
+      inUse.incrementAndGet();
+      boolean ok = false;
+      try {
+	Block b = free[cls].pop();
+	long a = b == null ? free[cls].popAddr() : CPtr.NULL;
+	if (closed)
+	  throw new IllegalStateException("MallocArena closed");
+	if (b != null)
+	  b.open(arena);
+	else {
+	  b = new Block(arena,cls,a != CPtr.NULL ? a : carve(cls));
+	  add(b);
+	}
+	ok = true;
+	return b;
+      }
+      finally {
+	if (!ok) done();
+      }
+    }
+
+    void put(Block b) {
+      if (!closed)
+	free[b.cls].push(b);
+      done();
+    }
+
+    void put(int cls,long addr) {
+      if (!closed)
+	free[cls].push(addr);
+      done();
+    }
+
+    /** A block is back, free the chunks if it was the last after close. */
+    private void done() {
+      if (inUse.decrementAndGet() == 0 && closed)
+	freeChunks();
+    }
+
+    /** Make a new block from the current chunk, or a new chunk. */
+    private synchronized long carve(int cls) {
+      if (closed)
+	throw new IllegalStateException("MallocArena closed");
+      int size = 1 << (cls + MIN_SHIFT);
+      int align = Math.min(size,64) - 1;
+      int off = (top + align) & ~align;
+      if (chunk == null || off > chunk.size - size) {
+	chunk = new Malloc(Math.max(chunkSize,size));
+	chunks.add(chunk);
+	off = 0;
+      }
+      top = off + size;
+      return chunk.addr + off;
+    }
+
+    /** Remember a new block, so that close can release it while in use. */
+    private synchronized void add(Block b) {
+      if (blocks.size() >= purgeAt) {
+	blocks.removeIf(r -> r.get() == null);
+	purgeAt = Math.max(64,blocks.size() * 2);
+      }
+      blocks.add(new WeakReference<>(b));
+    }
+
+    /** Release the blocks in use, and free the chunks once they have
+      all been returned.  Run by close, or by the cleaner. */
+    public void run() {
+      ArrayList<Block> live = new ArrayList<>();
+      synchronized (this) {
+	if (closed) return;
+	closed = true;
+	for (WeakReference<Block> r: blocks) {
+	  Block b = r.get();
+	  if (b != null) live.add(b);
+	}
+	blocks.clear();
+      }
+      for (FreeList q: free)
+	q.clear();
+      for (Block b: live)
+	b.close();
+      if (inUse.get() == 0)
+	freeChunks();
+    }
+
+    private synchronized void freeChunks() {
+      for (Malloc m: chunks)
+	m.free();
+      chunks.clear();
+      chunk = null;
+    }
+  }
+
+  /** Create an arena.
+    @param chunkSize	bytes to obtain from malloc at a time
+    @param maxBlock	the largest block, rounded up to a power of 2
+   */
+  public MallocArena(int chunkSize,int maxBlock) {
+    if (maxBlock < 16 || maxBlock > 1 << 30 || chunkSize < maxBlock)
+      throw new IllegalArgumentException(
+	"MallocArena: bad sizes "+chunkSize+","+maxBlock);
+    int nclasses = 33 - Integer.numberOfLeadingZeros(maxBlock - 1) - MIN_SHIFT;
+    pool = new Pool(chunkSize,nclasses);
+    cleanable = CPtr.cleaner.register(this,pool);
+  }
+
+  /** Create an arena of 1M chunks and blocks up to 64K. */
+  public MallocArena() {
+    this(1 << 20,1 << 16);
+  }
+
+  /** Return the largest block. */
+  public int maxBlock() {
+    return 1 << (pool.free.length - 1 + MIN_SHIFT);
+  }
+
+  /** Allocate a block of at least <code>size</code> bytes.  Its contents
+    are whatever was last written to it.
+    @throws IllegalArgumentException if size is more than maxBlock
+    @throws IllegalStateException if the arena is closed
+   */
+  public Block alloc(int size) {
+    if (size < 0 || size > maxBlock())
+      throw new IllegalArgumentException("MallocArena: bad size "+size);
+    int cls = size <= 16 ? 0
+	: 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    return pool.take(cls,this);
+  }
+
+  /** Return the number of blocks in use. */
+  public int inUse() { return pool.inUse.get(); }
+
+  /** Return the bytes obtained from malloc. */
+  public long reserved() {
+    synchronized (pool) {
+      long n = 0;
+      for (Malloc m: pool.chunks) n += m.size;
+      return n;
+    }
+  }
+
+  /** Release all blocks of the arena, and free its memory once their
+    views are unreachable. */
+  public void close() {
+    cleanable.clean();
+  }
+}
@@ -1,5 +1,10 @@
 package posix;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /** Represent a posix message queue.
 
 @author <a href="mailto:stuart@bmsi.com">Stuart D. Gathman</a>
@@ -32,6 +37,8 @@ public class MsgQ extends IPC {
     id = msgget(key,flag);
     if (id < 0) throw new IPCException();
     owner = (flag & IPC_CREAT) != 0;
+    final int qid = id;
+    track("MsgQ",owner ? () -> msgctl(qid,IPC_RMID,null) : null);
   }
 
   public MsgQ(int qid) {
@@ -77,12 +84,50 @@ public class MsgQ extends IPC {
       @return message text size or errno|0x80000000
    */
   private static native int msgrcv0(int qid,long cadr,int sz,int type,int flg);
+  /** Send messages packed in a byte array, starting with message
+      <code>start</code>, stopping at the first error.
+      @return number of messages sent, or errno|0x80000000 if none
+   */
+  private static native int msgsndv(int qid,int[] type,byte[] buf,int[] off,
+	int[] len,int start,int cnt,int flag);
+  /** Receive up to <code>max</code> messages packed into a byte array
+      starting at <code>pos</code>.  Only the first receive uses
+      <code>flag</code> as given, the rest add IPC_NOWAIT.  Stops when
+      no more messages are waiting, or the next one does not fit.
+      @return number of messages received, or errno|0x80000000 if none
+   */
+  private static native int msgrcvv(int qid,int[] type,byte[] buf,int pos,
+	int[] off,int[] len,int max,int mtype,int flag);
+  /** Send a message from part of a byte array.
+      @return 0 or errno|0x80000000
+   */
+  private static native int msgsnd1(int qid,int type,byte[] msg,int off,
+	int len,int flag);
+  /** Receive a message into part of a byte array.
+      @return mtype &lt;&lt; 32 | message size, or -errno
+   */
+  private static native long msgrcv1(int qid,byte[] msg,int off,int len,
+	int mtype,int flag);
+  /** Send a message in native format from a direct ByteBuffer.
+      @return 0 or errno|0x80000000
+   */
+  private static native int msgsnd2(int qid,ByteBuffer msg,int pos,int size,
+	int flag);
+  /** Receive a message in native format into a direct ByteBuffer.
+      @return message text size or errno|0x80000000
+   */
+  private static native int msgrcv2(int qid,ByteBuffer msg,int pos,int size,
+	int mtype,int flag);
 
   /** Send a message contained in a byte array.
       @return 0 for success, -1 for failure
    */
   public int send(int type,byte[] msg,int size,int flag) {
-    if (size < msg.length) {	// FIXME: handle this in native code
+    if (size >= 0 && LoadLibrary.hasExt()) {
+      int rc = msgsnd1(id,type,msg,0,Math.min(size,msg.length),flag);
+      return rc < 0 ? -1 : 0;
+    }
+    if (size < msg.length) {	// the baseline native sends the whole array
       byte[] m = new byte[size];
       System.arraycopy(msg,0,m,0,size);
       msg = m;
@@ -91,6 +136,120 @@ public class MsgQ extends IPC {
     return msgsnd(id,type,msg,flag);
   }
 
+  /** Send a message contained in part of a byte array, without
+      copying or allocating in Java.
+      @param type	the mtype of the message, which must be positive
+      @return 0 for success, Errno.EAGAIN if queue full and IPC_NOWAIT
+		option specified.
+   */
+  public int send(int type,byte[] buf,int off,int len,int flag)
+	throws IPCException {
+    LoadLibrary.requireExt("MsgQ.send(byte[],off,len)");
+    if (off < 0 || len < 0 || off > buf.length - len)
+      throw new ArrayIndexOutOfBoundsException(
+	String.format("offset %d, length %d",off,len));
+    for (;;) {
+      int rc = msgsnd1(id,type,buf,off,len,flag);
+      if (rc < 0) {
+	rc = rc & 0x7FFFFFFF;
+	if (rc == Errno.EINTR) continue;
+	if (rc != Errno.EAGAIN)
+	  throw new IPCException("msgsnd",rc);
+      }
+      return rc;
+    }
+  }
+
+  /** Receive a message into part of a byte array, without allocating.
+      The mtype and size of the message are returned together, and can
+      be extracted with {@link #type} and {@link #size}.
+      @param mtype	selects which messages to receive
+      @param flag	options, e.g. IPC_NOWAIT, MSG_NOERROR
+      @return the mtype and size of the message, or -1 if IPC_NOWAIT was
+		given and no message was waiting
+   */
+  public long recv(byte[] buf,int off,int len,int mtype,int flag)
+	throws IPCException {
+    LoadLibrary.requireExt("MsgQ.recv(byte[],off,len)");
+    if (off < 0 || len < 0 || off > buf.length - len)
+      throw new ArrayIndexOutOfBoundsException(
+	String.format("offset %d, length %d",off,len));
+    for (;;) {
+      long rc = msgrcv1(id,buf,off,len,mtype,flag);
+      if (rc < 0) {
+	int err = (int)-rc;
+	if (err == Errno.EINTR) continue;
+	if (err == Errno.ENOMSG && (flag & IPC_NOWAIT) != 0) return -1L;
+	throw new IPCException("msgrcv("+id+")",err);
+      }
+      return rc;
+    }
+  }
+
+  /** Return the mtype from the result of
+    {@link #recv(byte[],int,int,int,int)}. */
+  public static int type(long rc) { return (int)(rc >>> 32); }
+  /** Return the message size from the result of
+    {@link #recv(byte[],int,int,int,int)}. */
+  public static int size(long rc) { return (int)rc; }
+
+  /** Send a message from a direct ByteBuffer without copying.  The
+      remaining bytes of the buffer are the message in native format,
+      like {@link #send(CPtr,int,int)}: a C long mtype followed by the
+      message text.  On success the position is advanced to the limit.
+      @return 0 for success, Errno.EAGAIN if queue full and IPC_NOWAIT
+		option specified.
+   */
+  public int send(ByteBuffer msg,int flag) throws IPCException {
+    LoadLibrary.requireExt("MsgQ.send(ByteBuffer)");
+    if (!msg.isDirect())
+      throw new IllegalArgumentException("MsgQ: direct buffer required");
+    int pos = msg.position();
+    int size = msg.remaining();
+    if (size < CLONG_SIZE)
+      throw new IllegalArgumentException("MsgQ: message too small");
+    for (;;) {
+      int rc = msgsnd2(id,msg,pos,size - CLONG_SIZE,flag);
+      if (rc < 0) {
+	rc = rc & 0x7FFFFFFF;
+	if (rc == Errno.EINTR) continue;
+	if (rc != Errno.EAGAIN)
+	  throw new IPCException("msgsnd",rc);
+	return rc;
+      }
+      msg.position(pos + size);
+      return rc;
+    }
+  }
+
+  /** Receive a message into a direct ByteBuffer without copying.  The
+      message is stored in native format at the position, like
+      {@link #recv(CPtr,int,int)}: a C long mtype followed by the message
+      text.  The position is advanced past the message.
+      @return the message size including the mtype, or -1 if IPC_NOWAIT
+		was given and no message was waiting
+   */
+  public int recv(ByteBuffer msg,int mtype,int flag) throws IPCException {
+    LoadLibrary.requireExt("MsgQ.recv(ByteBuffer)");
+    if (!msg.isDirect())
+      throw new IllegalArgumentException("MsgQ: direct buffer required");
+    int pos = msg.position();
+    int size = msg.remaining();
+    if (size < CLONG_SIZE)
+      throw new IllegalArgumentException("MsgQ: message too small");
+    for (;;) {
+      int rc = msgrcv2(id,msg,pos,size - CLONG_SIZE,mtype,flag);
+      if (rc < 0) {
+	rc = rc & 0x7FFFFFFF;
+	if (rc == Errno.EINTR) continue;
+	if (rc == Errno.ENOMSG && (flag & IPC_NOWAIT) != 0) return -1;
+	throw new IPCException("msgrcv("+id+")",rc);
+      }
+      msg.position(pos + rc + CLONG_SIZE);
+      return rc + CLONG_SIZE;
+    }
+  }
+
   /** Receive a message in a byte array. 
      @param mtype selects which messages to receive
      @param type returns the mtype of the message received
@@ -102,6 +261,206 @@ public class MsgQ extends IPC {
     return msgrcv(id,type,msg,flag);
   }
 
+  /** Send a batch of messages packed in a byte array with a single JNI
+      call.  Message i has mtype <code>type[i]</code> and is
+      <code>len[i]</code> bytes at <code>off[i]</code> in <code>buf</code>.
+      A signal during the batch does not lose messages - sending resumes
+      where it left off.
+      @param cnt	the number of messages to send
+      @param flag	options, e.g. IPC_NOWAIT
+      @return the number of messages sent, which is less than cnt only
+	if IPC_NOWAIT was given and the queue filled
+      @throws BatchException if a send fails, with the number of
+	messages sent before it
+   */
+  public int sendBatch(int[] type,byte[] buf,int[] off,int[] len,int cnt,
+	int flag) throws IPCException {
+    LoadLibrary.requireExt("MsgQ.sendBatch");
+    if (cnt < 0 || cnt > type.length || cnt > off.length || cnt > len.length)
+      throw new IllegalArgumentException("MsgQ: bad batch count "+cnt);
+    for (int i = 0; i < cnt; ++i) {
+      if (off[i] < 0 || len[i] < 0 || off[i] > buf.length - len[i])
+	throw new ArrayIndexOutOfBoundsException(
+	  String.format("message %d: offset %d, length %d",i,off[i],len[i]));
+    }
+    int n = 0;
+    while (n < cnt) {
+      int rc = msgsndv(id,type,buf,off,len,n,cnt - n,flag);
+      if (rc < 0) {
+	rc = rc & 0x7FFFFFFF;
+	if (rc == Errno.EINTR) continue;
+	if (rc == Errno.EAGAIN && (flag & IPC_NOWAIT) != 0) break;
+	throw new BatchException("msgsnd",rc,n);
+      }
+      n += rc;
+    }
+    return n;
+  }
+
+  /** A batch send failed after sending some of the messages. */
+  public static class BatchException extends IPCException {
+    private static final long serialVersionUID = 1L;
+    private final int sent;
+
+    public BatchException(String tag,int errno,int sent) {
+      super(tag + " after " + sent + " sent",errno);
+      this.sent = sent;
+    }
+
+    /** Return the number of messages sent before the error. */
+    public int getSent() { return sent; }
+  }
+
+  /** Send a batch of messages with the same mtype.  The messages are
+      packed into one array and sent with a single JNI call.
+      @return the number of messages sent, as for
+	{@link #sendBatch(int[],byte[],int[],int[],int,int)}
+   */
+  public int sendBatch(int type,List<byte[]> msgs,int flag)
+	throws IPCException {
+    int cnt = msgs.size();
+    int[] types = new int[cnt];
+    int[] off = new int[cnt];
+    int[] len = new int[cnt];
+    int size = 0;
+    for (int i = 0; i < cnt; ++i) {
+      types[i] = type;
+      off[i] = size;
+      len[i] = msgs.get(i).length;
+      size += len[i];
+    }
+    byte[] buf = new byte[size];
+    for (int i = 0; i < cnt; ++i)
+      System.arraycopy(msgs.get(i),0,buf,off[i],len[i]);
+    return sendBatch(types,buf,off,len,cnt,flag);
+  }
+
+  /** Receive a batch of messages with a single JNI call.  The first
+      message is received according to <code>flag</code>, and may block.
+      Further messages are received only if they are already waiting,
+      until <code>max</code> messages have been received or the next
+      one does not fit in the rest of <code>buf</code>.  Messages are
+      packed into <code>buf</code> in order.
+      @param type	returns the mtype of each message
+      @param off	returns the offset of each message in buf
+      @param len	returns the length of each message
+      @param max	the maximum number of messages to receive
+      @param mtype	selects which messages to receive
+      @param flag	options, e.g. IPC_NOWAIT, MSG_NOERROR
+      @return the number of messages received, or 0 if IPC_NOWAIT was
+	given and no message was waiting
+      @throws IPCException if the first receive fails
+   */
+  public int recvBatch(int[] type,byte[] buf,int[] off,int[] len,int max,
+	int mtype,int flag) throws IPCException {
+    LoadLibrary.requireExt("MsgQ.recvBatch");
+    if (max < 0 || max > type.length || max > off.length || max > len.length)
+      throw new IllegalArgumentException("MsgQ: bad batch count "+max);
+    if (max == 0) return 0;
+    for (;;) {
+      int rc = msgrcvv(id,type,buf,0,off,len,max,mtype,flag);
+      if (rc < 0) {
+	rc = rc & 0x7FFFFFFF;
+	if (rc == Errno.EINTR) continue;
+	if (rc == Errno.ENOMSG && (flag & IPC_NOWAIT) != 0) return 0;
+	throw new IPCException("msgrcv("+id+")",rc);
+      }
+      return rc;
+    }
+  }
+
+  /** A message received by {@link #recvAsync}. */
+  public static class Message {
+    /** The mtype of the message. */
+    public final int type;
+    /** The message text. */
+    public final byte[] data;
+    public Message(int type,byte[] data) {
+      this.type = type;
+      this.data = data;
+    }
+  }
+
+  /** Receive a message without blocking the calling thread.  If no
+      message is waiting, the blocking receive is done by a dedicated
+      waiter thread, so this is safe to call from virtual threads.
+      Cancelling the future interrupts the waiter.  If the message was
+      already received, it is sent back to the queue as by
+      {@link #sendBack}, behind any messages sent meanwhile.
+      @param mtype	selects which messages to receive
+      @param maxSize	the largest message text to accept
+      @param flag	options, e.g. MSG_NOERROR.  With IPC_NOWAIT, the
+		future completes with null if no message is waiting.
+      @return a future for the message
+   */
+  public CompletableFuture<Message> recvAsync(int mtype,int maxSize,
+	int flag) {
+    return recvAsync(mtype,new byte[maxSize],maxSize,flag);
+  }
+
+  /** Receive like {@link #recvAsync(int,int,int)}, into a buffer of at
+      least <code>maxSize</code> bytes owned by the caller.  The caller
+      must not use it while the future is pending, nor at all once it has
+      cancelled the future, since the waiter may still be receiving.
+   */
+  CompletableFuture<Message> recvAsync(final int mtype,final byte[] buf,
+	final int maxSize,final int flag) {
+    LoadLibrary.requireExt("MsgQ.recvAsync");
+    if (maxSize < 0 || maxSize > buf.length)
+      throw new IllegalArgumentException("MsgQ: bad size "+maxSize);
+    return IPCWaiter.submit(new IPCWaiter.Op() {
+      Object call(boolean nowait) throws IPCException {
+	long rc = msgrcv1(id,buf,0,maxSize,mtype,
+	    nowait ? flag | IPC_NOWAIT : flag);
+	if (rc < 0) {
+	  int err = (int)-rc;
+	  if (err == Errno.EINTR) return IPCWaiter.AGAIN;
+	  if (err == Errno.ENOMSG && (flag & IPC_NOWAIT) != 0) return null;
+	  if (err == Errno.ENOMSG && nowait) return IPCWaiter.AGAIN;
+	  throw new IPCException("msgrcv("+id+")",err);
+	}
+	return new Message(type(rc),Arrays.copyOf(buf,size(rc)));
+      }
+      void undo(Object rc) throws IPCException {
+	Message m = (Message)rc;
+	if (m != null)
+	  sendBack(m);
+      }
+    });
+  }
+
+  /** Send a message without blocking the calling thread.  If the queue
+      is full, the blocking send is done by a dedicated waiter thread.
+      @param flag	options.  With IPC_NOWAIT, the future completes
+		exceptionally if the queue is full.
+      @return a future that completes when the message has been sent
+   */
+  public CompletableFuture<Void> sendAsync(final int type,final byte[] msg,
+	final int flag) {
+    LoadLibrary.requireExt("MsgQ.sendAsync");
+    return IPCWaiter.submit(new IPCWaiter.Op() {
+      Object call(boolean nowait) throws IPCException {
+	int rc = msgsnd1(id,type,msg,0,msg.length,
+	    nowait ? flag | IPC_NOWAIT : flag);
+	if (rc == 0) return null;
+	rc &= 0x7FFFFFFF;
+	if (rc == Errno.EINTR || rc == Errno.EAGAIN && nowait)
+	  return IPCWaiter.AGAIN;
+	throw new IPCException("msgsnd",rc);
+      }
+    });
+  }
+
+  /** Return a message received for a cancelled future to the queue.
+      This never blocks: if the queue is full, the message is sent by
+      {@link #sendAsync}.  It goes to the back of the queue, so it may be
+      received after messages sent later.
+   */
+  void sendBack(Message m) throws IPCException {
+    if (send(m.type,m.data,0,m.data.length,IPC_NOWAIT) != 0)
+      sendAsync(m.type,m.data,0);
+  }
+
   /** Send a message contained in a CPtr.  This can be convenient when
       it is necessary to build C data structures in the message to interface
       with C code.  Unlike the posix system call, the size is the actual
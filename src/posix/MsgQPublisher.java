@@ -0,0 +1,201 @@
+package posix;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Publish the messages of a {@link MsgQ} as a reactive stream.  Each
+  subscriber receives messages selected by an mtype, and messages are
+  only taken from the queue when the subscriber has requested them.
+  Until then they stay in the kernel queue, so a slow subscriber
+  applies backpressure to the processes sending to the queue instead of
+  messages being buffered in the JVM.
+  <p>
+  Waiting messages are drained in batches with
+  {@link MsgQ#recvBatch}.  When the queue is empty, the subscription
+  waits with {@link MsgQ#recvAsync}, so no thread of the caller is
+  blocked.  Each subscriber competes for messages with every other
+  receiver of the queue.  The stream completes when the queue is
+  removed, and fails on any other IPC error.
+  <p>
+  Both receive into one buffer per subscription, of maxSize times batch
+  bytes but no more than 64K unless maxSize is larger, so a batch of
+  large messages may take several calls.
+  <p>
+  A message received by the asynchronous wait but not yet delivered
+  when the subscription is cancelled is sent back to the queue with
+  {@link MsgQ#sendBack}, behind any messages sent meanwhile.
+ */
+public class MsgQPublisher implements Flow.Publisher<MsgQ.Message> {
+  private final MsgQ q;
+  private final int mtype;
+  private final int maxSize;
+  private final int flag;
+  private final int batch;
+  /** The most bytes to buffer for a batch, unless maxSize is larger. */
+  private static final int BATCH_BYTES = 64 * 1024;
+
+  /** Publish messages from a queue.
+    @param q	the message queue
+    @param mtype	selects which messages to receive
+    @param maxSize	the largest message text to accept
+    @param flag	options, e.g. MSG_NOERROR
+    @param batch	the most messages to receive with one JNI call
+   */
+  public MsgQPublisher(MsgQ q,int mtype,int maxSize,int flag,int batch) {
+    if (maxSize < 0 || batch < 1)
+      throw new IllegalArgumentException("MsgQPublisher: bad size");
+    this.q = q;
+    this.mtype = mtype;
+    this.maxSize = maxSize;
+    this.flag = flag & ~IPC.IPC_NOWAIT;
+    this.batch = batch;
+  }
+
+  public MsgQPublisher(MsgQ q,int mtype,int maxSize) {
+    this(q,mtype,maxSize,0,64);
+  }
+
+  public void subscribe(Flow.Subscriber<? super MsgQ.Message> s) {
+    if (s == null) throw new NullPointerException();
+    Sub sub = new Sub(s);
+    s.onSubscribe(sub);
+    sub.drain();
+  }
+
+  /** A subscription.  Signals to the subscriber are serialized by
+    the work in progress count: only the thread that raises it from
+    zero runs the drain loop. */
+  private final class Sub implements Flow.Subscription {
+    private final Flow.Subscriber<? super MsgQ.Message> s;
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final int[] type = new int[batch];
+    private final int[] off = new int[batch];
+    private final int[] len = new int[batch];
+    private final byte[] buf;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+    private volatile CompletableFuture<MsgQ.Message> pending;
+    /** A message received by the async wait, not yet delivered. */
+    private final AtomicReference<MsgQ.Message> ready =
+      new AtomicReference<>();
+
+    Sub(Flow.Subscriber<? super MsgQ.Message> s) {
+      this.s = s;
+      this.buf = new byte[Math.max(maxSize,
+	  (int)Math.min(BATCH_BYTES,(long)maxSize * batch))];
+    }
+
+    public void request(long n) {
+      if (n <= 0)
+	error = new IllegalArgumentException("non-positive request: "+n);
+      else {
+	long r, u;
+	do {
+	  r = requested.get();
+	  u = r + n < 0 ? Long.MAX_VALUE : r + n;
+	} while (!requested.compareAndSet(r,u));
+      }
+      drain();
+    }
+
+    public void cancel() {
+      cancelled = true;
+      CompletableFuture<MsgQ.Message> f = pending;
+      if (f != null) f.cancel(false);
+      sendBack();
+    }
+
+    /** Return an undelivered message to the queue.  Called after
+      cancelled is set, both by cancel and when a wait completes, so
+      whichever runs last finds the message. */
+    private void sendBack() {
+      MsgQ.Message m = ready.getAndSet(null);
+      if (m == null) return;
+      try {
+	q.sendBack(m);
+      }
+      catch (IPCException x) { }	// the queue is gone
+    }
+
+    void drain() {
+      if (wip.getAndIncrement() != 0) return;
+      int missed = 1;
+      do {
+	if (!cancelled) step();
+	missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    /** Deliver as many messages as have been requested and are
+      waiting, then wait asynchronously for more if there is demand. */
+    private void step() {
+      Throwable x = error;
+      if (x != null) {
+	fail(x);
+	return;
+      }
+      long r = requested.get();
+      long e = 0;
+      MsgQ.Message m = r > 0 ? ready.getAndSet(null) : null;
+      if (m != null) {
+	s.onNext(m);
+	++e;
+      }
+      try {
+	while (e < r && !cancelled && pending == null && ready.get() == null) {
+	  int k = (int)Math.min(r - e,batch);
+	  int n = q.recvBatch(type,buf,off,len,k,mtype,flag | IPC.IPC_NOWAIT);
+	  if (n == 0) {
+	    await();
+	    break;
+	  }
+	  for (int i = 0; i < n; ++i)
+	    s.onNext(new MsgQ.Message(type[i],
+		Arrays.copyOfRange(buf,off[i],off[i] + len[i])));
+	  e += n;
+	}
+      }
+      catch (IPCException ex) {
+	fail(ex);
+      }
+      if (e > 0)
+	requested.addAndGet(-e);
+    }
+
+    /** Wait for a message.  The batch loop does not run while the wait
+      is pending, so the wait can use its buffer. */
+    private void await() {
+      CompletableFuture<MsgQ.Message> f = q.recvAsync(mtype,buf,maxSize,flag);
+      pending = f;
+      f.whenComplete((m,x) -> {
+	if (x != null) {
+	  if (!f.isCancelled()) error = x;
+	}
+	else if (m != null) {
+	  ready.set(m);
+	  if (cancelled) sendBack();
+	}
+	pending = null;
+	drain();
+      });
+    }
+
+    private void fail(Throwable x) {
+      cancelled = true;
+      sendBack();
+      Throwable cause = x instanceof CompletionException && x.getCause() != null
+	? x.getCause() : x;
+      if (cause instanceof IPCException
+	  && ((IPCException)cause).getErrno() == Errno.EIDRM)
+	s.onComplete();
+      else
+	s.onError(cause);
+    }
+  }
+}
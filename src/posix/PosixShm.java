@@ -0,0 +1,295 @@
+package posix;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A posix shared memory object, opened with <code>shm_open</code> and
+  mapped with <code>mmap</code>.  Unlike a {@link SharedMem} segment, its
+  size is a long and is not limited by <code>shmmax</code>, it can grow
+  with {@link #grow}, and it appears as a file in <code>/dev/shm</code>
+  on Linux, where it can be listed and removed with ordinary tools.
+  <p>
+  The object is accessed through CPtrs.  {@link #attach} returns a CPtr
+  over the whole object, which beyond 2G is accessed with the long offset
+  methods of CPtr, and {@link #getCPtr} a CPtr over part of it.
+  All of them share one mapping, which is unmapped once the PosixShm is
+  closed and no CPtr or ByteBuffer view of it remains.  After close,
+  access through the CPtrs fails.
+  <p>
+  Growing the object maps it again at its new size.  CPtrs already
+  returned keep the old mapping, which still addresses the same memory.
+  The object must never shrink while mapped by any process: access
+  beyond the end of the object raises SIGBUS, which kills the JVM.
+  <p>
+  The flag values are those of Linux.
+ */
+public class PosixShm implements AutoCloseable {
+  /** Flags for the constructor. */
+  public static final int
+    O_CREAT = 0100,		// create the object if it doesn't exist
+    O_EXCL = 0200,		// fail if the object exists
+    O_TRUNC = 01000;		// truncate an existing object to 0
+  /** Options for mapping the object. */
+  public static final int
+    POPULATE = 1,		// fault in all pages when mapped
+    HUGE_PAGES = 2;		// ask for transparent huge pages
+
+  private static final int O_RDWR = 2;
+  private static final int PROT_READ = 1, PROT_WRITE = 2;
+  private static final int MAP_SHARED = 1, MAP_POPULATE = 0x8000;
+  private static final int MADV_HUGEPAGE = 14;
+
+  static {
+    LoadLibrary.loadPosix();
+  }
+
+  private final String name;
+  private final int options;
+  private final State state;
+  private final Leaks.Handle handle;
+  private final ArrayList<Window> windows = new ArrayList<>();
+  private int purgeAt = 64;
+  private CPtr whole;		// returned by attach
+
+  /** One mmap of the object.  Each CPtr over it, and the PosixShm while
+    the mapping is current, holds a reference. */
+  private static final class Mapping {
+    final long addr;
+    final long len;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    Mapping(long addr,long len) {
+      this.addr = addr;
+      this.len = len;
+    }
+    Mapping ref() {
+      refs.incrementAndGet();
+      return this;
+    }
+    void unref() {
+      if (refs.decrementAndGet() == 0)
+	munmap(addr,len);
+    }
+  }
+
+  /** A CPtr returned by getCPtr, and the mapping it holds. */
+  private static final class Window extends WeakReference<CPtr> {
+    final Mapping map;
+    Window(CPtr w,Mapping map) {
+      super(w);
+      this.map = map;
+    }
+  }
+
+  /** The file descriptor and current mapping.  Run by close, or by the
+    cleaner if the PosixShm is never closed. */
+  private static final class State implements Runnable {
+    int fd;
+    Mapping map;	// null when the object is empty, or closed
+    boolean closed;
+    State(int fd) { this.fd = fd; }
+    public synchronized void run() {
+      if (closed) return;
+      closed = true;
+      if (map != null) map.unref();
+      map = null;
+      closefd(fd);
+    }
+  }
+
+  /** Open or create a shared memory object.
+    @param name	a name of the form "/name"
+    @param size	the minimum size; a smaller object is extended
+		with zeros
+    @param oflag	O_CREAT, O_EXCL and O_TRUNC
+    @param mode	permissions for a new object
+    @param options	POPULATE and HUGE_PAGES
+   */
+  public PosixShm(String name,long size,int oflag,int mode,int options)
+    throws IPCException {
+    if (size < 0)
+      throw new IllegalArgumentException("PosixShm: bad size "+size);
+    LoadLibrary.requireExt("PosixShm");
+    this.name = name;
+    this.options = options;
+    int fd = shmOpen(name,(oflag & (O_CREAT|O_EXCL|O_TRUNC)) | O_RDWR,mode);
+    if (fd < 0)
+      throw new IPCException("shm_open "+name,fd & 0x7fffffff);
+    state = new State(fd);
+    handle = Leaks.register(this,"PosixShm",state);
+    try {
+      long cur = fsize(fd);
+      if (cur < 0)
+	throw new IPCException("fstat "+name,(int)-cur);
+      if (size > cur)
+	truncate(size);
+      else
+	map(cur);
+    }
+    catch (IPCException x) {
+      close();
+      throw x;
+    }
+  }
+
+  /** Open an existing shared memory object at its current size. */
+  public PosixShm(String name,int options) throws IPCException {
+    this(name,0L,0,0,options);
+  }
+
+  /** Open an existing shared memory object at its current size. */
+  public PosixShm(String name) throws IPCException {
+    this(name,0);
+  }
+
+  /** Return the name of the object. */
+  public String getName() { return name; }
+
+  /** Return the size of the current mapping. */
+  public synchronized long size() {
+    Mapping m = state.map;
+    return m == null ? 0L : m.len;
+  }
+
+  /** Extend the object to at least <code>size</code> bytes and map it at
+    the new size.
+    @throws IllegalArgumentException if size is less than the current size
+   */
+  public synchronized void grow(long size) throws IPCException {
+    if (size < size())
+      throw new IllegalArgumentException("PosixShm: cannot shrink to "+size);
+    if (size > size())
+      truncate(size);
+  }
+
+  /** Map the object again if another process has grown it.
+    @return true if the size changed
+   */
+  public synchronized boolean remap() throws IPCException {
+    long cur = fsize(fd());
+    if (cur < 0)
+      throw new IPCException("fstat "+name,(int)-cur);
+    if (cur <= size()) return false;
+    map(cur);
+    return true;
+  }
+
+  private void truncate(long size) throws IPCException {
+    int rc = ftruncate(fd(),size);
+    if (rc != 0)
+      throw new IPCException("ftruncate "+name,rc & 0x7fffffff);
+    map(size);
+  }
+
+  /** Replace the current mapping with one of len bytes. */
+  private synchronized void map(long len) throws IPCException {
+    if (len == 0) return;
+    int flags = MAP_SHARED;
+    if ((options & POPULATE) != 0) flags |= MAP_POPULATE;
+    long addr = mmap(fd(),len,PROT_READ|PROT_WRITE,flags);
+    if (addr < 0)
+      throw new IPCException("mmap "+name,(int)-addr);
+    if ((options & HUGE_PAGES) != 0)
+      madvise(addr,len,MADV_HUGEPAGE);	// only a hint, ignore failure
+    Mapping old;
+    synchronized (state) {
+      old = state.map;
+      state.map = new Mapping(addr,len);
+    }
+    if (old != null) old.unref();
+    whole = null;
+  }
+
+  private int fd() {
+    synchronized (state) {
+      if (state.closed)
+	throw new IllegalStateException("PosixShm closed: "+name);
+      return state.fd;
+    }
+  }
+
+  /** Return a CPtr over the whole object.  The same CPtr is returned
+    until the object is grown.
+    @throws IllegalStateException if closed
+   */
+  public synchronized CPtr attach() {
+    if (whole == null)
+      whole = getCPtr(0L,size());
+    return whole;
+  }
+
+  /** Return a new CPtr over <code>len</code> bytes at <code>off</code>.
+    Each call registers the CPtr with a cleaner, so get windows once
+    rather than per access.
+    @throws IllegalStateException if closed
+   */
+  public CPtr getCPtr(long off,int len) {
+    return getCPtr(off,(long)len);
+  }
+
+  /** Return a new CPtr over <code>len</code> bytes at <code>off</code>,
+    which may be 2G or more.
+    @throws IllegalStateException if closed
+   */
+  public synchronized CPtr getCPtr(long off,long len) {
+    fd();	// check not closed
+    long size = size();
+    if (off < 0 || len < 0 || off > size - len)
+      throw new IndexOutOfBoundsException(
+	"PosixShm: bad window "+off+","+len+" of "+size);
+    Mapping m = state.map;
+    if (m == null)
+      return new CPtr();
+    CPtr w = new CPtr(m.addr + off,len);
+    w.track(null,m.ref()::unref);
+    if (windows.size() >= purgeAt) {
+      for (Iterator<Window> i = windows.iterator(); i.hasNext();)
+	if (i.next().get() == null) i.remove();
+      purgeAt = Math.max(64,windows.size() * 2);
+    }
+    windows.add(new Window(w,m));
+    return w;
+  }
+
+  /** Unmap the object once no CPtr or view remains, and close the file
+    descriptor.  The object itself remains until unlinked. */
+  public synchronized void close() {
+    for (Window r: windows) {
+      CPtr w = r.get();
+      if (w != null) w.release(r.map::unref);
+    }
+    windows.clear();
+    whole = null;
+    handle.close();
+    state.run();
+  }
+
+  /** Remove the name of the object.  Its memory is freed when no process
+    has it mapped. */
+  public void unlink() throws IPCException {
+    unlink(name);
+  }
+
+  /** Remove a shared memory object by name. */
+  public static void unlink(String name) throws IPCException {
+    LoadLibrary.requireExt("PosixShm");
+    int rc = shmUnlink(name);
+    if (rc != 0)
+      throw new IPCException("shm_unlink "+name,rc & 0x7fffffff);
+  }
+
+  /** @return a file descriptor or errno|0x80000000 */
+  private static native int shmOpen(String name,int oflag,int mode);
+  /** @return 0 or errno|0x80000000 */
+  private static native int shmUnlink(String name);
+  /** @return 0 or errno|0x80000000 */
+  private static native int ftruncate(int fd,long len);
+  /** @return the size of the file, or -errno */
+  private static native long fsize(int fd);
+  /** @return the address, or -errno */
+  private static native long mmap(int fd,long len,int prot,int flags);
+  private static native int munmap(long addr,long len);
+  private static native int madvise(long addr,long len,int advice);
+  private static native int closefd(int fd);
+}
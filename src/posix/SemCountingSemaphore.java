@@ -0,0 +1,163 @@
+package posix;
+
+import java.util.concurrent.TimeUnit;
+
+/** A counting semaphore shared between processes, with an API like
+  {@link java.util.concurrent.Semaphore}.  It is a single SysV
+  semaphore.  The operation arrays for one permit are allocated once,
+  so the common case does not allocate.
+  <p>
+  With SEM_UNDO (the default), the kernel reverses the acquires and
+  releases of a process when it exits.  This returns permits held by a
+  process that dies, and is right when each process releases what it
+  acquires, as for a pool of resources.  When one process releases
+  permits for another to acquire, as with a producer and consumer,
+  SEM_UNDO must not be used, or the permits are taken back when the
+  producer exits.
+  <p>
+  As for Semaphore, acquiring or releasing 0 permits does nothing.  (A
+  sem_op of 0 would instead wait for the value to be 0.)
+  <p>
+  IPC errors are thrown as IllegalStateException, as for {@link SemLock}.
+ */
+public class SemCountingSemaphore {
+  private final SemSet sems;
+  private final short semnum;
+  private final short undo;
+  private final short[] acquire;
+  private final short[] tryAcquire;
+  private final short[] release;
+
+  /** Use a semaphore of a SemSet as a counting semaphore.
+    @param sems	the semaphore set
+    @param semnum	the semaphore to use
+    @param undo	true to use SEM_UNDO
+   */
+  public SemCountingSemaphore(SemSet sems,int semnum,boolean undo) {
+    this.sems = sems;
+    this.semnum = (short)semnum;
+    this.undo = undo ? SemSet.SEM_UNDO : 0;
+    acquire = ops(-1,0);
+    tryAcquire = ops(-1,IPC.IPC_NOWAIT);
+    release = ops(1,0);
+  }
+
+  public SemCountingSemaphore(SemSet sems,int semnum) {
+    this(sems,semnum,true);
+  }
+
+  /** Create a semaphore with an IPC key, or attach to an existing one.
+    @param key	IPC key
+    @param permits	initial permits for a new semaphore
+    @param mode	permissions for a new semaphore
+    @param undo	true to use SEM_UNDO
+   */
+  public SemCountingSemaphore(int key,int permits,int mode,boolean undo)
+	throws IPCException {
+    this(SemSet.open(key,mode,check(permits)),0,undo);
+  }
+
+  private static short check(int permits) {
+    if (permits < 0 || permits > Short.MAX_VALUE)
+      throw new IllegalArgumentException("Bad permits: "+permits);
+    return (short)permits;
+  }
+
+  /** Return the operation to add <code>permits</code>, or null for 0. */
+  private short[] ops(int permits,int flag) {
+    if (permits == 0) return null;
+    return new short[] { semnum, (short)permits, (short)(undo | flag) };
+  }
+
+  /** Return the semaphore set holding the semaphore. */
+  public SemSet getSemSet() { return sems; }
+
+  public void acquire() throws InterruptedException {
+    acquire(acquire);
+  }
+
+  public void acquire(int permits) throws InterruptedException {
+    acquire(ops(-check(permits),0));
+  }
+
+  private void acquire(short[] ops) throws InterruptedException {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    if (ops == null) return;
+    try {
+      sems.semopInterruptibly(ops);
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+
+  public void acquireUninterruptibly() {
+    op(acquire);
+  }
+
+  public void acquireUninterruptibly(int permits) {
+    op(ops(-check(permits),0));
+  }
+
+  public boolean tryAcquire() {
+    return op(tryAcquire);
+  }
+
+  public boolean tryAcquire(int permits) {
+    return op(ops(-check(permits),IPC.IPC_NOWAIT));
+  }
+
+  public boolean tryAcquire(long timeout,TimeUnit unit)
+	throws InterruptedException {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    return timedop(acquire,timeout,unit);
+  }
+
+  public boolean tryAcquire(int permits,long timeout,TimeUnit unit)
+	throws InterruptedException {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    return timedop(ops(-check(permits),0),timeout,unit);
+  }
+
+  public void release() {
+    op(release);
+  }
+
+  public void release(int permits) {
+    op(ops(check(permits),0));
+  }
+
+  /** Return the current number of permits. */
+  public int availablePermits() {
+    try {
+      return sems.getValue((char)semnum);
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+
+  private boolean timedop(short[] ops,long timeout,TimeUnit unit)
+	throws InterruptedException {
+    if (ops == null) return true;
+    try {
+      return sems.semopInterruptibly(ops,timeout,unit);
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+
+  private boolean op(short[] ops) {
+    if (ops == null) return true;
+    try {
+      return sems.semopRetry(ops) == 0;
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+}
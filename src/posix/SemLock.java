@@ -0,0 +1,270 @@
+package posix;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/** A mutual exclusion lock shared between processes, implemented with
+  a SysV semaphore whose value is 1 when unlocked.  All operations use
+  SEM_UNDO, so if a process dies holding the lock, the kernel releases
+  it.  The semaphore operation arrays are allocated once, so locking
+  and unlocking do not allocate.
+  <p>
+  The lock is not reentrant: a thread that already holds the lock
+  blocks if it locks again.  Threads in the same process exclude each
+  other just as other processes do, but the lock is not owned by a
+  thread, so any thread may unlock it.
+  <p>
+  A {@link Condition} uses two more semaphores of the set, which start
+  at 0: a count of registered waiters, and a count of wakeups.  Await
+  registers while holding the lock, unlocks, and waits for a wakeup.
+  Signal moves one registration to a wakeup in a single semop.  A waiter
+  that times out or is interrupted takes back its registration, or if a
+  signal took it first, the wakeup.  Since a wakeup goes to any waiter,
+  a thread that starts waiting after a signal may take it, and one that
+  dies while waiting costs a later waiter a spurious wakeup.  As with
+  the lock, the condition does not check that the caller holds it.
+  <p>
+  Since the methods of {@link Lock} cannot throw IPCException, IPC
+  errors (e.g. the SemSet was removed) are thrown as
+  IllegalStateException.
+ */
+public class SemLock implements Lock {
+  private final SemSet sems;
+  private final short semnum;
+  private final short[] acquire;
+  private final short[] tryAcquire;
+  private final short[] release;
+
+  /** Use a semaphore of a SemSet as a lock.  The semaphore must
+    already have the value 1.
+    @param sems	the semaphore set
+    @param semnum	the semaphore to use
+   */
+  public SemLock(SemSet sems,int semnum) {
+    this.sems = sems;
+    short n = this.semnum = (short)semnum;
+    acquire = new short[] { n, -1, SemSet.SEM_UNDO };
+    tryAcquire = new short[] { n, -1, (short)(SemSet.SEM_UNDO | IPC.IPC_NOWAIT) };
+    release = new short[] { n, 1, SemSet.SEM_UNDO };
+  }
+
+  /** Create a lock with an IPC key, or attach to an existing one.
+    @param key	IPC key
+    @param mode	permissions for a new lock
+   */
+  public SemLock(int key,int mode) throws IPCException {
+    this(key,mode,0);
+  }
+
+  /** Create a lock with room for conditions, or attach to an existing
+    one.  Condition <i>i</i> uses semaphores 2<i>i</i>+1 and 2<i>i</i>+2.
+    @param key	IPC key
+    @param mode	permissions for a new lock
+    @param conditions	the number of conditions
+   */
+  public SemLock(int key,int mode,int conditions) throws IPCException {
+    this(SemSet.open(key,mode,1 + 2 * conditions,(short)1),0);
+  }
+
+  /** Return the semaphore set holding the lock. */
+  public SemSet getSemSet() { return sems; }
+
+  public void lock() {
+    try {
+      sems.semopRetry(acquire);
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+
+  public void lockInterruptibly() throws InterruptedException {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    try {
+      sems.semopInterruptibly(acquire);
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+
+  public boolean tryLock() {
+    try {
+      return sems.semopRetry(tryAcquire) == 0;
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+
+  /** Wait for the lock with semtimedop.  The wait is done in slices so
+    that Thread interruption is noticed. */
+  public boolean tryLock(long time,TimeUnit unit) throws InterruptedException {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    try {
+      return sems.semopInterruptibly(acquire,time,unit);
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+
+  public void unlock() {
+    try {
+      sems.semopRetry(release);
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+  }
+
+  /** Return a condition on the two semaphores after the lock, the first
+    condition of a lock created with conditions.  Every call returns a
+    condition on the same semaphores.
+    @throws UnsupportedOperationException if the set has no room for them
+   */
+  public Condition newCondition() {
+    try {
+      if (sems.getStatus().sem_nsems < semnum + 3)
+	throw new UnsupportedOperationException(
+	  "SemLock.newCondition: no semaphores for a condition");
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+    return newCondition(semnum + 1);
+  }
+
+  /** Return a condition on semaphores <code>semnum</code> and
+    <code>semnum+1</code> of the set, which must start at 0 and be used
+    for nothing else.  Processes share a condition by using the same
+    semaphores.
+   */
+  public Condition newCondition(int semnum) {
+    return new SemCondition((short)semnum);
+  }
+
+  private final class SemCondition implements Condition {
+    private final short waiters;
+    private final short[] register;
+    private final short[] wait;
+    private final short[] cancel;
+    private final short[] signal;
+
+    SemCondition(short semnum) {
+      waiters = semnum;
+      short wakeups = (short)(semnum + 1);
+      register = new short[] { waiters, 1, 0 };
+      wait = new short[] { wakeups, -1, 0 };
+      cancel = new short[] { waiters, -1, IPC.IPC_NOWAIT };
+      signal = new short[] { waiters, -1, IPC.IPC_NOWAIT, wakeups, 1, 0 };
+    }
+
+    /** Register, unlock, wait for a wakeup, and lock again.
+      @param nanos	the longest wait, or -1 for no limit
+      @return false on timeout
+     */
+    private boolean await(long nanos,boolean interruptibly)
+	throws InterruptedException {
+      if (interruptibly && Thread.interrupted())
+	throw new InterruptedException();
+      op(register);
+      unlock();
+      boolean woken = false;
+      InterruptedException interrupt = null;
+      try {
+	try {
+	  if (nanos >= 0)
+	    woken = sems.semopInterruptibly(wait,nanos,TimeUnit.NANOSECONDS);
+	  else if (interruptibly) {
+	    sems.semopInterruptibly(wait);
+	    woken = true;
+	  }
+	  else
+	    woken = sems.semopRetry(wait) == 0;
+	}
+	catch (InterruptedException x) {
+	  interrupt = x;
+	}
+	if (!woken && sems.semopRetry(cancel) != 0) {
+	  // a signal took the registration: take its wakeup
+	  sems.semopRetry(wait);
+	  if (interrupt == null)
+	    woken = true;
+	  else
+	    sems.semopRetry(signal);	// pass it on to another waiter
+	}
+      }
+      catch (IPCException x) {
+	throw new IllegalStateException(x);
+      }
+      finally {
+	lock();
+      }
+      if (interrupt != null)
+	throw interrupt;
+      return woken;
+    }
+
+    public void await() throws InterruptedException {
+      await(-1L,true);
+    }
+
+    public void awaitUninterruptibly() {
+      try {
+	await(-1L,false);
+      }
+      catch (InterruptedException x) {
+	throw new AssertionError(x);	// not checked
+      }
+    }
+
+    public long awaitNanos(long nanos) throws InterruptedException {
+      long deadline = System.nanoTime() + nanos;
+      if (!await(Math.max(nanos,0L),true))
+	return 0L;
+      return Math.max(deadline - System.nanoTime(),1L);
+    }
+
+    public boolean await(long time,TimeUnit unit)
+	throws InterruptedException {
+      return await(Math.max(unit.toNanos(time),0L),true);
+    }
+
+    public boolean awaitUntil(Date deadline) throws InterruptedException {
+      long ms = deadline.getTime() - System.currentTimeMillis();
+      return await(TimeUnit.MILLISECONDS.toNanos(Math.max(ms,0L)),true);
+    }
+
+    public void signal() {
+      op(signal);
+    }
+
+    public void signalAll() {
+      try {
+	for (int n; (n = sems.getValue((char)waiters)) > 0;) {
+	  short[] all = { waiters, (short)-n, IPC.IPC_NOWAIT,
+	    signal[3], (short)n, 0 };
+	  if (sems.semopRetry(all) == 0)
+	    break;
+	}
+      }
+      catch (IPCException x) {
+	throw new IllegalStateException(x);
+      }
+    }
+
+    private void op(short[] ops) {
+      try {
+	sems.semopRetry(ops);
+      }
+      catch (IPCException x) {
+	throw new IllegalStateException(x);
+      }
+    }
+  }
+}
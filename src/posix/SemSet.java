@@ -1,5 +1,10 @@
 package posix;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 /** Represent a posix semaphore set.  Work in progress.
 
 @author <a href="mailto:stuart@bmsi.com">Stuart D. Gathman</a>
@@ -42,6 +47,46 @@ public class SemSet extends IPC {
     id = semget(key,nsem,flag);
     if (id < 0) throw new IPCException("semget",id & 0x7fffffff);
     owner = (flag & IPC_CREAT) != 0;
+    final int qid = id;
+    track("SemSet",owner ? () -> semctl(qid,0,IPC_RMID,0) : null);
+  }
+
+  /** Create a set of 1 semaphore with an initial value, or attach to
+    an existing one.  Setting the value after semget is not atomic, so
+    the creator sets it with semop, and other processes wait for a
+    nonzero sem_otime before using the set.
+    @param key	IPC key, not IPC_PRIVATE
+    @param mode	permissions for a new set
+    @param value	initial value for a new set
+   */
+  static SemSet open(int key,int mode,short value) throws IPCException {
+    return open(key,mode,1,value);
+  }
+
+  /** Create a set of <code>nsems</code> semaphores, where the first has
+    an initial value and the others are 0, or attach to an existing one.
+   */
+  static SemSet open(int key,int mode,int nsems,short value)
+	throws IPCException {
+    int perm = mode & 0777;
+    try {
+      SemSet s = new SemSet(key,nsems,perm | IPC_CREAT | IPC_EXCL);
+      if (value != 0)
+	s.semop(new short[] { 0, value, 0 });
+      else
+	s.semop(new short[] { 0, 0, 0 });	// sets sem_otime
+      return s;
+    }
+    catch (IPCException x) {
+      // already exists, or a real error which semget reports again
+    }
+    SemSet s = new SemSet(key,nsems,perm);
+    for (int i = 0; s.getStatus().sem_otime == 0; ++i) {
+      if (i >= 1000)
+	throw new IPCException("semget",Errno.EAGAIN);
+      LockSupport.parkNanos(1000000L);
+    }
+    return s;
   }
 
   public void remove() {
@@ -82,6 +127,10 @@ public class SemSet extends IPC {
   private static native int semctl(int id,int semnum,int cmd,short[] buf);
   private static native int semctl(int id,int semnum,int cmd,int val);
   private static native int semop(int id,short[] sema);
+  /** Perform semaphore operations, waiting at most <code>nanos</code>.
+      @return 0 or errno|0x80000000, EAGAIN on timeout
+   */
+  private static native int semtimedop(int id,short[] sema,long nanos);
   private static native int init();
 
   public semid_ds getStatus() throws IPCException {
@@ -112,6 +161,123 @@ public class SemSet extends IPC {
       throw new IPCException("semop",rc & 0x7fffffff);
   }
 
+  /** Perform semaphore operations, waiting at most the given time.
+    The operations are done atomically, or not at all.  A signal does
+    not cut the wait short.
+    @param sema	triplets of semaphore number, operation, and flags
+    @return true if the operations were done, false on timeout
+   */
+  public boolean semop(short[] sema,long timeout,TimeUnit unit)
+	throws IPCException {
+    if (sema.length % 3 != 0)
+      throw new IllegalArgumentException(
+        "Wrong length for SemOp array: " + sema.length);
+    LoadLibrary.requireExt("SemSet.semop with timeout");
+    long nanos = unit.toNanos(timeout);
+    long deadline = System.nanoTime() + nanos;
+    for (;;) {
+      int rc = semtimedop(id,sema,Math.max(nanos,0L));
+      if (rc == 0) return true;
+      rc &= 0x7fffffff;
+      if (rc == Errno.EAGAIN) return false;
+      if (rc != Errno.EINTR)
+	throw new IPCException("semtimedop",rc);
+      nanos = deadline - System.nanoTime();
+    }
+  }
+
+  /** The longest a single semtimedop waits before checking for
+    Thread interruption. */
+  private static final long INTERRUPT_CHECK = TimeUnit.MILLISECONDS.toNanos(50);
+
+  /** Perform semaphore operations, waiting until they can be done or
+    the Thread is interrupted.  Since a system call cannot be interrupted
+    by Java, the wait is done in slices of 50ms.
+    @param sema	triplets of semaphore number, operation, and flags
+   */
+  public void semopInterruptibly(short[] sema)
+	throws IPCException, InterruptedException {
+    while (!semop(sema,INTERRUPT_CHECK,TimeUnit.NANOSECONDS)) {
+      if (Thread.interrupted())
+	throw new InterruptedException();
+    }
+  }
+
+  /** Perform semaphore operations, waiting at most the given time or
+    until the Thread is interrupted.  The wait is done in slices of 50ms,
+    as for {@link #semopInterruptibly(short[])}.
+    @param sema	triplets of semaphore number, operation, and flags
+    @return true if the operations were done, false on timeout
+   */
+  public boolean semopInterruptibly(short[] sema,long timeout,TimeUnit unit)
+	throws IPCException, InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    long deadline = System.nanoTime() + nanos;
+    while (!semop(sema,Math.min(nanos,INTERRUPT_CHECK),TimeUnit.NANOSECONDS)) {
+      nanos = deadline - System.nanoTime();
+      if (nanos <= 0)
+	return false;
+      if (Thread.interrupted())
+	throw new InterruptedException();
+    }
+    return true;
+  }
+
+  /** Perform semaphore operations, retrying if interrupted by a
+    signal.  Unlike {@link #semop(short[])}, EAGAIN (for IPC_NOWAIT) is
+    returned rather than thrown.
+    @return 0 or Errno.EAGAIN
+   */
+  int semopRetry(short[] sema) throws IPCException {
+    for (;;) {
+      int rc = semop(id,sema);
+      if (rc == 0) return 0;
+      rc &= 0x7fffffff;
+      if (rc == Errno.EAGAIN) return rc;
+      if (rc != Errno.EINTR)
+	throw new IPCException("semop",rc);
+    }
+  }
+
+  /** Perform semaphore operations without blocking the calling thread.
+    If the operations would block, they are done by a dedicated waiter
+    thread, so this is safe to call from virtual threads.  Cancelling
+    the future interrupts the waiter.  If the operations completed
+    first, they are reversed.
+    @param sema	triplets of semaphore number, operation, and flags
+    @return a future that completes when the operations are done
+   */
+  public CompletableFuture<Void> semopAsync(final short[] sema) {
+    if (sema.length % 3 != 0)
+      throw new IllegalArgumentException(
+        "Wrong length for SemOp array: " + sema.length);
+    final short[] nowait = sema.clone();
+    for (int i = 2; i < nowait.length; i += 3)
+      nowait[i] |= IPC_NOWAIT;
+    return IPCWaiter.submit(new IPCWaiter.Op() {
+      Object call(boolean nw) throws IPCException {
+	int rc = semop(id,nw ? nowait : sema);
+	if (rc == 0) return null;
+	rc &= 0x7fffffff;
+	if (nw && rc == Errno.EAGAIN || rc == Errno.EINTR)
+	  return IPCWaiter.AGAIN;
+	throw new IPCException("semop",rc);
+      }
+      void undo(Object rc) throws IPCException {
+	short[] inv = new short[sema.length];
+	int n = 0;
+	for (int i = 0; i < sema.length; i += 3) {
+	  if (sema[i+1] == 0) continue;
+	  inv[n++] = sema[i];
+	  inv[n++] = (short)-sema[i+1];
+	  inv[n++] = sema[i+2];
+	}
+	if (n > 0)
+	  semop(Arrays.copyOf(inv,n));
+      }
+    });
+  }
+
   public int getPid(char semnum) throws IPCException {
     int pid = semctl(id,semnum,GETPID,0);
     if (pid < 0)
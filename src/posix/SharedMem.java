@@ -46,24 +46,93 @@ public class SharedMem extends IPC {
 	 *            options
 	 */
 	public SharedMem(int key, int size, int flag) throws IPCException {
-		id = shmget(key, size, flag);
-		if (id < 0)
-			throw new IPCException("shmget, key=0x" + Integer.toHexString(key));
-		else {
-			// done by attach()
-			size = getStatus().shm_segsz;
-			long addr = shmat(id, 0, 0);
-			if (addr == -1L)
-				throw new IPCException("shmat");
-			cptr = new CPtr(addr, size);
+		this(key, (long) size, flag);
+	}
+
+	/**
+	 * Attach or create a shared memory segment, which may be 2G or more.
+	 * Beyond 2G it is accessed with the long offset methods of CPtr.
+	 * 
+	 * @param key
+	 *            IPC key or IPC_PRIVATE
+	 * @param size
+	 *            size of shared memory
+	 * @param flag
+	 *            options, including SHM_HUGETLB and SHM_PREFAULT
+	 */
+	public SharedMem(int key, long size, int flag) throws IPCException {
+		int shmflg = flag & ~SHM_PREFAULT;
+		boolean large = size > Integer.MAX_VALUE;
+		if (large)
+			LoadLibrary.requireExt("SharedMem over 2G");
+		if ((flag & SHM_PREFAULT) != 0)
+			LoadLibrary.requireExt("SharedMem.SHM_PREFAULT");
+		id = large ? shmget64(key, size, shmflg) : shmget(key, (int) size, shmflg);
+		if (id < 0) {
+			int errno = Errno.getErrno();
+			if ((flag & SHM_HUGETLB) != 0)
+				throw new IPCException("shmget SHM_HUGETLB, key=0x" + Integer.toHexString(key)
+						+ ", size=" + size + " (check vm.nr_hugepages and vm.hugetlb_shm_group)", errno);
+			throw new IPCException("shmget, key=0x" + Integer.toHexString(key), errno);
 		}
 		owner = (flag & IPC_CREAT) != 0 || key == IPC_PRIVATE;
+		final int shmid = id;
+		track("SharedMem", owner ? () -> shmctl(shmid, IPC_RMID, null) : null);
+		attach();
+		if ((flag & SHM_PREFAULT) != 0)
+			prefault();
+	}
+
+	/**
+	 * Attach or create a shared memory segment with a NUMA memory policy. The
+	 * policy is set before the segment is prefaulted, so with SHM_PREFAULT
+	 * every page is placed by it.
+	 * 
+	 * @param key
+	 *            IPC key or IPC_PRIVATE
+	 * @param size
+	 *            size of shared memory
+	 * @param flag
+	 *            options, including SHM_HUGETLB and SHM_PREFAULT
+	 * @param policy
+	 *            MPOL_PREFERRED, MPOL_BIND or MPOL_INTERLEAVE
+	 * @param nodes
+	 *            bit mask of NUMA nodes
+	 * @see #bind
+	 */
+	public SharedMem(int key, long size, int flag, int policy, long nodes) throws IPCException {
+		this(key, size, flag & ~SHM_PREFAULT);
+		try {
+			bind(policy, nodes);
+			if ((flag & SHM_PREFAULT) != 0)
+				prefault();
+		} catch (IPCException x) {
+			dispose();
+			throw x;
+		}
 	}
 
 	public SharedMem(String path, int type) throws IPCException {
 		this(ftok(path, type), 0);
 	}
 
+	/** Allocate the segment from huge pages (Linux). */
+	public static final int SHM_HUGETLB = 04000;
+	/** Do not reserve swap space for the segment (Linux). */
+	public static final int SHM_NORESERVE = 010000;
+	/**
+	 * Fault in every page when the constructor attaches the segment. Not
+	 * passed to shmget. Needs libposixext.so, like {@link #prefault}.
+	 */
+	public static final int SHM_PREFAULT = 0x40000000;
+
+	/** NUMA memory policies for {@link #bind}. */
+	public static final int MPOL_DEFAULT = 0, MPOL_PREFERRED = 1, MPOL_BIND = 2, MPOL_INTERLEAVE = 3;
+	/** Advice for {@link #madvise}. */
+	public static final int MADV_WILLNEED = 3, MADV_HUGEPAGE = 14, MADV_NOHUGEPAGE = 15;
+	private static final int MADV_POPULATE_WRITE = 23;
+	private static final int PAGE = 4096;
+
 	static final int SHM_SIZE = 6; // change the size of a segment
 	/** Attach read-only (else read-write). */
 	static final int SHM_RDONLY = 010000;
@@ -85,6 +154,7 @@ public class SharedMem extends IPC {
 				throw new IPCException(String.format("shmctl(%d,IPC_STAT)", id), rc);
 		}
 
+		/** The segment size, truncated for 2G or more.  See {@link SharedMem#getSize}. */
 		public int shm_segsz; /* segment size */
 		public int shm_lpid; /* pid of last shmop */
 		public int shm_cpid; /* pid of creator */
@@ -105,6 +175,35 @@ public class SharedMem extends IPC {
 
 	private static native int shmget(int key, int size, int flag);
 
+	private static native int shmget64(int key, long size, int flag);
+
+	/** @return 0 or errno|0x80000000 */
+	private static native int mbind(long addr, long len, int mode, long nodemask);
+
+	/** @return 0 or errno|0x80000000 */
+	private static native int madvise(long addr, long len, int advice);
+
+	/** @return the segment size or -errno */
+	private static native long shmsize(int id);
+
+	/**
+	 * Return the size of the segment, which may be 2G or more. Without
+	 * libposixext.so, this is <code>shm_segsz</code>, which is truncated
+	 * for 2G or more.
+	 */
+	public long getSize() throws IPCException {
+		if (!LoadLibrary.hasExt()) {
+			shmid_ds st = getStatus();
+			if (st == null)
+				throw new IPCException("shmctl", Errno.EINVAL);
+			return st.shm_segsz;
+		}
+		long size = shmsize(id);
+		if (size < 0)
+			throw new IPCException("shmctl", (int) -size);
+		return size;
+	}
+
 	public shmid_ds getStatus() throws IPCException {
 		int id = this.id;
 		if (id < 0)
@@ -134,15 +233,66 @@ public class SharedMem extends IPC {
 	 */
 	public synchronized CPtr attach() throws IPCException {
 		if (cptr == null) {
-			int size = getStatus().shm_segsz;
-			long addr = shmat(id, 0, 0);
+			long size = getSize();
+			final long addr = shmat(id, 0, 0);
 			if (addr == -1L)
 				throw new IPCException("shmat");
 			cptr = new CPtr(addr, size);
+			// detach if cptr is dropped without dispose
+			cptr.track("SharedMem attach", () -> shmdt(addr));
 		}
 		return cptr;
 	}
 
+	/**
+	 * Set the NUMA memory policy of the segment. It applies to pages not yet
+	 * faulted in by any process, so set it before the segment is used.
+	 * 
+	 * @param policy
+	 *            MPOL_DEFAULT, MPOL_PREFERRED, MPOL_BIND or MPOL_INTERLEAVE
+	 * @param nodes
+	 *            bit mask of NUMA nodes, ignored for MPOL_DEFAULT
+	 */
+	public void bind(int policy, long nodes) throws IPCException {
+		LoadLibrary.requireExt("SharedMem.bind");
+		CPtr p = attach();
+		int rc = mbind(p.addr, p.length, policy, policy == MPOL_DEFAULT ? 0L : nodes);
+		if (rc != 0)
+			throw new IPCException(String.format("mbind(policy=%d,nodes=0x%x)", policy, nodes),
+					rc & 0x7fffffff);
+	}
+
+	/**
+	 * Advise the kernel how the segment will be used, e.g. MADV_HUGEPAGE to
+	 * use transparent huge pages.
+	 */
+	public void madvise(int advice) throws IPCException {
+		LoadLibrary.requireExt("SharedMem.madvise");
+		CPtr p = attach();
+		int rc = madvise(p.addr, p.length, advice);
+		if (rc != 0)
+			throw new IPCException("madvise(" + advice + ")", rc & 0x7fffffff);
+	}
+
+	/**
+	 * Fault in every page of the segment, so that later accesses do not page
+	 * fault. Kernels before Linux 5.14 lack MADV_POPULATE_WRITE, and each page
+	 * is touched instead with an atomic add of 0, which leaves data written
+	 * concurrently by other processes intact. Both need libposixext.so, for
+	 * madvise and for the atomic add through the ByteBuffer view.
+	 */
+	public void prefault() throws IPCException {
+		LoadLibrary.requireExt("SharedMem.prefault");
+		CPtr p = attach();
+		int rc = madvise(p.addr, p.length, MADV_POPULATE_WRITE);
+		if (rc == 0)
+			return;
+		if ((rc & 0x7fffffff) != Errno.EINVAL)
+			throw new IPCException("prefault", rc & 0x7fffffff);
+		for (long off = 0; off < p.length; off += PAGE)
+			p.getAndAddInt(off, 0);
+	}
+
 	public void remove() {
 		if (id >= 0) {
 			shmctl(id, IPC_RMID, null);
@@ -151,15 +301,13 @@ public class SharedMem extends IPC {
 	}
 
 	public synchronized void dispose() {
-		if (id >= 0) {
-			if (cptr != null) {
-				cptr.size = 0; // prevent further access through cptr
-				shmdt(cptr.addr);
-				cptr.addr = CPtr.NULL;
-				cptr = null;
-			}
-			super.dispose();
+		if (cptr != null) {
+			// prevent further access through cptr, detach once no views remain
+			final long addr = cptr.addr;
+			cptr.release(() -> shmdt(addr));
+			cptr = null;
 		}
+		super.dispose();
 	}
 
 }
@@ -0,0 +1,331 @@
+package posix;
+
+/** Allocate variable size records in shared memory.  Any process
+  attached to the memory may allocate and free, concurrently and
+  without a lock.  Allocations are identified by handles: offsets from
+  the start of the allocator, which are the same in every process
+  however the memory is attached.
+  <p>
+  The memory after a header is divided into slabs of equal size.  A slab
+  is taken from the unused memory when first needed, assigned to one
+  size class, and divided into blocks of that size.  Size classes are
+  powers of 2 from 16 bytes to the slab size.  Each class has a free list,
+  a stack of blocks whose head is a 64-bit word of a version count and
+  an offset, updated with compareAndSet.  The version count keeps a
+  block freed and reallocated while another process pops it from being
+  mistaken for the same list head.  Slabs are never returned to the
+  unused memory, so memory reachable from a list is always mapped.
+  <p>
+  Each block starts with an 8 byte header holding the requested
+  length, or -1 when free, and the next block of a free list.  The
+  largest allocation is the slab size less 8.  The
+  handle is the offset of the data after the header.  Memory is zero when
+  a slab is divided, but a reused block holds whatever was last in it.
+  <p>
+  The layout in memory is computed with {@link CPtr.Struct}:
+<pre>
+	header (magic, slab size and count, next unused slab)
+	per class { long list head; int blocks in use; int slabs;
+	  long requested bytes; }, each on its own cache line
+	byte class of each slab
+	slabs
+</pre>
+ */
+public class ShmAllocator {
+  private static final int MAGIC = 0x53484d41;	// "SHMA"
+  private static final int INIT = 1;		// magic while initializing
+  private static final int MIN_SHIFT = 4;	// smallest block is 16 bytes
+  private static final int BLOCK_HDR = 8;	// requested length, next free
+  private static final int NEXT = 4;		// offset of next free in header
+  private static final int FREED = -1;		// length of a free block
+
+  /** Header members, relative to the start of the allocator. */
+  private static final int MAGIC_OFF, SLAB_SHIFT_OFF, NSLABS_OFF, NEXT_OFF,
+    CLASSES;
+  /** Class members, relative to the start of each class. */
+  private static final int HEAD_OFF, INUSE_OFF, SLABS_OFF, REQ_OFF, CLASS_SIZE;
+  static {
+    CPtr.Struct h = new CPtr.Struct(0);
+    MAGIC_OFF = h.offsetOf(CPtr.CINT_TYPE);
+    SLAB_SHIFT_OFF = h.offsetOf(CPtr.CINT_TYPE);
+    NSLABS_OFF = h.offsetOf(CPtr.CINT_TYPE);
+    NEXT_OFF = h.offsetOf(CPtr.CINT_TYPE);
+    CLASSES = h.addMember(0,63);
+    CPtr.Struct c = new CPtr.Struct(0);
+    HEAD_OFF = c.addMember(8,7);
+    INUSE_OFF = c.offsetOf(CPtr.CINT_TYPE);
+    SLABS_OFF = c.offsetOf(CPtr.CINT_TYPE);
+    REQ_OFF = c.addMember(8,7);
+    c.addMember(0,63);			// own cache line
+    CLASS_SIZE = c.size();
+  }
+
+  private final CPtr mem;
+  private final int base;		// offset of allocator within mem
+  private final int slabShift;
+  private final int nslabs;
+  private final int nclasses;
+  private final int slabClass;		// offset of slab class bytes
+  private final int slabs;		// offset of first slab
+  private SharedMem shm;		// segment owned by this allocator, if any
+
+  /** Statistics for an allocator.  Counts are read without stopping
+    other processes, so they may be slightly inconsistent. */
+  public static class Stats {
+    /** Slabs assigned to a size class. */
+    public int slabsUsed;
+    /** Slabs not yet assigned. */
+    public int slabsFree;
+    /** Bytes of the slabs assigned. */
+    public long slabBytes;
+    /** Bytes of the blocks in use, including headers. */
+    public long blockBytes;
+    /** Bytes requested by the allocations in use. */
+    public long requestedBytes;
+    /** Blocks in use for each size class. */
+    public int[] inUse;
+    /** Slabs of each size class. */
+    public int[] classSlabs;
+
+    /** Return the fraction of assigned slab memory in use by blocks. */
+    public double occupancy() {
+      return slabBytes == 0 ? 0.0 : (double)blockBytes / slabBytes;
+    }
+
+    /** Return the fraction of the memory in use by blocks that was
+      not requested: rounding up to a size class, and headers. */
+    public double fragmentation() {
+      return blockBytes == 0 ? 0.0 : 1.0 - (double)requestedBytes / blockBytes;
+    }
+  }
+
+  /** Return the bytes needed for an allocator header.
+    @param slabSize	the slab size, rounded up to a power of 2
+    @param nslabs	the number of slabs
+   */
+  private static int header(int slabShift,int nslabs) {
+    int classes = slabShift - MIN_SHIFT + 1;
+    return (CLASSES + classes * CLASS_SIZE + nslabs + 63) & ~63;
+  }
+
+  private static int shift(int slabSize) {
+    if (slabSize < 64 || slabSize > 1 << 30)
+      throw new IllegalArgumentException("Bad slab size: "+slabSize);
+    return 32 - Integer.numberOfLeadingZeros(slabSize - 1);
+  }
+
+  /** Return the bytes of shared memory needed for an allocator.
+    @param slabSize	the slab size, rounded up to a power of 2
+    @param nslabs	the number of slabs
+   */
+  public static int sizeOf(int slabSize,int nslabs) {
+    int s = shift(slabSize);
+    return header(s,nslabs) + (nslabs << s);
+  }
+
+  /** Create or attach an allocator in a SharedMem segment.
+    @param key	IPC key or IPC_PRIVATE
+    @param slabSize	the slab size, rounded up to a power of 2
+    @param nslabs	the number of slabs
+    @param flag	options and permissions, as for {@link SharedMem}
+   */
+  public ShmAllocator(int key,int slabSize,int nslabs,int flag)
+	throws IPCException {
+    this(new SharedMem(key,sizeOf(slabSize,nslabs),flag),slabSize);
+  }
+
+  /** Attach an existing allocator created by another process. */
+  public ShmAllocator(int key,int flag) throws IPCException {
+    this(new SharedMem(key,flag),64);
+  }
+
+  private ShmAllocator(SharedMem shm,int slabSize) throws IPCException {
+    this(shm.attach(),0,shm.attach().size,slabSize);
+    this.shm = shm;
+  }
+
+  /** Create or attach an allocator in a region of C memory, which must
+    be zero before the allocator is created.
+    @param mem	shared memory containing the allocator
+    @param off	offset of the allocator in mem, a multiple of 64
+    @param len	total size of the allocator including the header
+    @param slabSize	the slab size, rounded up to a power of 2,
+	used only when creating the allocator
+   */
+  public ShmAllocator(CPtr mem,int off,int len,int slabSize) {
+    if ((off & 63) != 0 || off < 0 || len > mem.size - off)
+      throw new IllegalArgumentException("Bad allocator region: "+off+","+len);
+    this.mem = mem;
+    this.base = off;
+    int s, n;
+    if (mem.compareAndSetInt(base + MAGIC_OFF,0,INIT)) {
+      s = shift(slabSize);
+      n = len >> s;
+      while (n > 0 && header(s,n) + (n << s) > len)
+	--n;
+      if (n < 1)
+	throw new IllegalArgumentException("Allocator too small: "+len);
+      mem.setIntVolatile(base + SLAB_SHIFT_OFF,s);
+      mem.setIntVolatile(base + NSLABS_OFF,n);
+      mem.setIntVolatile(base + NEXT_OFF,0);
+      mem.setIntVolatile(base + MAGIC_OFF,MAGIC);
+    }
+    else {
+      int m;
+      while ((m = mem.getIntVolatile(base + MAGIC_OFF)) == INIT)
+	Thread.yield();
+      if (m != MAGIC)
+	throw new IllegalArgumentException("Not a ShmAllocator");
+      s = mem.getIntVolatile(base + SLAB_SHIFT_OFF);
+      n = mem.getIntVolatile(base + NSLABS_OFF);
+      if (header(s,n) + (n << s) > len)
+	throw new IllegalArgumentException("Allocator region too small: "+len);
+    }
+    slabShift = s;
+    nslabs = n;
+    nclasses = s - MIN_SHIFT + 1;
+    slabClass = CLASSES + nclasses * CLASS_SIZE;
+    slabs = header(s,n);
+  }
+
+  /** Return the largest allocation. */
+  public final int maxAlloc() { return (1 << slabShift) - BLOCK_HDR; }
+
+  /** Return the size class for an allocation. */
+  private int sizeClass(int len) {
+    if (len < 0 || len > maxAlloc())
+      throw new IllegalArgumentException("Bad allocation length: "+len);
+    int need = len + BLOCK_HDR;
+    int c = 32 - Integer.numberOfLeadingZeros(need - 1) - MIN_SHIFT;
+    return c < 0 ? 0 : c;
+  }
+
+  private int classOff(int c) { return base + CLASSES + c * CLASS_SIZE; }
+
+  /** Allocate a block.
+    @param len	the bytes needed
+    @return a handle, or 0 if there is no memory left
+   */
+  public int alloc(int len) {
+    int c = sizeClass(len);
+    int co = classOff(c);
+    int blk;
+    while ((blk = pop(co + HEAD_OFF)) == 0) {
+      if (!newSlab(c))
+	return 0;
+    }
+    mem.setCInt(base + blk,len);
+    mem.getAndAddInt(co + INUSE_OFF,1);
+    mem.getAndAddLong(co + REQ_OFF,len);
+    return blk + BLOCK_HDR;
+  }
+
+  /** Free a block.
+    @param handle	a handle returned by {@link #alloc}
+   */
+  public void free(int handle) {
+    int blk = handle - BLOCK_HDR;
+    int slab = blk - slabs;
+    if (handle <= 0 || slab < 0 || slab >> slabShift >= nslabs)
+      throw new IllegalArgumentException("Bad handle: "+handle);
+    int c = mem.getByte(base + slabClass + (slab >> slabShift));
+    if ((slab & ((1 << (c + MIN_SHIFT)) - 1)) != 0)
+      throw new IllegalArgumentException("Bad handle: "+handle);
+    int len = mem.getCInt(base + blk);
+    if (len == FREED)
+      throw new IllegalArgumentException("Freed twice: "+handle);
+    mem.setCInt(base + blk,FREED);
+    int co = classOff(c);
+    mem.getAndAddLong(co + REQ_OFF,-len);
+    mem.getAndAddInt(co + INUSE_OFF,-1);
+    push(co + HEAD_OFF,blk,blk);
+  }
+
+  /** Return the length requested for an allocated block. */
+  public int length(int handle) {
+    return mem.getCInt(base + handle - BLOCK_HDR);
+  }
+
+  /** Return the offset in the CPtr of the data for a handle.  The same
+    handle may have a different offset in other processes. */
+  public int offset(int handle) { return base + handle; }
+
+  /** Return the memory containing the allocator. */
+  public CPtr getCPtr() { return mem; }
+
+  /** Pop a block from a free list.
+    @return the block offset, or 0 if the list is empty
+   */
+  private int pop(int head) {
+    for (;;) {
+      long h = mem.getLongVolatile(head);
+      int blk = (int)h;
+      if (blk == 0) return 0;
+      // a stale next is harmless: the version count makes the CAS fail
+      int next = mem.getCInt(base + blk + NEXT);
+      long v = (h >>> 32) + 1;
+      if (mem.compareAndSetLong(head,h,v << 32 | (next & 0xffffffffL)))
+	return blk;
+    }
+  }
+
+  /** Push a chain of blocks linked from first to last onto a free list. */
+  private void push(int head,int first,int last) {
+    for (;;) {
+      long h = mem.getLongVolatile(head);
+      mem.setCInt(base + last + NEXT,(int)h);
+      long v = (h >>> 32) + 1;
+      if (mem.compareAndSetLong(head,h,v << 32 | (first & 0xffffffffL)))
+	return;
+    }
+  }
+
+  /** Assign an unused slab to a size class and put its blocks on the
+    free list.
+    @return false if there are no unused slabs
+   */
+  private boolean newSlab(int c) {
+    int n;
+    do {
+      n = mem.getIntVolatile(base + NEXT_OFF);
+      if (n >= nslabs) return false;
+    } while (!mem.compareAndSetInt(base + NEXT_OFF,n,n + 1));
+    mem.setByte(base + slabClass + n,(byte)c);
+    int bsize = 1 << (c + MIN_SHIFT);
+    int first = slabs + (n << slabShift);
+    int last = first + (1 << slabShift) - bsize;
+    for (int b = first; b < last; b += bsize)
+      mem.setCInt(base + b + NEXT,b + bsize);
+    int co = classOff(c);
+    mem.getAndAddInt(co + SLABS_OFF,1);
+    push(co + HEAD_OFF,first,last);
+    return true;
+  }
+
+  /** Return statistics for the allocator. */
+  public Stats getStats() {
+    Stats st = new Stats();
+    st.inUse = new int[nclasses];
+    st.classSlabs = new int[nclasses];
+    st.slabsUsed = Math.min(mem.getIntVolatile(base + NEXT_OFF),nslabs);
+    st.slabsFree = nslabs - st.slabsUsed;
+    st.slabBytes = (long)st.slabsUsed << slabShift;
+    for (int c = 0; c < nclasses; ++c) {
+      int co = classOff(c);
+      st.inUse[c] = mem.getIntVolatile(co + INUSE_OFF);
+      st.classSlabs[c] = mem.getIntVolatile(co + SLABS_OFF);
+      st.blockBytes += (long)st.inUse[c] << (c + MIN_SHIFT);
+      st.requestedBytes += mem.getLongVolatile(co + REQ_OFF);
+    }
+    return st;
+  }
+
+  /** Detach the allocator.  If this allocator created its SharedMem,
+    it is disposed as well. */
+  public void dispose() {
+    if (shm != null) {
+      shm.dispose();
+      shm = null;
+    }
+  }
+}
@@ -0,0 +1,423 @@
+package posix;
+
+import java.nio.ByteBuffer;
+
+/** A hash table of byte string keys and values in shared memory, so
+  that one process can load a cache which many processes read without
+  each keeping a copy in its heap.  Keys and values may be any length.
+  <p>
+  The table uses open addressing with linear probing.  Each bucket is a
+  single 64-bit word holding the key hash and the offset of an entry in
+  the data area, so a bucket is always read and written atomically.
+  Entries are never changed once published: put of an existing key
+  appends a new entry and switches the bucket.  Readers therefore take
+  no lock and make no system call.  Only {@link #clear}, which reuses
+  the data area, makes readers retry: it is a write of a
+  {@link ShmSeqLock} which readers validate.
+  <p>
+  Offsets in the table are relative to its start, so processes may
+  place it at different offsets.
+  <p>
+  Writers are serialized by a {@link ShmMutex} in the header, so any
+  process may write.  Space of replaced and removed entries is not
+  reused until the table is cleared; {@link #garbage} reports how much
+  there is.
+  <p>
+  The layout in memory is computed with {@link CPtr.Struct}:
+<pre>
+	header (magic, bucket count, data area, counts)
+	ShmSeqLock, on its own cache line
+	ShmMutex for writers
+	long buckets[nbuckets]
+	data area of entries { int klen; int vlen; byte key[klen]; byte val[vlen]; }
+</pre>
+ */
+public class ShmHashMap {
+  private static final int MAGIC = 0x53484d48;	// "SHMH"
+  private static final int INIT = 1;		// magic while initializing
+  private static final long TOMBSTONE = 0xffffffffL;	// entry of removed key
+  private static final int KLEN_OFF, VLEN_OFF, ENTRY;
+  static {
+    CPtr.Struct e = new CPtr.Struct(0);
+    KLEN_OFF = e.offsetOf(CPtr.CINT_TYPE);
+    VLEN_OFF = e.offsetOf(CPtr.CINT_TYPE);
+    ENTRY = e.addMember(0,7);
+  }
+
+  private final CPtr mem;
+  private final ByteBuffer view;
+  private final int base;		// offset of table within mem
+  private final int magicOff, nbucketsOff, dataEndOff, topOff, countOff,
+    usedOff, garbageOff;
+  private final int bucketOff;
+  private final int dataOff;
+  private final int nbuckets;
+  private final int mask;
+  private final ShmMutex lock;
+  private final ShmSeqLock seq;
+  private SharedMem shm;		// segment owned by this map, if any
+  private SemSet sems;
+
+  /** Return the bytes of shared memory needed for a table.
+    @param buckets	the number of buckets, rounded up to a power of 2
+    @param dataSize	the bytes for keys and values
+   */
+  public static int sizeOf(int buckets,int dataSize) {
+    return LAYOUT.buckets + 8 * pow2(buckets) + dataSize;
+  }
+
+  private static int pow2(int n) {
+    if (n < 2 || n > 1 << 28)
+      throw new IllegalArgumentException("Bad bucket count: "+n);
+    return Integer.highestOneBit(n - 1) << 1;
+  }
+
+  /** The header members, relative to the start of the table. */
+  private static final class Layout {
+    final int magic, nbuckets, dataEnd, top, count, used, garbage, seq, lock;
+    final int buckets;
+    Layout() {
+      CPtr.Struct s = new CPtr.Struct(0);
+      magic = s.offsetOf(CPtr.CINT_TYPE);
+      nbuckets = s.offsetOf(CPtr.CINT_TYPE);
+      dataEnd = s.offsetOf(CPtr.CINT_TYPE);
+      top = s.offsetOf(CPtr.CINT_TYPE);
+      count = s.offsetOf(CPtr.CINT_TYPE);
+      used = s.offsetOf(CPtr.CINT_TYPE);
+      garbage = s.offsetOf(CPtr.CINT_TYPE);
+      seq = s.addMember(ShmSeqLock.HEADER,63);	// own cache line
+      lock = s.addMember(ShmMutex.SIZE,63);
+      buckets = s.addMember(0,63);
+    }
+  }
+  private static final Layout LAYOUT = new Layout();
+
+  /** Create or attach a table in a SharedMem segment and a SemSet
+    of 1 semaphore with the same IPC key.
+    @param key	IPC key or IPC_PRIVATE
+    @param buckets	the number of buckets, rounded up to a power of 2
+    @param dataSize	the bytes for keys and values
+    @param flag	options and permissions, as for {@link SharedMem}
+   */
+  public ShmHashMap(int key,int buckets,int dataSize,int flag)
+	throws IPCException {
+    this(new SharedMem(key,sizeOf(buckets,dataSize),flag),
+	 new SemSet(key,1,flag),buckets);
+  }
+
+  /** Attach an existing table created by another process. */
+  public ShmHashMap(int key,int flag) throws IPCException {
+    this(new SharedMem(key,flag),new SemSet(key,1,flag & ~IPC.IPC_CREAT),2);
+  }
+
+  private ShmHashMap(SharedMem shm,SemSet sems,int buckets)
+	throws IPCException {
+    this(shm.attach(),0,shm.attach().size,buckets,sems,0);
+    this.shm = shm;
+    this.sems = sems;
+  }
+
+  /** Create or attach a table in a region of C memory, which must be
+    zero before the table is created.
+    @param mem	shared memory containing the table
+    @param off	offset of the table in mem, a multiple of 64
+    @param len	total size of the table including the header
+    @param buckets	the number of buckets, rounded up to a power of 2,
+	used only when creating the table
+    @param sems	a SemSet for writers to block on
+    @param semnum	a semaphore reserved for this table, initially 0
+   */
+  public ShmHashMap(CPtr mem,int off,int len,int buckets,SemSet sems,int semnum) {
+    if ((off & 63) != 0 || off < 0 || len > mem.size - off)
+      throw new IllegalArgumentException("Bad table region: "+off+","+len);
+    Layout h = LAYOUT;
+    this.mem = mem;
+    this.view = mem.asByteBuffer();
+    this.base = off;
+    magicOff = off + h.magic;
+    nbucketsOff = off + h.nbuckets;
+    dataEndOff = off + h.dataEnd;
+    topOff = off + h.top;
+    countOff = off + h.count;
+    usedOff = off + h.used;
+    garbageOff = off + h.garbage;
+    bucketOff = off + h.buckets;
+    lock = new ShmMutex(mem,off + h.lock,sems,semnum);
+    seq = new ShmSeqLock(mem,off + h.seq,ShmSeqLock.HEADER);
+    int n;
+    if (mem.compareAndSetInt(magicOff,0,INIT)) {
+      n = pow2(buckets);
+      if (len - (bucketOff - off) - 8 * n < ENTRY)
+	throw new IllegalArgumentException("Table too small: "+len);
+      mem.setIntVolatile(nbucketsOff,n);
+      mem.setIntVolatile(dataEndOff,len);
+      mem.setIntVolatile(topOff,h.buckets + 8 * n);
+      mem.setIntVolatile(magicOff,MAGIC);
+    }
+    else {
+      int m;
+      while ((m = mem.getIntVolatile(magicOff)) == INIT)
+	Thread.yield();
+      if (m != MAGIC)
+	throw new IllegalArgumentException("Not a ShmHashMap");
+      n = mem.getIntVolatile(nbucketsOff);
+      if (mem.getIntVolatile(dataEndOff) > len)
+	throw new IllegalArgumentException("Table region too small: "+len);
+    }
+    nbuckets = n;
+    mask = n - 1;
+    dataOff = bucketOff + 8 * n;
+  }
+
+  /** Hash a key.  FNV-1a followed by the murmur3 finalizer. */
+  private static int hash(byte[] key,int off,int len) {
+    int h = 0x811c9dc5;
+    for (int i = 0; i < len; ++i)
+      h = (h ^ (key[off + i] & 0xff)) * 0x01000193;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    return h ^ (h >>> 16);
+  }
+
+  private int bucket(int i) { return bucketOff + 8 * i; }
+
+  /** Return the offset in mem of the entry in a bucket. */
+  private int entry(long b) { return base + (int)b; }
+
+  /** Return true if the entry at e has the given key.  The entry may be
+    torn by a concurrent clear, so its lengths are checked before use.
+   */
+  private boolean matches(int e,byte[] key,int off,int len) {
+    if (e < dataOff || e > view.capacity() - ENTRY)
+      return false;
+    if (mem.getCInt(e + KLEN_OFF) != len)
+      return false;
+    int k = e + ENTRY;
+    if (k > view.capacity() - len)
+      return false;
+    for (int i = 0; i < len; ++i)
+      if (view.get(k + i) != key[off + i]) return false;
+    return true;
+  }
+
+  /** Find the bucket holding a key.
+    @return the bucket index, or -1
+   */
+  private int find(int h,byte[] key,int off,int len) {
+    for (int i = h & mask, n = 0; n < nbuckets; i = (i + 1) & mask, ++n) {
+      long b = mem.getLongVolatile(bucket(i));
+      if (b == 0L) return -1;
+      if (isEntry(b,h,key,off,len))
+	return i;
+    }
+    return -1;
+  }
+
+  /** Find the bucket word for a key, as read when it matched.  Readers
+    use the word, since the bucket may change once it has been read.
+    @return the bucket word, or 0
+   */
+  private long lookup(int h,byte[] key,int off,int len) {
+    for (int i = h & mask, n = 0; n < nbuckets; i = (i + 1) & mask, ++n) {
+      long b = mem.getLongVolatile(bucket(i));
+      if (b == 0L) return 0L;
+      if (isEntry(b,h,key,off,len))
+	return b;
+    }
+    return 0L;
+  }
+
+  private boolean isEntry(long b,int h,byte[] key,int off,int len) {
+    return (int)(b >>> 32) == h && (b & TOMBSTONE) != TOMBSTONE
+	&& matches(entry(b),key,off,len);
+  }
+
+  /** Look up a key and copy its value.
+    @return the length of the value, or -1 if the key is not present
+    @throws IllegalArgumentException if the value is larger than len
+   */
+  public int get(byte[] key,int koff,int klen,byte[] buf,int off,int len) {
+    int h = hash(key,koff,klen);
+    for (;;) {
+      long s = seq.readBegin();
+      int vlen = -1;
+      long b = lookup(h,key,koff,klen);
+      if (b != 0L) {
+	int e = entry(b);
+	vlen = mem.getCInt(e + VLEN_OFF);
+	int v = e + ENTRY + klen;
+	if (vlen < 0 || v > view.capacity() - vlen) {
+	  if (seq.validate(s))
+	    throw new IllegalStateException("ShmHashMap corrupt");
+	  continue;
+	}
+	if (vlen <= len)
+	  mem.copyOut(v,buf,off,vlen);
+      }
+      if (seq.validate(s)) {
+	if (vlen > len)
+	  throw new IllegalArgumentException(
+	    "Value of "+vlen+" bytes exceeds buffer of "+len);
+	return vlen;
+      }
+    }
+  }
+
+  /** Look up a key and return a copy of its value, or null. */
+  public byte[] get(byte[] key) {
+    int h = hash(key,0,key.length);
+    for (;;) {
+      long s = seq.readBegin();
+      byte[] val = null;
+      long b = lookup(h,key,0,key.length);
+      if (b != 0L) {
+	int e = entry(b);
+	int vlen = mem.getCInt(e + VLEN_OFF);
+	int v = e + ENTRY + key.length;
+	if (vlen >= 0 && v <= view.capacity() - vlen) {
+	  val = new byte[vlen];
+	  mem.copyOut(v,val,0,vlen);
+	}
+      }
+      if (seq.validate(s))
+	return val;
+    }
+  }
+
+  /** Return true if the table has a key. */
+  public boolean containsKey(byte[] key) {
+    int h = hash(key,0,key.length);
+    for (;;) {
+      long s = seq.readBegin();
+      boolean found = lookup(h,key,0,key.length) != 0L;
+      if (seq.validate(s))
+	return found;
+    }
+  }
+
+  /** Add or replace a key.
+    @return true if the key was not already present
+    @throws IllegalStateException if the table is full
+   */
+  public boolean put(byte[] key,int koff,int klen,byte[] val,int voff,int vlen) {
+    if (klen < 0 || vlen < 0)
+      throw new IllegalArgumentException("Bad length: "+klen+","+vlen);
+    int h = hash(key,koff,klen);
+    lock.lock();
+    try {
+      int i = find(h,key,koff,klen);
+      int slot = i;
+      if (slot < 0) {
+	slot = h & mask;
+	for (;;) {
+	  long b = mem.getLongVolatile(bucket(slot));
+	  if ((b & TOMBSTONE) == TOMBSTONE) break;	// reuse, used unchanged
+	  if (b == 0L) {
+	    // a fresh bucket, keep 1/4 of the buckets empty to end probes
+	    if (mem.getIntVolatile(usedOff) >= nbuckets - (nbuckets >> 2))
+	      throw new IllegalStateException("ShmHashMap buckets full");
+	    break;
+	  }
+	  slot = (slot + 1) & mask;
+	}
+      }
+      int size = (ENTRY + klen + vlen + 7) & ~7;
+      int e = base + mem.getIntVolatile(topOff);
+      if (size > base + mem.getIntVolatile(dataEndOff) - e)
+	throw new IllegalStateException("ShmHashMap data full");
+      mem.setCInt(e + KLEN_OFF,klen);
+      mem.setCInt(e + VLEN_OFF,vlen);
+      mem.copyIn(e + ENTRY,key,koff,klen);
+      mem.copyIn(e + ENTRY + klen,val,voff,vlen);
+      mem.setIntVolatile(topOff,e - base + size);
+      long old = mem.getAndSetLong(bucket(slot),((long)h << 32) | (e - base));
+      if (i >= 0) {
+	mem.getAndAddInt(garbageOff,entrySize(entry(old)));
+	return false;
+      }
+      if (old == 0L)
+	mem.getAndAddInt(usedOff,1);
+      mem.getAndAddInt(countOff,1);
+      return true;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean put(byte[] key,byte[] val) {
+    return put(key,0,key.length,val,0,val.length);
+  }
+
+  private int entrySize(int e) {
+    return (ENTRY + mem.getCInt(e + KLEN_OFF) + mem.getCInt(e + VLEN_OFF) + 7)
+	& ~7;
+  }
+
+  /** Remove a key.
+    @return true if the key was present
+   */
+  public boolean remove(byte[] key) {
+    int h = hash(key,0,key.length);
+    lock.lock();
+    try {
+      int i = find(h,key,0,key.length);
+      if (i < 0) return false;
+      long old = mem.getAndSetLong(bucket(i),((long)h << 32) | TOMBSTONE);
+      mem.getAndAddInt(garbageOff,entrySize(entry(old)));
+      mem.getAndAddInt(countOff,-1);
+      return true;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /** Remove all keys and reclaim the data area.  Readers that overlap
+    a clear retry their lookup. */
+  public void clear() {
+    lock.lock();
+    try {
+      seq.writeBegin();
+      for (int i = 0; i < nbuckets; ++i)
+	mem.setLongRelease(bucket(i),0L);
+      mem.setIntVolatile(topOff,dataOff - base);
+      mem.setIntVolatile(countOff,0);
+      mem.setIntVolatile(usedOff,0);
+      mem.setIntVolatile(garbageOff,0);
+      seq.writeEnd();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /** Return the number of keys. */
+  public int size() { return mem.getIntVolatile(countOff); }
+
+  /** Return the number of buckets. */
+  public int buckets() { return nbuckets; }
+
+  /** Return the bytes of the data area in use, including garbage. */
+  public int dataUsed() { return base + mem.getIntVolatile(topOff) - dataOff; }
+
+  /** Return the bytes of the data area still free. */
+  public int dataFree() {
+    return mem.getIntVolatile(dataEndOff) - mem.getIntVolatile(topOff);
+  }
+
+  /** Return the bytes of the data area held by replaced or removed entries. */
+  public int garbage() { return mem.getIntVolatile(garbageOff); }
+
+  /** Detach the table.  If this table created its SharedMem and SemSet,
+    they are disposed as well. */
+  public void dispose() {
+    if (shm != null) {
+      shm.dispose();
+      sems.dispose();
+      shm = null;
+    }
+  }
+}
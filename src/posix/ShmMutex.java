@@ -0,0 +1,172 @@
+package posix;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+/** A mutual exclusion lock in shared memory for very short critical
+  sections.  An uncontended lock and unlock is one atomic instruction
+  each, with no system call.  A process that finds the lock held spins
+  briefly with {@link Thread#onSpinWait}, and only then blocks on a
+  semaphore in a {@link SemSet}.
+  <p>
+  The lock is 8 bytes in memory, which must be zero initially:
+<pre>
+    0	int state: 0 unlocked, 1 locked, 2 locked with possible waiters
+    4	int pid of the owner
+</pre>
+  This is the futex mutex of Drepper's "Futexes Are Tricky", with the
+  semaphore in place of the futex.  Unlock posts the semaphore only when
+  the state was 2.  A post that finds no waiter leaves the semaphore
+  positive, which only costs the next waiter a spurious wakeup.
+  <p>
+  Blocked waiters wake up periodically and check that the owner pid is
+  still alive with {@link IPC#isPidValid}.  If the owner has died, one
+  waiter takes over the lock, and {@link #lockRecover} tells it that
+  the data protected by the lock may be inconsistent.  A process that
+  dies between changing the state and the owner pid is not detected.
+  <p>
+  Like {@link SemLock}, the lock is not reentrant and is not owned by
+  a thread.  IPC errors are thrown as IllegalStateException.
+ */
+public class ShmMutex implements Lock {
+  /** The size of a ShmMutex in memory. */
+  public static final int SIZE = 8;
+  private static final int STATE_OFF = 0, OWNER_OFF = 4;
+  private static final int UNLOCKED = 0, LOCKED = 1, CONTENDED = 2;
+  /** Number of times to poll before blocking. */
+  private static final int SPINS = 100;
+  /** How often a blocked waiter checks the owner. */
+  private static final long CHECK = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private final CPtr mem;
+  private final int state;
+  private final int owner;
+  private final SemSet sems;
+  private final short[] wait;
+  private final short[] post;
+
+  /** A lock in a region of shared memory.
+    @param mem	shared memory containing the lock
+    @param off	offset of the lock in mem, a multiple of 8
+    @param sems	semaphore set for blocking
+    @param semnum	a semaphore reserved for this lock, initially 0
+   */
+  public ShmMutex(CPtr mem,int off,SemSet sems,int semnum) {
+    if ((off & 7) != 0 || off < 0 || off > mem.size - SIZE)
+      throw new IllegalArgumentException("Bad mutex offset: "+off);
+    this.mem = mem;
+    this.state = off + STATE_OFF;
+    this.owner = off + OWNER_OFF;
+    this.sems = sems;
+    wait = new short[] { (short)semnum, -1, 0 };
+    post = new short[] { (short)semnum, 1, 0 };
+  }
+
+  /** Return the pid of the process holding the lock, or 0. */
+  public int getOwner() { return mem.getIntVolatile(owner); }
+
+  /** Return true if the lock is held by some process. */
+  public boolean isLocked() { return mem.getIntVolatile(state) != UNLOCKED; }
+
+  private boolean spin() {
+    for (int i = 0; i < SPINS; ++i) {
+      if (mem.getIntVolatile(state) == UNLOCKED
+	  && mem.compareAndSetInt(state,UNLOCKED,LOCKED))
+	return true;
+      Thread.onSpinWait();
+    }
+    return false;
+  }
+
+  /** Acquire the lock, taking it over if the owner has died.
+    @return true if the previous owner died while holding the lock
+   */
+  public boolean lockRecover() {
+    try {
+      return acquire(Long.MAX_VALUE,false) > 0;
+    }
+    catch (InterruptedException x) {
+      throw new AssertionError(x);	// not interruptible
+    }
+  }
+
+  public void lock() {
+    lockRecover();
+  }
+
+  public void lockInterruptibly() throws InterruptedException {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    acquire(Long.MAX_VALUE,true);
+  }
+
+  public boolean tryLock() {
+    if (mem.compareAndSetInt(state,UNLOCKED,LOCKED)) {
+      mem.setIntVolatile(owner,IPC.pid);
+      return true;
+    }
+    return false;
+  }
+
+  public boolean tryLock(long time,TimeUnit unit) throws InterruptedException {
+    if (Thread.interrupted())
+      throw new InterruptedException();
+    return acquire(unit.toNanos(time),true) >= 0;
+  }
+
+  /** Acquire the lock.
+    @return 0 if acquired, 1 if taken over from a dead owner, -1 on timeout
+   */
+  private int acquire(long nanos,boolean interruptible)
+	throws InterruptedException {
+    if (spin()) {
+      mem.setIntVolatile(owner,IPC.pid);
+      return 0;
+    }
+    long deadline = System.nanoTime() + nanos;
+    try {
+      while (mem.getAndSetInt(state,CONTENDED) != UNLOCKED) {
+	long left = nanos == Long.MAX_VALUE ? CHECK : deadline - System.nanoTime();
+	if (left <= 0)
+	  return -1;
+	if (sems.semop(wait,Math.min(left,CHECK),TimeUnit.NANOSECONDS))
+	  continue;
+	if (interruptible && Thread.interrupted())
+	  throw new InterruptedException();
+	int pid = mem.getIntVolatile(owner);
+	if (pid != 0 && !IPC.isPidValid(pid)
+	    && mem.compareAndSetInt(owner,pid,IPC.pid)) {
+	  mem.setIntVolatile(state,CONTENDED);
+	  return 1;
+	}
+      }
+    }
+    catch (IPCException x) {
+      throw new IllegalStateException(x);
+    }
+    mem.setIntVolatile(owner,IPC.pid);
+    return 0;
+  }
+
+  public void unlock() {
+    mem.setIntVolatile(owner,0);
+    if (mem.getAndSetInt(state,UNLOCKED) == CONTENDED) {
+      try {
+	sems.semopRetry(post);
+      }
+      catch (IPCException x) {
+	// ERANGE: the semaphore already has more posts than needed
+	if (x.getErrno() == Errno.EIDRM || x.getErrno() == Errno.EINVAL)
+	  throw new IllegalStateException(x);
+      }
+    }
+  }
+
+  /** Not supported.
+    @throws UnsupportedOperationException always
+   */
+  public Condition newCondition() {
+    throw new UnsupportedOperationException("ShmMutex.newCondition");
+  }
+}
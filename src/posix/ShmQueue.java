@@ -0,0 +1,362 @@
+package posix;
+
+/** A multiple producer, multiple consumer queue of bounded size records
+  in shared memory.  Any number of processes may send and receive, and
+  none of them make a system call while the queue is neither empty nor
+  full.
+  <p>
+  The queue is an array of slots, each with a 64-bit control word
+  holding a 32-bit sequence number and the pid of the process that owns
+  the slot.  A producer claims the slot at the tail position by setting
+  its pid with compare and set, fills in the record, and commits it by
+  advancing the sequence.  Consumers claim and retire slots at the head
+  in the same way.  Because the claim records a pid, a slot held by a
+  process that has crashed is detected with {@link IPC#isPidValid} and
+  reclaimed, so the queue does not stall: an unfinished record is
+  skipped, and a record whose consumer crashed while copying it out is
+  dropped.
+  <p>
+  A process that finds the queue empty (or full) spins briefly, then
+  closes a gate semaphore in a {@link SemSet} and waits for it to
+  open.  The other side only opens the gate if a shared flag says
+  someone may be waiting.
+  <p>
+  The layout in memory is:
+<pre>
+    0	int magic
+    8	int number of slots (a power of 2)
+   12	int maximum record size
+   64	int tail position
+  128	int head position
+  192	int consumer gate flag
+  256	int producer gate flag
+  320	slots
+</pre>
+  Each slot is a 64-bit control word, a native C int record length,
+  and the record bytes, padded to a multiple of 64 bytes.  Positions
+  are 32-bit and wrap.
+ */
+public class ShmQueue {
+  private static final int MAGIC = 0x53484d51;	// "SHMQ"
+  private static final int INIT = 1;		// magic while initializing
+  private static final int CACHE_LINE = 64;
+  private static final int
+    MAGIC_OFF = 0,
+    SLOTS_OFF = 8,
+    MAXREC_OFF = 12,
+    TAIL_OFF = CACHE_LINE,
+    HEAD_OFF = 2 * CACHE_LINE,
+    CGATE_OFF = 3 * CACHE_LINE,
+    PGATE_OFF = 4 * CACHE_LINE;
+  /** The size of the queue header. */
+  public static final int HEADER = 5 * CACHE_LINE;
+  private static final int LEN_OFF = 8, DATA_OFF = 16;
+  /** Record length of a slot abandoned by a crashed producer. */
+  private static final int SKIP = -1;
+  private static final int SPINS = 1000;
+
+  /** Semaphore numbers in the SemSet. */
+  private static final short CGATE = 0, PGATE = 1;
+  private static final short[]
+    CWAIT = { CGATE, 0, 0 },
+    PWAIT = { PGATE, 0, 0 };
+
+  private final CPtr mem;
+  private final int base;
+  private final int slots;
+  private final int mask;
+  private final int maxRecord;
+  private final int stride;
+  private final SemSet sems;
+  private final int pid = IPC.pid;
+  private SharedMem shm;
+
+  /** Return the size of memory needed for a queue. */
+  public static int sizeOf(int slots,int maxRecord) {
+    return HEADER + slots * stride(maxRecord);
+  }
+
+  private static int stride(int maxRecord) {
+    return (DATA_OFF + maxRecord + CACHE_LINE - 1) & ~(CACHE_LINE - 1);
+  }
+
+  /** Create or attach a queue in a SharedMem segment and a SemSet
+    of 2 semaphores with the same IPC key.
+    @param key	IPC key or IPC_PRIVATE
+    @param slots	the number of slots, rounded down to a power of 2
+    @param maxRecord	the largest record size
+    @param flag	options and permissions, as for {@link SharedMem}
+   */
+  public ShmQueue(int key,int slots,int maxRecord,int flag)
+	throws IPCException {
+    this(new SharedMem(key,sizeOf(slots,maxRecord),flag),
+	 new SemSet(key,2,flag),maxRecord);
+  }
+
+  /** Attach an existing queue created by another process. */
+  public ShmQueue(int key,int flag) throws IPCException {
+    this(new SharedMem(key,flag),new SemSet(key,2,flag & ~IPC.IPC_CREAT),0);
+  }
+
+  private ShmQueue(SharedMem shm,SemSet sems,int maxRecord)
+	throws IPCException {
+    this(shm.attach(),sems,maxRecord);
+    this.shm = shm;
+  }
+
+  private ShmQueue(CPtr mem,SemSet sems,int maxRecord) throws IPCException {
+    this(mem,0,mem.size,maxRecord,sems);
+  }
+
+  /** Create or attach a queue in a region of C memory.  If the queue
+    already exists, its record size is used and <code>maxRecord</code>
+    is ignored.
+    @param mem	shared memory containing the queue
+    @param off	offset of the queue in mem, a multiple of 8
+    @param len	total size of the queue including the header
+    @param maxRecord	the largest record size
+    @param sems	a SemSet with 2 semaphores reserved for this queue
+   */
+  public ShmQueue(CPtr mem,int off,int len,int maxRecord,SemSet sems)
+	throws IPCException {
+    if ((off & 7) != 0 || off < 0 || len > mem.size - off)
+      throw new IllegalArgumentException("Bad queue region: "+off+","+len);
+    this.mem = mem;
+    this.base = off;
+    this.sems = sems;
+    if (mem.compareAndSetInt(base + MAGIC_OFF,0,INIT)) {
+      if (maxRecord < 0)
+	throw new IllegalArgumentException("Bad record size: "+maxRecord);
+      int n = Integer.highestOneBit((len - HEADER) / stride(maxRecord));
+      if (n < 2)
+	throw new IllegalArgumentException("Queue too small: "+len);
+      mem.setIntVolatile(base + SLOTS_OFF,n);
+      mem.setIntVolatile(base + MAXREC_OFF,maxRecord);
+      mem.setIntVolatile(base + TAIL_OFF,0);
+      mem.setIntVolatile(base + HEAD_OFF,0);
+      mem.setIntVolatile(base + CGATE_OFF,0);
+      mem.setIntVolatile(base + PGATE_OFF,0);
+      int stride = stride(maxRecord);
+      for (int i = 0; i < n; ++i)
+	mem.setLongVolatile(base + HEADER + i * stride,ctl(i,0));
+      sems.setValue((char)CGATE,(short)0);
+      sems.setValue((char)PGATE,(short)0);
+      mem.setIntVolatile(base + MAGIC_OFF,MAGIC);
+    }
+    else {
+      int m;
+      while ((m = mem.getIntVolatile(base + MAGIC_OFF)) == INIT)
+	Thread.yield();
+      if (m != MAGIC)
+	throw new IllegalArgumentException("Not a ShmQueue");
+    }
+    this.slots = mem.getIntVolatile(base + SLOTS_OFF);
+    this.mask = slots - 1;
+    this.maxRecord = mem.getIntVolatile(base + MAXREC_OFF);
+    this.stride = stride(this.maxRecord);
+  }
+
+  /** Return the number of slots. */
+  public final int capacity() { return slots; }
+
+  /** Return the largest record that can be sent. */
+  public final int maxRecord() { return maxRecord; }
+
+  private static long ctl(int seq,int pid) {
+    return (long)seq << 32 | pid & 0xffffffffL;
+  }
+
+  private int slot(int pos) { return base + HEADER + (pos & mask) * stride; }
+
+  /** Add a record if there is a free slot, without blocking.
+    @return true if the record was added, false if the queue is full
+   */
+  public boolean offer(byte[] buf,int off,int len) {
+    if (len < 0 || len > maxRecord)
+      throw new IllegalArgumentException("Bad record length: "+len);
+    for (;;) {
+      int pos = mem.getIntVolatile(base + TAIL_OFF);
+      int s = slot(pos);
+      long c = mem.getLongVolatile(s);
+      int d = (int)(c >>> 32) - pos;
+      int owner = (int)c;
+      if (d == 0) {
+	if (owner == 0) {
+	  if (!mem.compareAndSetLong(s,c,ctl(pos,pid))) continue;
+	  mem.compareAndSetInt(base + TAIL_OFF,pos,pos + 1);
+	  mem.setCInt(s + LEN_OFF,len);
+	  mem.copyIn(s + DATA_OFF,buf,off,len);
+	  mem.setLongVolatile(s,ctl(pos + 1,0));
+	  open(CGATE_OFF,CGATE);
+	  return true;
+	}
+	// claimed by another producer, help advance the tail
+	mem.compareAndSetInt(base + TAIL_OFF,pos,pos + 1);
+      }
+      else if (d < 0) {
+	// The slot still holds a record from the previous lap.
+	if (owner == 0 || IPC.isPidValid(owner) || !reclaim(s,c))
+	  return false;
+      }
+    }
+  }
+
+  /** Add a record, waiting for a free slot if necessary. */
+  public void put(byte[] buf,int off,int len) throws IPCException {
+    for (int i = 0; !offer(buf,off,len); ++i) {
+      if (i < SPINS)
+	Thread.onSpinWait();
+      else if (await(PGATE_OFF,PGATE,PWAIT,TAIL_OFF,0))
+	i = 0;
+    }
+  }
+
+  /** Remove the next record if there is one, without blocking.
+    @return the length of the record, or -1 if the queue is empty
+    @throws IllegalArgumentException if the record is larger than len,
+	in which case it remains in the queue
+   */
+  public int poll(byte[] buf,int off,int len) {
+    for (;;) {
+      int pos = mem.getIntVolatile(base + HEAD_OFF);
+      int s = slot(pos);
+      long c = mem.getLongVolatile(s);
+      int d = (int)(c >>> 32) - (pos + 1);
+      int owner = (int)c;
+      if (d == 0) {
+	if (owner == 0) {
+	  int n = mem.getCInt(s + LEN_OFF);
+	  if (n > len && mem.getLongVolatile(s) == c)
+	    throw new IllegalArgumentException(
+	      "Record of "+n+" bytes exceeds buffer of "+len);
+	  if (!mem.compareAndSetLong(s,c,ctl(pos + 1,pid))) continue;
+	  mem.compareAndSetInt(base + HEAD_OFF,pos,pos + 1);
+	  if (n > 0)
+	    mem.copyOut(s + DATA_OFF,buf,off,n);
+	  mem.setLongVolatile(s,ctl(pos + slots,0));
+	  open(PGATE_OFF,PGATE);
+	  if (n != SKIP) return n;
+	  continue;
+	}
+	// claimed by another consumer, help advance the head
+	mem.compareAndSetInt(base + HEAD_OFF,pos,pos + 1);
+      }
+      else if (d < 0) {
+	// The slot is free or being filled by a producer.
+	if (owner == 0 || IPC.isPidValid(owner) || !reclaim(s,c))
+	  return -1;
+      }
+    }
+  }
+
+  /** Remove the next record, waiting for one if necessary.
+    @return the length of the record
+   */
+  public int take(byte[] buf,int off,int len) throws IPCException {
+    for (int i = 0;; ++i) {
+      int n = poll(buf,off,len);
+      if (n >= 0) return n;
+      if (i < SPINS)
+	Thread.onSpinWait();
+      else if (await(CGATE_OFF,CGATE,CWAIT,HEAD_OFF,1))
+	i = 0;
+    }
+  }
+
+  /** Take over a slot owned by a dead process.  A slot claimed by a
+    producer is committed as a skipped record; a slot claimed by a
+    consumer is retired, dropping the record.
+    @return true if the slot was reclaimed by this or another process
+   */
+  private boolean reclaim(int s,long c) {
+    int seq = (int)(c >>> 32);
+    if (!mem.compareAndSetLong(s,c,ctl(seq,pid)))
+      return mem.getLongVolatile(s) != c;
+    if ((seq & mask) == ((s - base - HEADER) / stride)) {
+      mem.setCInt(s + LEN_OFF,SKIP);
+      mem.setLongVolatile(s,ctl(seq + 1,0));
+      open(CGATE_OFF,CGATE);
+    }
+    else {
+      mem.setLongVolatile(s,ctl(seq - 1 + slots,0));
+      open(PGATE_OFF,PGATE);
+    }
+    return true;
+  }
+
+  /** Scan for slots owned by processes that no longer exist and
+    reclaim them.  This normally happens as a side effect of sending
+    and receiving, but may be called by a supervisor.
+    @return the number of slots reclaimed
+   */
+  public int recover() {
+    int cnt = 0;
+    for (int i = 0; i < slots; ++i) {
+      int s = base + HEADER + i * stride;
+      long c = mem.getLongVolatile(s);
+      int owner = (int)c;
+      if (owner != 0 && !IPC.isPidValid(owner) && reclaim(s,c))
+	++cnt;
+    }
+    return cnt;
+  }
+
+  /** Return true if the queue has no committed records. */
+  public boolean isEmpty() {
+    int pos = mem.getIntVolatile(base + HEAD_OFF);
+    return (int)(mem.getLongVolatile(slot(pos)) >>> 32) != pos + 1;
+  }
+
+  /** Open a gate if someone may be waiting at it. */
+  private void open(int flag,short semnum) {
+    if (mem.getIntVolatile(base + flag) != 0
+	&& mem.compareAndSetInt(base + flag,1,0)) {
+      try {
+	sems.setValue((char)semnum,(short)0);
+      }
+      catch (IPCException x) {
+	throw new IllegalStateException(x);
+      }
+    }
+  }
+
+  /** Close a gate, recheck the queue, and wait for the gate to open.
+    The gate is closed before the flag is set, and the queue checked
+    after both, so a peer that makes progress after our check sees the
+    flag and opens the gate after we closed it.  Closing after setting
+    the flag would let a peer clear the flag and open the gate first.
+    The gate would then stay closed with no flag, and other waiters at
+    it would sleep through later progress.
+    @param pos	offset of the position to check
+    @param d	the slot sequence minus position that means ready
+    @return true if we waited
+   */
+  private boolean await(int flag,short semnum,short[] wait,int pos,int d)
+	throws IPCException {
+    sems.setValue((char)semnum,(short)1);
+    mem.setIntVolatile(base + flag,1);
+    int p = mem.getIntVolatile(base + pos);
+    int seq = (int)(mem.getLongVolatile(slot(p)) >>> 32);
+    if (seq - p == d)
+      return false;
+    for (;;) {
+      try {
+	sems.semop(wait);
+	return true;
+      }
+      catch (IPCException x) {
+	if (x.getErrno() != Errno.EINTR) throw x;
+      }
+    }
+  }
+
+  /** Detach the queue.  If this queue created its SharedMem and SemSet,
+    they are disposed as well. */
+  public void dispose() {
+    if (shm != null) {
+      shm.dispose();
+      sems.dispose();
+      shm = null;
+    }
+  }
+}
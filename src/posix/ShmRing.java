@@ -0,0 +1,290 @@
+package posix;
+
+/** A single producer, single consumer ring buffer of variable length
+  records in shared memory.  One process (or thread) calls
+  {@link #offer}/{@link #put}, another calls {@link #poll}/{@link #take}.
+  Neither side makes a system call while the ring is neither empty nor
+  full: records are copied into the ring and published by advancing a
+  64-bit position with release semantics.
+  <p>
+  A side that finds the ring empty (or full) spins briefly, then sets a
+  waiting flag and blocks on a semaphore in a {@link SemSet}.  The other
+  side posts the semaphore only when it sees the flag, so the semaphores
+  are not touched at all in the steady state.
+  <p>
+  The layout in memory is a header followed by the data area:
+<pre>
+    0	int magic
+    8	int capacity of data area (a power of 2)
+   64	long tail, written only by the producer
+  128	long head, written only by the consumer
+  192	int consumer waiting flag
+  256	int producer waiting flag
+  320	data
+</pre>
+  Each record is a native C int length followed by the record bytes,
+  padded to a multiple of 8.  A length of -1 marks unused space at the
+  end of the data area, and the record continues at the beginning.
+  The largest record is half the capacity less 4 bytes.
+ */
+public class ShmRing {
+  private static final int MAGIC = 0x53484d52;	// "SHMR"
+  private static final int INIT = 1;		// magic while initializing
+  private static final int CACHE_LINE = 64;
+  private static final int
+    MAGIC_OFF = 0,
+    CAP_OFF = 8,
+    TAIL_OFF = CACHE_LINE,
+    HEAD_OFF = 2 * CACHE_LINE,
+    CWAIT_OFF = 3 * CACHE_LINE,
+    PWAIT_OFF = 4 * CACHE_LINE;
+  /** The size of the ring header. */
+  public static final int HEADER = 5 * CACHE_LINE;
+  private static final int PAD = -1;
+  /** Number of times to poll before blocking. */
+  private static final int SPINS = 1000;
+
+  /** Semaphore numbers in the SemSet. */
+  private static final short CSEM = 0, PSEM = 1;
+  private static final short[]
+    CWAIT = { CSEM, -1, 0 },
+    CPOST = { CSEM, 1, 0 },
+    PWAIT = { PSEM, -1, 0 },
+    PPOST = { PSEM, 1, 0 };
+
+  private final CPtr mem;
+  private final int base;		// offset of ring within mem
+  private final int data;		// offset of data area within mem
+  private final int capacity;
+  private final int mask;
+  private final SemSet sems;
+  private SharedMem shm;		// segment owned by this ring, if any
+
+  /* Each side caches the other side's position to avoid touching
+     its cache line on every call. */
+  private long headCache;
+  private long tailCache;
+
+  /** Create or attach a ring in a SharedMem segment and a SemSet
+    of 2 semaphores with the same IPC key.
+    @param key	IPC key or IPC_PRIVATE
+    @param capacity	the data area size, rounded down to a power of 2
+    @param flag	options and permissions, as for {@link SharedMem}
+   */
+  public ShmRing(int key,int capacity,int flag) throws IPCException {
+    this(new SharedMem(key,HEADER + capacity,flag),
+	 new SemSet(key,2,flag));
+  }
+
+  /** Attach an existing ring created by another process. */
+  public ShmRing(int key,int flag) throws IPCException {
+    this(new SharedMem(key,flag),new SemSet(key,2,flag & ~IPC.IPC_CREAT));
+  }
+
+  private ShmRing(SharedMem shm,SemSet sems) throws IPCException {
+    this(shm.attach(),sems);
+    this.shm = shm;
+  }
+
+  private ShmRing(CPtr mem,SemSet sems) throws IPCException {
+    this(mem,0,mem.size,sems);
+  }
+
+  /** Create or attach a ring in a region of C memory.
+    @param mem	shared memory containing the ring
+    @param off	offset of the ring in mem, a multiple of 8
+    @param len	total size of the ring including the header
+    @param sems	a SemSet with 2 semaphores reserved for this ring
+   */
+  public ShmRing(CPtr mem,int off,int len,SemSet sems) throws IPCException {
+    if ((off & 7) != 0 || off < 0 || len > mem.size - off)
+      throw new IllegalArgumentException("Bad ring region: "+off+","+len);
+    if (len - HEADER < 16)
+      throw new IllegalArgumentException("Ring too small: "+len);
+    this.mem = mem;
+    this.base = off;
+    this.data = off + HEADER;
+    this.sems = sems;
+    int cap = Integer.highestOneBit(len - HEADER);
+    if (mem.compareAndSetInt(base + MAGIC_OFF,0,INIT)) {
+      mem.setIntVolatile(base + CAP_OFF,cap);
+      mem.setLongVolatile(base + TAIL_OFF,0L);
+      mem.setLongVolatile(base + HEAD_OFF,0L);
+      mem.setIntVolatile(base + CWAIT_OFF,0);
+      mem.setIntVolatile(base + PWAIT_OFF,0);
+      sems.setValue((char)CSEM,(short)0);
+      sems.setValue((char)PSEM,(short)0);
+      mem.setIntVolatile(base + MAGIC_OFF,MAGIC);
+    }
+    else {
+      int m;
+      while ((m = mem.getIntVolatile(base + MAGIC_OFF)) == INIT)
+	Thread.yield();
+      if (m != MAGIC)
+	throw new IllegalArgumentException("Not a ShmRing");
+      cap = mem.getIntVolatile(base + CAP_OFF);
+    }
+    this.capacity = cap;
+    this.mask = cap - 1;
+    this.headCache = mem.getLongVolatile(base + HEAD_OFF);
+    this.tailCache = mem.getLongVolatile(base + TAIL_OFF);
+  }
+
+  /** Return the size of the data area in bytes. */
+  public final int capacity() { return capacity; }
+
+  /** Return the largest record that can be sent. */
+  public final int maxRecord() { return capacity / 2 - 4; }
+
+  private static int align(int len) { return (len + 4 + 7) & ~7; }
+
+  /** Return the space needed to add a record at tail <code>t</code>,
+    including any padding to wrap around. */
+  private int need(long t,int r) {
+    int idx = (int)t & mask;
+    return capacity - idx < r ? capacity - idx + r : r;
+  }
+
+  /** Add a record if there is room, without blocking.
+    @return true if the record was added, false if the ring is full
+   */
+  public boolean offer(byte[] buf,int off,int len) {
+    if (len < 0 || len > maxRecord())
+      throw new IllegalArgumentException("Bad record length: "+len);
+    int r = align(len);
+    long t = mem.getLongAcquire(base + TAIL_OFF);
+    int n = need(t,r);
+    if (t + n - headCache > capacity) {
+      headCache = mem.getLongAcquire(base + HEAD_OFF);
+      if (t + n - headCache > capacity)
+	return false;
+    }
+    int idx = (int)t & mask;
+    if (n > r) {
+      mem.setCInt(data + idx,PAD);
+      t += n - r;
+      idx = 0;
+    }
+    mem.setCInt(data + idx,len);
+    mem.copyIn(data + idx + 4,buf,off,len);
+    // volatile, so the waiting flag is not read before tail is published
+    mem.setLongVolatile(base + TAIL_OFF,t + r);
+    if (mem.getIntVolatile(base + CWAIT_OFF) != 0)
+      wake(CWAIT_OFF,CPOST);
+    return true;
+  }
+
+  /** Add a record, waiting for room if necessary. */
+  public void put(byte[] buf,int off,int len) throws IPCException {
+    for (int i = 0; !offer(buf,off,len); ++i) {
+      if (i < SPINS)
+	Thread.onSpinWait();
+      else {
+	long t = mem.getLongAcquire(base + TAIL_OFF);
+	if (await(PWAIT_OFF,PWAIT,t + need(t,align(len)) - capacity))
+	  i = 0;
+      }
+    }
+  }
+
+  /** Remove the next record if there is one, without blocking.
+    @return the length of the record, or -1 if the ring is empty
+    @throws IllegalArgumentException if the record is larger than len,
+	in which case it remains in the ring
+   */
+  public int poll(byte[] buf,int off,int len) {
+    long h = mem.getLongAcquire(base + HEAD_OFF);
+    if (h == tailCache) {
+      tailCache = mem.getLongAcquire(base + TAIL_OFF);
+      if (h == tailCache)
+	return -1;
+    }
+    int idx = (int)h & mask;
+    int n = mem.getCInt(data + idx);
+    if (n == PAD) {
+      h += capacity - idx;
+      idx = 0;
+      n = mem.getCInt(data);
+    }
+    if (n > len)
+      throw new IllegalArgumentException(
+	"Record of "+n+" bytes exceeds buffer of "+len);
+    mem.copyOut(data + idx + 4,buf,off,n);
+    // volatile, so the waiting flag is not read before head is published
+    mem.setLongVolatile(base + HEAD_OFF,h + align(n));
+    if (mem.getIntVolatile(base + PWAIT_OFF) != 0)
+      wake(PWAIT_OFF,PPOST);
+    return n;
+  }
+
+  /** Remove the next record, waiting for one if necessary.
+    @return the length of the record
+   */
+  public int take(byte[] buf,int off,int len) throws IPCException {
+    for (int i = 0;; ++i) {
+      int n = poll(buf,off,len);
+      if (n >= 0) return n;
+      if (i < SPINS)
+	Thread.onSpinWait();
+      else if (await(CWAIT_OFF,CWAIT,mem.getLongAcquire(base + HEAD_OFF) + 1))
+	i = 0;
+    }
+  }
+
+  /** Return true if the ring has no records. */
+  public boolean isEmpty() {
+    return mem.getLongVolatile(base + HEAD_OFF)
+	== mem.getLongVolatile(base + TAIL_OFF);
+  }
+
+  /** Post the semaphore for a waiting peer.  Whoever clears the flag
+    decides whether a post happens, so posts and waits stay balanced. */
+  private void wake(int flag,short[] post) {
+    if (mem.compareAndSetInt(base + flag,1,0)) {
+      try {
+	semop(post);
+      }
+      catch (IPCException x) {
+	throw new IllegalStateException(x);
+      }
+    }
+  }
+
+  /** Set our waiting flag, recheck the ring, and block until posted.
+    The consumer waits for tail to reach <code>pos</code>, the producer
+    waits for head to reach <code>pos</code>.
+    @return true if we blocked
+   */
+  private boolean await(int flag,short[] wait,long pos) throws IPCException {
+    mem.setIntVolatile(base + flag,1);
+    int peer = flag == CWAIT_OFF ? TAIL_OFF : HEAD_OFF;
+    // If the peer already cleared the flag, its post must be consumed.
+    if (mem.getLongVolatile(base + peer) - pos >= 0
+	&& mem.compareAndSetInt(base + flag,1,0))
+      return false;
+    semop(wait);
+    return true;
+  }
+
+  private void semop(short[] ops) throws IPCException {
+    for (;;) {
+      try {
+	sems.semop(ops);
+	return;
+      }
+      catch (IPCException x) {
+	if (x.getErrno() != Errno.EINTR) throw x;
+      }
+    }
+  }
+
+  /** Detach the ring.  If this ring created its SharedMem and SemSet,
+    they are disposed as well. */
+  public void dispose() {
+    if (shm != null) {
+      shm.dispose();
+      sems.dispose();
+      shm = null;
+    }
+  }
+}
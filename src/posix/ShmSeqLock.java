@@ -0,0 +1,158 @@
+package posix;
+
+import java.lang.invoke.VarHandle;
+
+/** A sequence lock over a region of shared memory, for data written by
+  one process at a time and read by any number of processes.  The
+  writer makes a 64-bit sequence count odd, changes the data, and makes
+  the count even again.  A reader notes the count before reading and
+  checks it afterwards; if it changed, or was odd, the read may be torn
+  and is retried.  Readers never write shared memory, so they do not
+  slow each other or the writer, and read latency does not grow with
+  the number of readers.
+  <p>
+  Readers may see torn data before they check, so they must not trust
+  lengths or offsets read from the region until {@link #validate}
+  succeeds.  {@link #read} does this for a snapshot published with
+  {@link #write}.
+  <p>
+  The layout in memory is:
+<pre>
+    0	long sequence count
+    8	int length of the snapshot
+   16	snapshot data
+</pre>
+  Only the sequence count is used by {@link #readBegin},
+  {@link #validate}, {@link #writeBegin} and {@link #writeEnd}.
+  <p>
+  If a writer dies between writeBegin and writeEnd, readers spin forever.
+ */
+public class ShmSeqLock {
+  private static final int SEQ_OFF = 0, LEN_OFF = 8;
+  /** The size of the header before the snapshot data. */
+  public static final int HEADER = 16;
+  /** Number of times to poll before yielding. */
+  private static final int SPINS = 100;
+
+  private final CPtr mem;
+  private final int seq;
+  private final int data;
+  private final int capacity;
+
+  /** A sequence lock in a region of shared memory, which must be zero
+    before first use.
+    @param mem	shared memory containing the region
+    @param off	offset of the region in mem, a multiple of 8
+    @param len	size of the region including the header
+   */
+  public ShmSeqLock(CPtr mem,int off,int len) {
+    if ((off & 7) != 0 || off < 0 || len < HEADER || len > mem.size - off)
+      throw new IllegalArgumentException("Bad seqlock region: "+off+","+len);
+    this.mem = mem;
+    this.seq = off + SEQ_OFF;
+    this.data = off + HEADER;
+    this.capacity = len - HEADER;
+  }
+
+  /** Return the largest snapshot that fits. */
+  public final int capacity() { return capacity; }
+
+  /** Wait until no write is in progress, and return the sequence count
+    to pass to {@link #validate}. */
+  public long readBegin() {
+    for (int i = 0;; ++i) {
+      long s = mem.getLongAcquire(seq);
+      if ((s & 1) == 0) return s;
+      if (i < SPINS)
+	Thread.onSpinWait();
+      else
+	Thread.yield();
+    }
+  }
+
+  /** Return true if no write started since {@link #readBegin} returned
+    <code>s</code>, so that everything read in between is consistent. */
+  public boolean validate(long s) {
+    VarHandle.acquireFence();	// reads of data before reading seq again
+    return mem.getLongVolatile(seq) == s;
+  }
+
+  /** Start a write.  Writers exclude each other, so a second writer
+    spins until the first finishes. */
+  public void writeBegin() {
+    for (int i = 0;; ++i) {
+      long s = mem.getLongVolatile(seq);
+      if ((s & 1) == 0 && mem.compareAndSetLong(seq,s,s + 1))
+	return;
+      if (i < SPINS)
+	Thread.onSpinWait();
+      else
+	Thread.yield();
+    }
+  }
+
+  /** Finish a write, publishing the changes to readers. */
+  public void writeEnd() {
+    long s = mem.getLongVolatile(seq);
+    if ((s & 1) == 0)
+      throw new IllegalStateException("writeEnd without writeBegin");
+    mem.setLongRelease(seq,s + 1);
+  }
+
+  /** Replace the snapshot. */
+  public void write(byte[] buf,int off,int len) {
+    if (len < 0 || len > capacity)
+      throw new IllegalArgumentException("Bad snapshot length: "+len);
+    writeBegin();
+    try {
+      mem.setCInt(seq + LEN_OFF,len);
+      mem.copyIn(data,buf,off,len);
+    }
+    finally {
+      writeEnd();
+    }
+  }
+
+  /** Copy a consistent snapshot.
+    @return the length of the snapshot
+    @throws IllegalArgumentException if the snapshot is larger than len
+   */
+  public int read(byte[] buf,int off,int len) {
+    for (;;) {
+      long s = readBegin();
+      int n = mem.getCInt(seq + LEN_OFF);
+      if (n >= 0 && n <= capacity) {
+	if (n <= len)
+	  mem.copyOut(data,buf,off,n);
+	if (validate(s)) {
+	  if (n > len)
+	    throw new IllegalArgumentException(
+	      "Snapshot of "+n+" bytes exceeds buffer of "+len);
+	  return n;
+	}
+      }
+      else if (validate(s))
+	throw new IllegalStateException("ShmSeqLock corrupt");
+    }
+  }
+
+  /** Return a copy of a consistent snapshot. */
+  public byte[] read() {
+    for (;;) {
+      long s = readBegin();
+      int n = mem.getCInt(seq + LEN_OFF);
+      if (n >= 0 && n <= capacity) {
+	byte[] buf = new byte[n];
+	mem.copyOut(data,buf,0,n);
+	if (validate(s))
+	  return buf;
+      }
+      else if (validate(s))
+	throw new IllegalStateException("ShmSeqLock corrupt");
+    }
+  }
+
+  /** Return the current sequence count, which is even when no write is
+    in progress and counts two for each write. */
+  public long sequence() { return mem.getLongVolatile(seq); }
+}
@@ -1,5 +1,8 @@
 package posix;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
 /** A posix signal.  A posix signal represents an external event of some
 sort.  For instance, <code>SIGINTR</code> means that a user interrupt signal
 was raised by the tty driver - usually because the user pressed the INTR
@@ -14,6 +17,14 @@ example, <code>SIGCHLD</code> means that a process started via
 <code>Runtime.exec()</code> has terminated.  For this reason, only
 selected signals are exported via static constants.
 <p>
+Other signals, including the real-time signals from SIGRTMIN to SIGRTMAX,
+are looked up with {@link #forName}, {@link #valueOf} or {@link #rt}.
+Signals that cannot be caught, or that report faults the JVM handles
+itself, are refused.  Real-time signals are queued rather than merged,
+and carry the int value sent by {@link #sigqueue}, so they can serve as
+a cheap doorbell between processes.  Looked up signals are always read
+from a signalfd, whatever the backend.
+<p>
 Each Signal is in one of three states.  <code>SIG_DFL</code> means that
 the default action is taken when the signal is received.  This usually
 means stopping the JVM process.  Whether any cleanup takes place depends
@@ -30,6 +41,26 @@ a signal being trapped on all platforms.  This may be rectified in the
 future if JNI provides some kind of signal interface, or posix provides
 some way of reliably distributing signals to multiple threads.
 
+<h2>Backends</h2>
+By default, a native thread waits for signals with <code>sigwait</code>
+and wakes the Java signal thread for each one.  When the system property
+<code>posix.signal.backend</code> is <code>signalfd</code>, the Java signal
+thread instead reads <code>signalfd_siginfo</code> records from a Linux
+signalfd, as many as are pending per read, and each {@link SignalEvent}
+carries the pid and uid of the sender and the value sent with
+<code>sigqueue</code>.  A trapped signal then has a native handler that
+forwards it to the reader thread, which blocks it, so the default action
+is never taken by a thread that did not block it.  The kernel requires a
+forwarded signal to be marked as queued, so a signal first delivered to
+another thread reports the code SI_QUEUE (-1).
+<p>
+Listeners are kept in a copy-on-write array, so they can be added and
+removed by any thread while signals are dispatched.  They are called on
+the signal thread in order of priority, so a slow listener delays other
+signals.  A listener added with an Executor is called through the
+Executor instead, which may be a pool or, on Java 21 and later, a
+virtual thread per task executor.
+
 @author <a href="mailto:stuart@bmsi.com">Stuart D. Gathman</a>
 Copyright (C) 1998 Business Management Systems, Inc.
 <p>
@@ -55,12 +86,16 @@ Boston, MA  02111-1307, USA.
  */
 
 public class Signal {
-  private final int sig;
+  private final int sig;		// Java index, or -1 if looked up
+  private final int signo;	// native signal number
   private int action = SIG_DFL;
-  private SignalListener listener = null;
 
+  /** The signals with a Java index, known to the sigwait thread. */
   private static int MAXSIG = 8;
   private static Signal[] s = new Signal[MAXSIG];
+  /** Every Signal object by native signal number. */
+  private static final Signal[] bySigno = new Signal[65];
+  private static final Registration[] NONE = new Registration[0];
 
   /** The terminal or X session has disconnected. */
   public static final Signal SIGHUP = new Signal(0);
@@ -92,31 +127,202 @@ public class Signal {
     default:
       throw new IllegalArgumentException("Invalid signal action: "+action);
     case SIG_EVT:
+      if (useSignalfd || sig < 0) break;
       start();	// start signal waiting Thread
     case SIG_IGN:
     case SIG_DFL:
     }
-    sigaction(sig,action);
+    if (useSignalfd || sig < 0)
+      sigfdAction(this,action);
+    else
+      sigaction(sig,action);
     this.action = action;
   }
 
   public final int getAction() { return action; }
 
+  /** A listener, its priority, and its Executor or null. */
+  private static final class Registration {
+    final SignalListener l;
+    final int priority;
+    final Executor ex;
+    Registration(SignalListener l,int priority,Executor ex) {
+      this.l = l;
+      this.priority = priority;
+      this.ex = ex;
+    }
+  }
+
+  /** Listeners in order of decreasing priority.  Replaced, never changed,
+    so dispatch reads it without locking. */
+  private volatile Registration[] listeners = NONE;
+
   public void addSignalListener(SignalListener l) {
-    listener = SignalMulticaster.add(listener,l);
+    addSignalListener(l,0,null);
+  }
+
+  /** Add a listener that is called through an Executor, so that it does
+    not delay the signal thread or other listeners.
+   */
+  public void addSignalListener(SignalListener l,Executor ex) {
+    addSignalListener(l,0,ex);
   }
 
-  public void removeSignalListener(SignalListener l) {
-    listener = SignalMulticaster.del(listener,l);
+  /** Add a listener.  Listeners are called in order of decreasing
+    priority, and in the order added for equal priority.  A listener with
+    an Executor is called through it; others are called on the signal
+    thread, and an exception from one does not stop the rest.
+    @param priority	the default is 0
+    @param ex		the Executor, or null
+   */
+  public synchronized void addSignalListener(SignalListener l,int priority,
+	Executor ex) {
+    if (l == null) return;
+    Registration[] a = listeners;
+    int i = a.length;
+    while (i > 0 && a[i - 1].priority < priority) --i;
+    Registration[] b = new Registration[a.length + 1];
+    System.arraycopy(a,0,b,0,i);
+    b[i] = new Registration(l,priority,ex);
+    System.arraycopy(a,i,b,i + 1,a.length - i);
+    listeners = b;
+  }
+
+  /** Remove the first registration of a listener. */
+  public synchronized void removeSignalListener(SignalListener l) {
+    Registration[] a = listeners;
+    for (int i = 0; i < a.length; ++i) {
+      if (a[i].l == l) {
+	Registration[] b = a.length == 1 ? NONE : new Registration[a.length - 1];
+	System.arraycopy(a,0,b,0,i);
+	System.arraycopy(a,i + 1,b,i,a.length - i - 1);
+	listeners = b;
+	return;
+      }
+    }
   }
 
   /** Send a SignalEvent to all listeners. */
 
   public void processSignal() {
-    SignalListener l = listener;
-    if (l != null) {
-      SignalEvent e = new SignalEvent(this);
-      l.signalReceived(e);
+    dispatch(new SignalEvent(this));
+  }
+
+  /** Send a SignalEvent with sender information to all listeners. */
+  private void processSignal(int pid,int uid,int code,int value) {
+    dispatch(new SignalEvent(this,pid,uid,code,value));
+  }
+
+  private void dispatch(SignalEvent e) {
+    for (Registration r: listeners) {
+      try {
+	if (r.ex == null)
+	  r.l.signalReceived(e);
+	else {
+	  final SignalListener l = r.l;
+	  r.ex.execute(() -> l.signalReceived(e));
+	}
+      }
+      catch (RuntimeException x) { x.printStackTrace(); }
+    }
+  }
+
+  /** True to read signals from a signalfd. */
+  static final boolean useSignalfd =
+    "signalfd".equals(System.getProperty("posix.signal.backend","sigwait"));
+
+  /* Layout of struct signalfd_siginfo (Linux). */
+  private static final int SSI_SIZE = 128, SSI_SIGNO = 0, SSI_CODE = 8,
+    SSI_PID = 12, SSI_UID = 16, SSI_INT = 44;
+  /** Records read at a time. */
+  private static final int SSI_BATCH = 32;
+
+  private static int sigfd = -1;	// the signalfd, once created
+  private static long sigmask;		// bit n-1 for each signal n trapped
+  /** Reads the signalfd.  Separate from the sigwait thread, which may
+    also be needed for predefined signals trapped with sigwait. */
+  private static Thread sigfdThread;
+
+  /** Add or remove a signal from the signalfd.  A trapped signal gets a
+    native handler that forwards it to the reader thread, which blocks
+    it, so that it stays pending until read wherever it is delivered.
+   */
+  private static synchronized void sigfdAction(Signal sig,int action) {
+    LoadLibrary.requireExt("posix.signal.backend=signalfd");
+    int signo = sig.signo;
+    if (signo <= 0 || signo > 64)
+      throw new IllegalStateException("Signal not supported: "+sig);
+    long bit = 1L << (signo - 1);
+    if (action != SIG_EVT && (sigmask & bit) == 0) {
+      sig.handler(action);
+      return;
+    }
+    if (sigfd < 0)
+      startReader();
+    if (action == SIG_EVT && (sigmask & bit) == 0)
+      sig.handler(SIG_IGN);	// fails if the JVM traps it
+    long mask = action == SIG_EVT ? sigmask | bit : sigmask & ~bit;
+    int fd = signalfd(sigfd,mask);
+    if (fd < 0)
+      throw new IllegalStateException("signalfd: "+Errno.getErrdesc(fd & 0x7fffffff));
+    sigmask = mask;
+    sigaction1(signo,action);
+  }
+
+  /** Create the signalfd and start its reader, and wait until the reader
+    is known to the native handler. */
+  private static void startReader() {
+    int fd = signalfd(-1,0L);
+    if (fd < 0)
+      throw new IllegalStateException("signalfd: "+Errno.getErrdesc(fd & 0x7fffffff));
+    sigfd = fd;
+    final CountDownLatch ready = new CountDownLatch(1);
+    sigfdThread = new Thread("posix.Signal") {
+      public void run() {
+	sigfdreader();
+	ready.countDown();
+	readSignals();
+      }
+    };
+    sigfdThread.setDaemon(true);
+    sigfdThread.start();
+    boolean interrupted = false;
+    while (ready.getCount() > 0) {
+      try { ready.await(); }
+      catch (InterruptedException x) { interrupted = true; }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /** Set the native handler. */
+  private void handler(int action) {
+    if (sig >= 0)
+      sigaction(sig,action);
+    else
+      sigaction1(signo,action);
+  }
+
+  /** Read batches of signals from the signalfd and dispatch them. */
+  private static void readSignals() {
+    try (Malloc buf = new Malloc(SSI_SIZE * SSI_BATCH)) {
+      for (;;) {
+	int n = sigread(sigfd,buf.addr,buf.size);
+	if (n < 0) {
+	  if ((n & 0x7fffffff) == Errno.EINTR) continue;
+	  throw new InternalError("signalfd read: "+Errno.getErrdesc(n & 0x7fffffff));
+	}
+	for (int off = 0; off + SSI_SIZE <= n; off += SSI_SIZE) {
+	  int signo = buf.getCInt(off + SSI_SIGNO);
+	  Signal sig = signo > 0 && signo <= 64 ? bySigno[signo] : null;
+	  if (sig == null) continue;
+	  try {
+	    sig.processSignal(buf.getCInt(off + SSI_PID),buf.getCInt(off + SSI_UID),
+		buf.getCInt(off + SSI_CODE),buf.getCInt(off + SSI_INT));
+	  }
+	  catch (Throwable t) { t.printStackTrace(); }
+	}
+      }
     }
   }
 
@@ -146,7 +352,99 @@ public class Signal {
 
   private Signal(int sig) {
     this.sig = sig;
+    this.signo = sigmap(sig);
     s[sig] = this;
+    if (signo > 0 && signo <= 64)
+      bySigno[signo] = this;
+  }
+
+  private Signal(int sig,int signo) {
+    this.sig = sig;
+    this.signo = signo;
+    bySigno[signo] = this;
+  }
+
+  /** Names of the standard signals by number (Linux). */
+  private static final String[] names = {
+    null, "HUP", "INT", "QUIT", "ILL", "TRAP", "ABRT", "BUS", "FPE", "KILL",
+    "USR1", "SEGV", "USR2", "PIPE", "ALRM", "TERM", "STKFLT", "CHLD", "CONT",
+    "STOP", "TSTP", "TTIN", "TTOU", "URG", "XCPU", "XFSZ", "VTALRM", "PROF",
+    "WINCH", "IO", "PWR", "SYS"
+  };
+  /** Signals that cannot be caught, or report faults handled by the JVM. */
+  private static final long refused = 1L << 8 | 1L << 18	// KILL, STOP
+    | 1L << 3 | 1L << 4 | 1L << 6 | 1L << 7 | 1L << 10;	// ILL TRAP BUS FPE SEGV
+
+  /** The real-time signal range, looked up on first use so that the
+    predefined signals need no natives beyond the original ones.  Without
+    libposixext.so, the glibc range is assumed (Linux). */
+  private static final class RT {
+    static final int MIN = LoadLibrary.hasExt() ? sigrtmin() : 34;
+    static final int MAX = LoadLibrary.hasExt() ? sigrtmax() : 64;
+  }
+
+  /** Return the first real-time signal, SIGRTMIN, as reserved by the C
+    library. */
+  public static int getRTMin() { return RT.MIN; }
+  /** Return the last real-time signal, SIGRTMAX. */
+  public static int getRTMax() { return RT.MAX; }
+
+  /** True if a native signal number is a real-time signal.  Standard
+    signals are decided without looking up the range. */
+  private static boolean isRT(int signo) {
+    return signo >= names.length && signo >= RT.MIN && signo <= RT.MAX;
+  }
+
+  /** Return the Signal for a native signal number.
+    @throws IllegalArgumentException if the signal does not exist, cannot
+	be caught, or reports faults handled by the JVM
+   */
+  public static synchronized Signal valueOf(int signo) {
+    if (signo <= 0 || signo > 64
+	|| (signo < names.length ? (refused & 1L << (signo - 1)) != 0
+	  : !isRT(signo)))
+      throw new IllegalArgumentException("Signal not supported: "+signo);
+    Signal x = bySigno[signo];
+    return x != null ? x : new Signal(-1,signo);
+  }
+
+  /** Return real-time signal SIGRTMIN+n. */
+  public static Signal rt(int n) {
+    if (n < 0 || n > RT.MAX - RT.MIN)
+      throw new IllegalArgumentException("No real-time signal: SIGRTMIN+"+n);
+    return valueOf(RT.MIN + n);
+  }
+
+  /** Return a Signal by name, e.g. "SIGUSR1", "USR1", "SIGRTMIN+2" or
+    "RTMAX-1".
+    @throws IllegalArgumentException if unknown or not supported
+   */
+  public static Signal forName(String name) {
+    String n = name.startsWith("SIG") ? name.substring(3) : name;
+    try {
+      if (n.startsWith("RTMIN"))
+	return rt(n.length() == 5 ? 0 : Integer.parseInt(n.substring(5)));
+      if (n.startsWith("RTMAX"))
+	return rt(RT.MAX - RT.MIN
+	    + (n.length() == 5 ? 0 : Integer.parseInt(n.substring(5))));
+    }
+    catch (NumberFormatException x) { }
+    for (int i = 1; i < names.length; ++i)
+      if (names[i].equals(n))
+	return valueOf(i);
+    throw new IllegalArgumentException("Unknown signal: "+name);
+  }
+
+  /** Return the native signal number. */
+  public final int getNumber() { return signo; }
+
+  /** Return the name, e.g. "SIGUSR1" or "SIGRTMIN+2". */
+  public String toString() {
+    if (isRT(signo))
+      return "SIGRTMIN+" + (signo - RT.MIN);
+    if (signo > 0 && signo < names.length)
+      return "SIG" + names[signo];
+    return sig == 5 ? "SIGDANGER" : "SIG" + signo;
   }
 
   /** Wait for signals.
@@ -171,13 +469,49 @@ public class Signal {
     @param pid the Posix process id
    */
   public void kill(int pid) throws IPCException {
-    int rc = kill(pid,sigmap(sig));
+    int rc = kill(pid,signo);
     if (rc > 0)
       throw new IPCException("kill",rc);
   }
 
+  /** Queue this Signal with an int value for another process.  Unlike
+    kill, real-time signals sent this way are not merged, and the value
+    is delivered in {@link SignalEvent#getValue}.
+    @param pid the Posix process id
+   */
+  public void sigqueue(int pid,int value) throws IPCException {
+    LoadLibrary.requireExt("Signal.sigqueue");
+    int rc = sigqueue(pid,signo,value);
+    if (rc != 0)
+      throw new IPCException("sigqueue",rc & 0x7fffffff);
+  }
+
+  /** @return 0 or errno|0x80000000 */
+  private static native int sigqueue(int pid,int signo,int value);
+
+  /** Set the action of a signal by native number.  SIG_EVT installs the
+    handler that forwards the signal to the signalfd reader. */
+  private static native void sigaction1(int signo,int action);
+  /** Make the calling thread the one signals are forwarded to. */
+  private static native void sigfdreader();
+
+  private static native int sigrtmin();
+  private static native int sigrtmax();
+
   private static native void sigaction(int sig,int action);
 
+  /** Create a signalfd, or change the signals of an existing one.
+    @param fd	-1 to create a signalfd
+    @param mask	bit n-1 for signal n
+    @return the signalfd, or errno|0x80000000
+   */
+  private static native int signalfd(int fd,long mask);
+
+  /** Read signalfd_siginfo records into C memory.
+    @return bytes read, or errno|0x80000000
+   */
+  private static native int sigread(int fd,long addr,int len);
+
   {
     LoadLibrary.loadPosix();
   }
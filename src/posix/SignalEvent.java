@@ -28,8 +28,48 @@ package posix;
 
 public class SignalEvent extends java.util.EventObject {
 	private static final long serialVersionUID = 7795847022443717822L;
+	private final int pid;
+	private final int uid;
+	private final int code;
+	private final int value;
 
 	SignalEvent(Signal sig) {
+		this(sig, 0, 0, 0, 0);
+	}
+
+	SignalEvent(Signal sig, int pid, int uid, int code, int value) {
 		super(sig);
+		this.pid = pid;
+		this.uid = uid;
+		this.code = code;
+		this.value = value;
+	}
+
+	/** Return the Signal received. */
+	public Signal getSignal() {
+		return (Signal) getSource();
+	}
+
+	/**
+	 * Return the process id of the sender, or 0 if sent by the kernel or not
+	 * known. Only the signalfd backend knows the sender.
+	 */
+	public int getPid() {
+		return pid;
+	}
+
+	/** Return the real user id of the sender, or 0 if not known. */
+	public int getUid() {
+		return uid;
+	}
+
+	/** Return the si_code of the signal, e.g. SI_USER or SI_QUEUE. */
+	public int getCode() {
+		return code;
+	}
+
+	/** Return the int value sent with sigqueue, or 0. */
+	public int getValue() {
+		return value;
 	}
 }
@@ -0,0 +1,134 @@
+package posix;
+
+/** File status for many files at once.  The names are looked up
+  relative to a {@link Dir}, with one JNI call per batch that calls
+  <code>fstatat</code> for each name, and the fields are stored in
+  parallel arrays indexed by the position of the name in the batch.  No
+  object is created per file, and only the names are marshalled.
+  <p>
+  Unlike {@link Stat}, the device and inode numbers are longs.  Times are
+  Java milliseconds, as in Stat.  A StatBatch is reused for batch after
+  batch, and is not thread safe.
+ */
+public class StatBatch {
+  private static native void init();
+  static {
+    if (LoadLibrary.hasExt())
+      init();
+  }
+
+  /** Do not follow a final symbolic link (Linux). */
+  private static final int AT_SYMLINK_NOFOLLOW = 0x100;
+
+  /** The file type bits of a mode, and the types (Linux). */
+  public static final int S_IFMT = 0170000, S_IFDIR = 0040000,
+    S_IFREG = 0100000, S_IFLNK = 0120000;
+
+  /** 0, or the errno from fstatat.  The other fields of a failed entry
+    are zero. */
+  public final int[] errno;
+  /** ID of device containing a directory entry for this file. */
+  public final long[] dev;
+  /** File serial number. */
+  public final long[] ino;
+  /** File mode. */
+  public final int[] mode;
+  /** Number of links. */
+  public final int[] nlink;
+  /** User ID of the file's owner */
+  public final int[] uid;
+  /** Group ID of the file's group */
+  public final int[] gid;
+  /** File size in bytes. */
+  public final long[] size;
+  /** Actual number of 512 byte blocks allocated. */
+  public final long[] blocks;
+  /** Time of last access */
+  public final long[] atime;
+  /** Time of last data modification */
+  public final long[] mtime;
+  /** Time of last file status change */
+  public final long[] ctime;
+
+  private int count;
+  private byte[] buf = new byte[256];
+  private int[] offs;
+
+  /** Create a batch of up to <code>capacity</code> files. */
+  public StatBatch(int capacity) {
+    LoadLibrary.requireExt("StatBatch");
+    errno = new int[capacity];
+    dev = new long[capacity];
+    ino = new long[capacity];
+    mode = new int[capacity];
+    nlink = new int[capacity];
+    uid = new int[capacity];
+    gid = new int[capacity];
+    size = new long[capacity];
+    blocks = new long[capacity];
+    atime = new long[capacity];
+    mtime = new long[capacity];
+    ctime = new long[capacity];
+    offs = new int[capacity];
+  }
+
+  /** Return the maximum number of files per batch. */
+  public final int capacity() { return errno.length; }
+
+  /** Return the number of files in the last batch. */
+  public final int count() { return count; }
+
+  /** Stat files by name.  Entry i is for <code>names[off + i]</code>.
+    @param follow	follow a final symbolic link if true
+    @return the number of files found
+   */
+  public int stat(Dir dir,String[] names,int off,int cnt,boolean follow) {
+    if (cnt < 0 || cnt > capacity() || off < 0 || off > names.length - cnt)
+      throw new IllegalArgumentException("StatBatch: bad batch "+off+","+cnt);
+    int len = 0;
+    for (int i = 0; i < cnt; ++i) {
+      byte[] b = names[off + i].getBytes(Dir.JNU);
+      if (len + b.length + 1 > buf.length)
+	buf = java.util.Arrays.copyOf(buf,Math.max(buf.length * 2,len + b.length + 1));
+      System.arraycopy(b,0,buf,len,b.length);
+      offs[i] = len;
+      len += b.length;
+      buf[len++] = 0;
+    }
+    return stat(dir,buf,offs,cnt,follow);
+  }
+
+  /** Stat files by name.  Entry i is for the NUL terminated name at
+    <code>names[offs[i]]</code>, e.g. as read from a directory.
+    @param follow	follow a final symbolic link if true
+    @return the number of files found
+   */
+  public int stat(Dir dir,byte[] names,int[] offs,int cnt,boolean follow) {
+    if (cnt < 0 || cnt > capacity() || cnt > offs.length)
+      throw new IllegalArgumentException("StatBatch: bad count "+cnt);
+    for (int i = 0; i < cnt; ++i) {
+      int o = offs[i];
+      if (o < 0 || o >= names.length)
+	throw new ArrayIndexOutOfBoundsException("StatBatch: name offset "+o);
+      while (names[o] != 0)
+	if (++o == names.length)
+	  throw new IllegalArgumentException(
+	    "StatBatch: name "+i+" not NUL terminated");
+    }
+    count = cnt;
+    return statat(dir.getFd(),names,offs,cnt,follow ? 0 : AT_SYMLINK_NOFOLLOW);
+  }
+
+  /** True if entry i is a directory. */
+  public final boolean isDIR(int i) { return (mode[i] & S_IFMT) == S_IFDIR; }
+  /** True if entry i is a regular file. */
+  public final boolean isREG(int i) { return (mode[i] & S_IFMT) == S_IFREG; }
+  /** True if entry i is a symbolic link. */
+  public final boolean isLNK(int i) { return (mode[i] & S_IFMT) == S_IFLNK; }
+
+  /** Call fstatat for each name, and fill in the arrays.
+    @return the number of calls that succeeded
+   */
+  private native int statat(int dirfd,byte[] names,int[] offs,int cnt,
+	int flags);
+}
@@ -0,0 +1,54 @@
+package posix;
+
+public class TestCPtrAccess {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	/** Write with one backend and read with the other. */
+	static void compare(CPtrAccess w,CPtrAccess r,CPtr p) {
+		w.setByte(p,1,(byte)-5);
+		check(r.getByte(p,1) == -5,"byte");
+		w.setShort(p,3,(short)0x1234);		// any offset
+		check(r.getShort(p,3) == 0x1234,"short");
+		check(p.getByte(3) == 0x12,"short is big-endian");
+		w.setInt(p,5,0x01020304);
+		check(r.getInt(p,5) == 0x01020304 && p.getByte(5) == 1,"int");
+		w.setCShort(p,16,2,(short)-2);
+		check(r.getCShort(p,20) == -2,"C short");
+		w.setCInt(p,24,1,0x7f00ff01);
+		check(r.getCInt(p,28) == 0x7f00ff01,"C int");
+		check(p.getCInt(28) == 0x7f00ff01,"C int native order");
+		try {
+			r.getCInt(p,2,0);
+			check(false,"misaligned");
+		}
+		catch (AlignmentException x) { }
+		try {
+			r.getInt(p,p.size - 3);
+			check(false,"range");
+		}
+		catch (ArrayIndexOutOfBoundsException x) { }
+		try {
+			w.setCShort(p,p.size - 2,1,(short)0);
+			check(false,"array range");
+		}
+		catch (ArrayIndexOutOfBoundsException x) { }
+	}
+
+	public static void main(String[] args) throws IPCException {
+		try (Malloc m = new Malloc(64)) {
+			compare(CPtrAccess.JNI,CPtrAccess.JAVA,m);
+			compare(CPtrAccess.JAVA,CPtrAccess.JNI,m);
+		}
+		SharedMem shm =
+			new SharedMem(IPC.IPC_PRIVATE,4096,IPC.IPC_CREAT|0600);
+		try {
+			compare(CPtrAccess.DEFAULT,CPtrAccess.JAVA,shm.attach());
+		}
+		finally {
+			shm.dispose();
+		}
+		System.out.println("CPtrAccess ok");
+	}
+}
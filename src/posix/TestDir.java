@@ -0,0 +1,75 @@
+package posix;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class TestDir {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path root = Files.createTempDirectory("TestDir");
+		try {
+			Path sub = Files.createDirectories(root.resolve("a/b"));
+			Files.write(root.resolve("f1"),new byte[10]);
+			Files.write(sub.resolve("f2"),new byte[1000]);
+			Files.createLink(sub.resolve("f3"),root.resolve("f1"));
+			Files.createSymbolicLink(root.resolve("ln"),Paths.get("a"));
+			testStat(root);
+		}
+		finally {
+			try (Stream<Path> s = Files.walk(root)) {
+				s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+		System.out.println("Dir ok");
+	}
+
+	static void testStat(Path root) throws IOException {
+		StatBatch sb = new StatBatch(4);
+		try (Dir d = new Dir(root.toString())) {
+			check(d.getFd() >= 0,"fd");
+			String[] names = { "f1", "a", "ln", "missing" };
+			check(sb.stat(d,names,0,4,false) == 3 && sb.count() == 4,"found");
+			check(sb.isREG(0) && sb.size[0] == 10 && sb.nlink[0] == 2,"file");
+			check(sb.isDIR(1) && sb.isLNK(2),"dir and link");
+			check(sb.errno[0] == 0 && sb.errno[3] == Errno.ENOENT,"errno");
+			check(sb.ino[3] == 0 && sb.size[3] == 0,"missing entry is zero");
+			check(sb.ino[0] == (Long)Files.getAttribute(root.resolve("f1"),
+				"unix:ino"),"ino");
+			check(sb.stat(d,names,2,1,true) == 1 && sb.isDIR(0),"follow");
+
+			// names relative to a subdirectory
+			try (Dir a = new Dir(d,"a"); Dir b = new Dir(a,"b")) {
+				byte[] n = { 'f','2',0,'f','3',0 };
+				check(sb.stat(b,n,new int[] { 0, 3 },2,false) == 2,"subdir");
+				check(sb.size[0] == 1000 && sb.nlink[1] == 2,"subdir sizes");
+				try {
+					sb.stat(b,new byte[] { 'f','2' },new int[] { 0 },1,false);
+					check(false,"NUL terminator");
+				}
+				catch (IllegalArgumentException x) { }
+			}
+			try {
+				new Dir(d,"f1");
+				check(false,"not a directory");
+			}
+			catch (IOException x) { }
+			try {
+				sb.stat(d,names,0,5,false);
+				check(false,"capacity");
+			}
+			catch (IllegalArgumentException x) { }
+		}
+		try {
+			new Dir(root.resolve("missing").toString());
+			check(false,"missing directory");
+		}
+		catch (IOException x) { }
+	}
+}
@@ -0,0 +1,55 @@
+package posix;
+
+import java.io.File;
+
+/** Run with -Dposix.leaks=true to also check the allocation traces. */
+public class TestLeaks {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	static void gc() throws InterruptedException {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+	}
+
+	static int leakSharedMem() throws IPCException {
+		return new SharedMem(IPC.IPC_PRIVATE,4096,IPC.IPC_CREAT|0600).getId();
+	}
+
+	public static void main(String[] args) throws Exception {
+		gc();
+		int before = Leaks.open().size();
+		try (Malloc m = new Malloc(64)) {
+			m.setCInt(0,5);
+		}
+		try (SemSet s = new SemSet(IPC.IPC_PRIVATE,1,IPC.IPC_CREAT|0600)) {
+			s.setValue((char)0,(short)1);
+		}
+		check(Leaks.open().size() == before,"closed resources are not open");
+
+		int id = leakSharedMem();
+		if (Leaks.TRACKING) {
+			check(Leaks.open().size() > before,"leak listed");
+			check(Leaks.open().get(0).getMessage().startsWith("SharedMem"),
+				"leak named");
+		}
+		gc();
+		check(Leaks.open().size() == before,"leak released");
+		try {
+			new SharedMem(id,0,0);
+			check(false,"leaked segment removed");
+		}
+		catch (IPCException x) { }
+
+		File f = new File(System.getProperty("java.io.tmpdir"),
+			"TestLeaks." + IPC.pid + ".lock");
+		new LockFile(f.getPath());
+		check(f.exists(),"lock file");
+		gc();
+		check(!f.exists(),"leaked lock file removed");
+		System.out.println("Leaks ok" + (Leaks.TRACKING ? " (tracking)" : ""));
+	}
+}
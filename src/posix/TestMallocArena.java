@@ -0,0 +1,102 @@
+package posix;
+
+import java.nio.ByteBuffer;
+
+public class TestMallocArena {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws Exception {
+		MallocArena ar = new MallocArena(1 << 16,4096);
+		check(ar.maxBlock() == 4096,"maxBlock");
+		MallocArena.Block b1 = ar.alloc(100);
+		check(b1.size == 128 && ar.inUse() == 1,"alloc");
+		long addr = b1.addr;
+		int gen = b1.generation();
+		b1.close();
+		b1.close();		// only the first close counts
+		check(ar.inUse() == 0,"closed");
+		try {
+			b1.getByte(0);
+			check(false,"closed block");
+		}
+		catch (IndexOutOfBoundsException x) { }
+		MallocArena.Block b2 = ar.alloc(120);
+		check(b2 == b1 && b2.addr == addr && b2.size == 128,"Block reused");
+		check(b2.generation() != gen,"new generation");
+		check(!b1.close(gen),"stale close");
+		check(ar.inUse() == 1,"stale close leaves the new block");
+		MallocArena.Block b3 = ar.alloc(100);
+		check(b3 != b2 && b3.addr != addr,"Block in use not reused");
+		check(b3.close(b3.generation()) && ar.inUse() == 1,"close generation");
+		try (MallocArena.Block b = ar.alloc(8)) {
+			b.setCInt(0,42);
+			check(b.getCInt(0) == 42 && b.size == 16,"small block");
+		}
+		try {
+			ar.alloc(4097);
+			check(false,"oversized");
+		}
+		catch (IllegalArgumentException x) { }
+
+		// blocks go back on their free lists, so the chunks are reused
+		for (int i = 0; i < 100000; i++) {
+			try (MallocArena.Block b = ar.alloc(i & 4095)) {
+				b.setByte(0,(byte)i);
+			}
+		}
+		check(ar.reserved() <= 2 << 16,"reserved "+ar.reserved());
+
+		// a block with a view goes back on its free list once the view is gone
+		MallocArena.Block b4 = ar.alloc(4096);
+		ByteBuffer v = b4.asByteBuffer();
+		b4.close();
+		check(ar.inUse() == 2,"block kept for its view");
+		v = null;
+		for (int i = 0; i < 50 && ar.inUse() > 1; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		check(ar.inUse() == 1 && ar.alloc(4096) == b4,"block back after its view");
+		b4.close();
+
+		// a block that is not closed is reclaimed by the Cleaner
+		for (int i = 0; i < 100; i++)
+			ar.alloc(64);
+		for (int i = 0; i < 50 && ar.inUse() > 1; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		check(ar.inUse() == 1,"leaked blocks reclaimed: "+ar.inUse());
+
+		// a block can be sent as a message
+		MsgQ q = new MsgQ(IPC.IPC_PRIVATE,0600);
+		try {
+			try (MallocArena.Block b = ar.alloc(64)) {
+				b.setCLong(0,7L);
+				b.setByte(8,(byte)'x');
+				q.send(b,8 + 1,0);
+			}
+			byte[] buf = new byte[10];
+			long rc = q.recv(buf,0,buf.length,0,0);
+			check(MsgQ.size(rc) == 1 && buf[0] == 'x',"message");
+		}
+		finally {
+			q.remove();
+		}
+
+		ar.close();
+		try {
+			b2.getByte(0);
+			check(false,"block after close");
+		}
+		catch (IndexOutOfBoundsException x) { }
+		try {
+			ar.alloc(10);
+			check(false,"alloc after close");
+		}
+		catch (IllegalStateException x) { }
+		System.out.println("MallocArena ok");
+	}
+}
@@ -0,0 +1,84 @@
+package posix;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class TestMsgQAsync {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws Exception {
+		MsgQ q = new MsgQ(IPC.IPC_PRIVATE,IPC.IPC_CREAT|0600);
+		SemSet s = new SemSet(IPC.IPC_PRIVATE,1,IPC.IPC_CREAT|0600);
+		try {
+			byte[] buf = new byte[64];
+
+			// a receive completes when a message is sent
+			CompletableFuture<MsgQ.Message> f = q.recvAsync(0,100,0);
+			Thread.sleep(50);
+			check(!f.isDone(),"recvAsync waits");
+			q.send(7,"hi".getBytes(),0,2,0);
+			MsgQ.Message m = f.get(5,TimeUnit.SECONDS);
+			check(m.type == 7 && "hi".equals(new String(m.data)),"recvAsync");
+			q.sendAsync(8,"x".getBytes(),0).get(5,TimeUnit.SECONDS);
+			check(q.getStatus().qnum == 1,"sendAsync");
+			q.recv(buf,0,buf.length,0,0);
+
+			// cancelled receives do not take later messages
+			CompletableFuture<?>[] fs = new CompletableFuture<?>[10];
+			for (int i = 0; i < fs.length; i++)
+				fs[i] = q.recvAsync(0,100,0);
+			Thread.sleep(50);
+			for (CompletableFuture<?> c: fs)
+				c.cancel(false);
+			Thread.sleep(100);
+			for (int i = 0; i < 5; i++)
+				q.send(1,new byte[] { (byte)i },0,1,0);
+			Thread.sleep(100);
+			check(q.getStatus().qnum == 5,"messages after cancel");
+			for (int i = 0; i < 5; i++) {
+				q.recv(buf,0,buf.length,0,0);
+				check(buf[0] == i,"order after cancel");
+			}
+
+			// a cancelled semop does not take the semaphore
+			CompletableFuture<Void> w = s.semopAsync(new short[] { 0, -1, 0 });
+			Thread.sleep(50);
+			w.cancel(false);
+			Thread.sleep(50);
+			s.semop(new short[] { 0, 1, 0 });
+			Thread.sleep(50);
+			check(s.getValue((char)0) == 1,"semaphore after cancel");
+			s.semopAsync(new short[] { 0, -1, 0 }).get(5,TimeUnit.SECONDS);
+			check(s.getValue((char)0) == 0,"semopAsync");
+
+			// a full queue
+			byte[] big = new byte[1024];
+			int full = 0;
+			while (q.send(1,big,0,big.length,IPC.IPC_NOWAIT) == 0)
+				full++;
+			CompletableFuture<Void> sf = q.sendAsync(1,big,IPC.IPC_NOWAIT);
+			try {
+				sf.get(5,TimeUnit.SECONDS);
+				check(false,"sendAsync when full");
+			}
+			catch (ExecutionException x) {
+				check(((IPCException)x.getCause()).getErrno() == Errno.EAGAIN,
+					"EAGAIN");
+			}
+			sf = q.sendAsync(1,big,0);
+			Thread.sleep(50);
+			check(!sf.isDone(),"sendAsync waits");
+			q.recv(new byte[big.length],0,big.length,0,0);
+			sf.get(5,TimeUnit.SECONDS);
+			check(q.getStatus().qnum == full,"sent after room");
+		}
+		finally {
+			q.remove();
+			s.remove();
+		}
+		System.out.println("MsgQ async ok");
+	}
+}
@@ -0,0 +1,47 @@
+package posix;
+
+import java.util.Arrays;
+
+public class TestMsgQBatch {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws Exception {
+		MsgQ q = new MsgQ(IPC.IPC_PRIVATE,IPC.IPC_CREAT|0600);
+		try {
+			// a batch is received in order
+			check(q.sendBatch(5,Arrays.asList("a".getBytes(),"bc".getBytes(),
+				"def".getBytes()),0) == 3,"sendBatch");
+			int[] type = new int[8], off = new int[8], len = new int[8];
+			byte[] buf = new byte[64];
+			int n = q.recvBatch(type,buf,off,len,8,0,0);
+			check(n == 3 && type[2] == 5,"recvBatch");
+			check("def".equals(new String(buf,off[2],len[2])),"batch text");
+			check(q.recvBatch(type,buf,off,len,8,0,IPC.IPC_NOWAIT) == 0,"empty");
+
+			// a batch that does not fit in the buffer stops at the message
+			check(q.sendBatch(6,Arrays.asList(new byte[40],new byte[40]),0) == 2,
+				"sendBatch 2");
+			check(q.recvBatch(type,buf,off,len,8,0,0) == 1 && len[0] == 40,
+				"recvBatch partial");
+			check(q.recvBatch(type,buf,off,len,8,0,0) == 1,"recvBatch rest");
+
+			// the original send takes the first size bytes
+			check(q.send(2,"xyz".getBytes(),2,0) == 0,"send size");
+			long r = q.recv(buf,0,buf.length,0,0);
+			check(MsgQ.type(r) == 2 && MsgQ.size(r) == 2,"sent size");
+
+			// a full queue
+			byte[] big = new byte[1024];
+			while (q.send(1,big,big.length,IPC.IPC_NOWAIT) == 0)
+				;
+			check(q.sendBatch(1,Arrays.asList(big,big),IPC.IPC_NOWAIT) == 0,
+				"batch when full");
+		}
+		finally {
+			q.remove();
+		}
+		System.out.println("MsgQ batch ok");
+	}
+}
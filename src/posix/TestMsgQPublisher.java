@@ -0,0 +1,105 @@
+package posix;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+public class TestMsgQPublisher {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	/** Collect the messages, and request n at a time. */
+	static class Collector implements Flow.Subscriber<MsgQ.Message> {
+		final List<MsgQ.Message> got = new CopyOnWriteArrayList<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		final int n;
+		volatile Flow.Subscription sub;
+		volatile Throwable error;
+		Collector(int n) { this.n = n; }
+		public void onSubscribe(Flow.Subscription s) { sub = s; s.request(n); }
+		public void onNext(MsgQ.Message m) { got.add(m); }
+		public void onError(Throwable t) { error = t; done.countDown(); }
+		public void onComplete() { done.countDown(); }
+	}
+
+	static void await(Collector c,int n) throws InterruptedException {
+		for (int i = 0; i < 500 && c.got.size() < n; i++)
+			Thread.sleep(10);
+		Thread.sleep(50);	// no more than n
+		check(c.got.size() == n,"received "+c.got.size()+" of "+n);
+	}
+
+	public static void main(String[] args) throws Exception {
+		MsgQ q = new MsgQ(IPC.IPC_PRIVATE,IPC.IPC_CREAT|0600);
+		try {
+			for (int i = 0; i < 10; i++)
+				q.send(1 + i % 2,new byte[] { (byte)i },0,1,0);
+
+			// only requested messages of the mtype are taken
+			Collector c = new Collector(3);
+			new MsgQPublisher(q,2,16).subscribe(c);
+			await(c,3);
+			for (int i = 0; i < 3; i++)
+				check(c.got.get(i).type == 2 && c.got.get(i).data[0] == 2 * i + 1,
+					"message "+i);
+			check(q.getStatus().qnum == 7,"backpressure");
+			c.sub.request(10);
+			await(c,5);
+			q.send(2,new byte[] { 42 },0,1,0);	// delivered by the wait
+			await(c,6);
+			check(c.got.get(5).data[0] == 42,"waited message");
+			c.sub.cancel();
+			q.send(2,new byte[] { 43 },0,1,0);
+			Thread.sleep(50);
+			check(c.got.size() == 6,"cancelled");
+
+			// a message taken for a cancelled subscription is not lost
+			byte[] buf = new byte[16];
+			while (q.getStatus().qnum > 0)
+				q.recv(buf,0,buf.length,0,0);
+			int lost = 0;
+			for (int i = 0; i < 50; i++) {
+				Collector r = new Collector(1);
+				new MsgQPublisher(q,0,16).subscribe(r);
+				Thread.sleep(1);
+				q.send(1,new byte[] { 1 },0,1,0);
+				r.sub.cancel();
+				Thread.sleep(20);
+				if (r.got.size() + q.getStatus().qnum != 1)
+					lost++;
+				while (q.getStatus().qnum > 0)
+					q.recv(buf,0,buf.length,0,0);
+			}
+			check(lost == 0,"lost "+lost);
+
+			// large messages through the buffer shared by the batch and the wait
+			c = new Collector(3);
+			new MsgQPublisher(q,0,8192,0,1000).subscribe(c);
+			for (int i = 0; i < 3; i++) {
+				byte[] big = new byte[5000];
+				Arrays.fill(big,(byte)i);
+				q.send(1,big,0,big.length,0);
+				if (i == 0) Thread.sleep(50);	// taken by the wait
+			}
+			await(c,3);
+			for (int i = 0; i < 3; i++)
+				check(c.got.get(i).data.length == 5000
+					&& c.got.get(i).data[4999] == i,"large message "+i);
+
+			// removing the queue completes the stream
+			c = new Collector(1);
+			new MsgQPublisher(q,0,16).subscribe(c);
+			Thread.sleep(50);
+			q.remove();
+			check(c.done.await(5,TimeUnit.SECONDS) && c.error == null,"complete");
+		}
+		finally {
+			q.remove();
+		}
+		System.out.println("MsgQPublisher ok");
+	}
+}
@@ -0,0 +1,95 @@
+package posix;
+
+import java.nio.ByteBuffer;
+
+public class TestPosixShm {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws IPCException {
+		String name = "/posix-test-" + IPC.pid;
+		PosixShm shm = new PosixShm(name,4096,PosixShm.O_CREAT|PosixShm.O_EXCL,0600,0);
+		try {
+			check(name.equals(shm.getName()) && shm.size() == 4096,"size");
+			CPtr mem = shm.attach();
+			check(mem == shm.attach(),"same CPtr");
+			mem.setCInt(100,42);
+			try {
+				new PosixShm(name,4096,PosixShm.O_CREAT|PosixShm.O_EXCL,0600,0);
+				check(false,"O_EXCL");
+			}
+			catch (IPCException x) { }
+
+			// a second open sees the same memory, and the growth
+			PosixShm other = new PosixShm(name);
+			try {
+				check(other.attach().getCInt(100) == 42,"shared");
+				shm.grow(1 << 20);
+				check(shm.size() == 1 << 20,"grown");
+				CPtr part = shm.getCPtr((1 << 20) - 8,8);
+				part.setCLong(0,7L);
+				check(mem.getCInt(100) == 42,"old CPtr still valid");
+				check(other.remap() && other.size() == 1 << 20,"remap");
+				check(!other.remap(),"remap unchanged");
+				check(other.attach().getCLong((1 << 20) - 8) == 7L,"grown memory");
+				try {
+					shm.grow(4096);
+					check(false,"shrink");
+				}
+				catch (IllegalArgumentException x) { }
+				try {
+					shm.getCPtr(1 << 20,1);
+					check(false,"out of range");
+				}
+				catch (IndexOutOfBoundsException x) { }
+			}
+			finally {
+				other.close();
+			}
+			shm.close();
+			try {
+				shm.attach();
+				check(false,"attach after close");
+			}
+			catch (IllegalStateException x) { }
+		}
+		finally {
+			shm.close();
+			PosixShm.unlink(name);
+		}
+		try {
+			new PosixShm(name);
+			check(false,"unlinked");
+		}
+		catch (IPCException x) {
+			check(x.getErrno() == Errno.ENOENT,"ENOENT");
+		}
+
+		// views beyond the first 2G of a sparse object
+		shm = new PosixShm(name,5L << 30,PosixShm.O_CREAT|PosixShm.O_EXCL,0600,0);
+		try {
+			CPtr mem = shm.attach();
+			long off = (3L << 30) + 4096;
+			mem.setCLong(off,7L);
+			ByteBuffer b = mem.asByteBuffer(off,4096);
+			check(b.getLong(0) == 7L && b.capacity() == 4096,"view past 2G");
+			b.putLong(8,9L);
+			check(mem.getCLong(off + 8) == 9L,"view writes");
+			b = mem.asByteBuffer((4L << 30) - 8,1 << 30);
+			b.putLong(0,11L);
+			check(mem.getCLong((4L << 30) - 8) == 11L,"view across 1G");
+			b = mem.asByteBuffer((3L << 30) - 4096,(1 << 30) + 8192);
+			check(b.getLong(4096 + 4096) == 7L,"view longer than 1G");
+			b = null;
+			for (int i = 0; i < 100000; i++)
+				mem.asByteBuffer(off,8).getLong(0);
+			shm.close();
+		}
+		finally {
+			shm.close();
+			PosixShm.unlink(name);
+		}
+		System.out.println("PosixShm ok");
+	}
+}
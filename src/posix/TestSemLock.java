@@ -0,0 +1,187 @@
+package posix;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+public class TestSemLock {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	static int counter;
+	static volatile int ready, woken;
+
+	/** Wait until a semaphore has the value n. */
+	static void waitFor(SemSet s,int semnum,int n) throws Exception {
+		for (int i = 0; i < 500 && s.getValue((char)semnum) != n; i++)
+			Thread.sleep(10);
+		check(s.getValue((char)semnum) == n,"waiters "+n);
+	}
+
+	public static void main(String[] args) throws Exception {
+		// SemLock and SemCountingSemaphore need a real key
+		int key = 0x7e570000 | IPC.pid & 0xffff;
+		final SemLock lock = new SemLock(key,0600);
+		try {
+			check(lock.tryLock(),"tryLock");
+			check(!lock.tryLock(),"tryLock when held");
+			check(!lock.tryLock(20,TimeUnit.MILLISECONDS),"timed tryLock");
+			lock.unlock();
+			check(lock.tryLock(20,TimeUnit.MILLISECONDS),"timed tryLock when free");
+			lock.unlock();
+
+			final int N = 4, LOOPS = 5000;
+			Thread[] t = new Thread[N];
+			for (int i = 0; i < N; i++) {
+				t[i] = new Thread() {
+					public void run() {
+						for (int j = 0; j < LOOPS; j++) {
+							lock.lock();
+							try {
+								counter++;
+							}
+							finally {
+								lock.unlock();
+							}
+						}
+					}
+				};
+				t[i].start();
+			}
+			for (Thread x: t)
+				x.join();
+			check(counter == N * LOOPS,"count "+counter);
+
+			// an interrupted waiter gives up
+			lock.lock();
+			Thread w = new Thread() {
+				public void run() {
+					try {
+						lock.lockInterruptibly();
+						counter = -1;
+					}
+					catch (InterruptedException x) { }
+				}
+			};
+			w.start();
+			Thread.sleep(50);
+			w.interrupt();
+			w.join(1000);
+			check(!w.isAlive() && counter == N * LOOPS,"interrupted waiter");
+			lock.unlock();
+		}
+		finally {
+			lock.getSemSet().dispose();
+		}
+		System.out.println("SemLock ok");
+
+		final SemLock cl = new SemLock(key + 2,0600,1);
+		final Condition cond = cl.newCondition();
+		try {
+			cl.lock();
+			check(!cond.await(20,TimeUnit.MILLISECONDS),"await timeout");
+			check(!cl.tryLock(),"locked after await");
+			cl.unlock();
+
+			// signal wakes one waiter, signalAll the rest
+			final int W = 3;
+			Thread[] ws = new Thread[W];
+			for (int i = 0; i < W; i++) {
+				ws[i] = new Thread() {
+					public void run() {
+						cl.lock();
+						try {
+							int seen = ready;
+							while (ready == seen)
+								cond.await();
+							woken++;
+						}
+						catch (InterruptedException x) { }
+						finally {
+							cl.unlock();
+						}
+					}
+				};
+				ws[i].start();
+			}
+			waitFor(cl.getSemSet(),1,W);
+			cl.lock();
+			ready = 1;
+			cond.signal();
+			cl.unlock();
+			Thread.sleep(100);
+			cl.lock();
+			check(woken == 1,"signal woke "+woken);
+			ready = 2;
+			cond.signalAll();
+			cl.unlock();
+			for (Thread x: ws)
+				x.join(5000);
+			check(woken == W,"signalAll woke "+woken);
+
+			// an interrupted waiter throws with the lock held
+			Thread iw = new Thread() {
+				public void run() {
+					cl.lock();
+					try {
+						cond.await();
+					}
+					catch (InterruptedException x) {
+						woken = -1;
+					}
+					finally {
+						cl.unlock();
+					}
+				}
+			};
+			iw.start();
+			waitFor(cl.getSemSet(),1,1);
+			iw.interrupt();
+			iw.join(5000);
+			check(woken == -1,"interrupted await");
+			SemSet cs = cl.getSemSet();
+			check(cs.getValue((char)1) == 0 && cs.getValue((char)2) == 0,
+				"no registrations or wakeups left");
+		}
+		finally {
+			cl.getSemSet().dispose();
+		}
+		System.out.println("SemLock Condition ok");
+
+		SemCountingSemaphore s =
+			new SemCountingSemaphore(key + 1,3,0600,false);
+		try {
+			check(s.availablePermits() == 3,"permits");
+			check(s.tryAcquire(2),"tryAcquire 2");
+			check(!s.tryAcquire(2),"tryAcquire when short");
+			check(!s.tryAcquire(2,20,TimeUnit.MILLISECONDS),"timed tryAcquire");
+			check(s.tryAcquire(0) && s.tryAcquire(0,20,TimeUnit.MILLISECONDS),
+				"0 permits when short");
+			s.release(3);
+			check(s.availablePermits() == 4,"released");
+			s.acquire(4);
+			check(s.availablePermits() == 0,"acquired all");
+			s.acquire(0);
+			s.release(0);
+			check(s.tryAcquire(0) && s.availablePermits() == 0,"0 permits");
+			final SemCountingSemaphore fs = s;
+			Thread r = new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(50);
+					}
+					catch (InterruptedException x) { }
+					fs.release();
+				}
+			};
+			r.start();
+			s.acquireUninterruptibly();	// waits for the release
+			r.join();
+			check(s.availablePermits() == 0,"acquired release");
+		}
+		finally {
+			s.getSemSet().dispose();
+		}
+		System.out.println("SemCountingSemaphore ok");
+	}
+}
@@ -0,0 +1,57 @@
+package posix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestShmAllocator {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws IPCException {
+		ShmAllocator a =
+			new ShmAllocator(IPC.IPC_PRIVATE,4096,16,IPC.IPC_CREAT|0600);
+		try {
+			CPtr mem = a.getCPtr();
+			int h1 = a.alloc(100);
+			int h2 = a.alloc(100);
+			check(h1 != 0 && h2 != 0 && h1 != h2,"alloc");
+			check(a.length(h1) == 100,"length");
+			mem.setCInt(a.offset(h1),0x12345678);
+			mem.setCInt(a.offset(h2),-1);
+			check(mem.getCInt(a.offset(h1)) == 0x12345678,"blocks overlap");
+			a.free(h1);
+			try {
+				a.free(h1);
+				check(false,"double free");
+			}
+			catch (IllegalArgumentException x) { }
+			check(a.alloc(90) == h1,"freed block reused");
+			try {
+				a.alloc(a.maxAlloc() + 1);
+				check(false,"oversized alloc");
+			}
+			catch (IllegalArgumentException x) { }
+
+			// fill the slabs, then free everything
+			List<Integer> hs = new ArrayList<>();
+			int h;
+			while ((h = a.alloc(200)) != 0)
+				hs.add(h);
+			check(hs.size() > 100,"filled "+hs.size());
+			ShmAllocator.Stats st = a.getStats();
+			check(st.slabsFree == 0 && st.occupancy() > 0.5,"stats when full");
+			for (int x: hs)
+				a.free(x);
+			st = a.getStats();
+			int used = 0;
+			for (int n: st.inUse)
+				used += n;
+			check(used == 2,"in use "+used);
+		}
+		finally {
+			a.dispose();
+		}
+		System.out.println("ShmAllocator ok");
+	}
+}
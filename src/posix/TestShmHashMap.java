@@ -0,0 +1,53 @@
+package posix;
+
+public class TestShmHashMap {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws IPCException {
+		ShmHashMap m =
+			new ShmHashMap(IPC.IPC_PRIVATE,64,4096,IPC.IPC_CREAT|0600);
+		try {
+			for (int i = 0; i < 40; i++)
+				check(m.put(("k"+i).getBytes(),("value-"+i).getBytes()),"put k"+i);
+			check(m.size() == 40,"size");
+			check("value-12".equals(new String(m.get("k12".getBytes()))),"get");
+			check(m.get("nope".getBytes()) == null,"get missing");
+			byte[] buf = new byte[16];
+			int n = m.get("k39".getBytes(),0,3,buf,0,buf.length);
+			check("value-39".equals(new String(buf,0,n)),"get into buffer");
+			check(!m.put("k1".getBytes(),"X".getBytes()),"replace");
+			check("X".equals(new String(m.get("k1".getBytes()))),"replaced value");
+			check(m.garbage() > 0,"garbage after replace");
+			check(m.remove("k2".getBytes()),"remove");
+			check(!m.containsKey("k2".getBytes()),"removed key");
+			check(m.size() == 39,"size after remove");
+			// a removed key can be put again
+			check(m.put("k2".getBytes(),"again".getBytes()),"reuse tombstone");
+			check("again".equals(new String(m.get("k2".getBytes()))),"reused value");
+			m.clear();
+			check(m.size() == 0 && !m.containsKey("k3".getBytes()),"clear");
+		}
+		finally {
+			m.dispose();
+		}
+		// a second table over the same memory sees the entries
+		SharedMem shm = new SharedMem(IPC.IPC_PRIVATE,
+			ShmHashMap.sizeOf(16,1024),IPC.IPC_CREAT|0600);
+		SemSet sems = new SemSet(IPC.IPC_PRIVATE,1,IPC.IPC_CREAT|0600);
+		try {
+			CPtr mem = shm.attach();
+			ShmHashMap a = new ShmHashMap(mem,0,mem.size,16,sems,0);
+			ShmHashMap b = new ShmHashMap(mem,0,mem.size,16,sems,0);
+			a.put("shared".getBytes(),"yes".getBytes());
+			check("yes".equals(new String(b.get("shared".getBytes()))),"attach");
+			check(b.buckets() == 16 && b.size() == 1,"attached header");
+		}
+		finally {
+			shm.dispose();
+			sems.dispose();
+		}
+		System.out.println("ShmHashMap ok");
+	}
+}
@@ -0,0 +1,70 @@
+package posix;
+
+import java.util.concurrent.TimeUnit;
+
+public class TestShmMutex {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws Exception {
+		SharedMem shm =
+			new SharedMem(IPC.IPC_PRIVATE,64,IPC.IPC_CREAT|0600);
+		SemSet sems = new SemSet(IPC.IPC_PRIVATE,1,IPC.IPC_CREAT|0600);
+		try {
+			final CPtr mem = shm.attach();
+			final ShmMutex m = new ShmMutex(mem,0,sems,0);
+			check(!m.isLocked() && m.getOwner() == 0,"initially unlocked");
+			check(m.tryLock(),"tryLock");
+			check(m.isLocked() && m.getOwner() == IPC.pid,"owner");
+			check(!m.tryLock(),"tryLock when held");
+			check(!m.tryLock(20,TimeUnit.MILLISECONDS),"timed tryLock when held");
+			m.unlock();
+
+			// threads contend for a counter in the shared memory
+			final int N = 4, LOOPS = 20000;
+			Thread[] t = new Thread[N];
+			for (int i = 0; i < N; i++) {
+				t[i] = new Thread() {
+					public void run() {
+						ShmMutex mine = new ShmMutex(mem,0,sems,0);
+						for (int j = 0; j < LOOPS; j++) {
+							mine.lock();
+							try {
+								mem.setCInt(8,mem.getCInt(8) + 1);
+							}
+							finally {
+								mine.unlock();
+							}
+						}
+					}
+				};
+				t[i].start();
+			}
+			for (Thread x: t)
+				x.join();
+			check(mem.getCInt(8) == N * LOOPS,"count "+mem.getCInt(8));
+			check(!m.isLocked(),"unlocked after contention");
+
+			// a lock held by a dead process is taken over
+			int dead = 0x3ffffe;
+			while (IPC.isPidValid(dead))
+				dead--;
+			check(m.tryLock(),"lock for dead owner");
+			mem.setCInt(4,dead);		// the owner pid follows the state
+			check(new ShmMutex(mem,0,sems,0).lockRecover(),"recover");
+			check(m.getOwner() == IPC.pid,"owner after recover");
+			m.unlock();
+			try {
+				m.newCondition();
+				check(false,"newCondition");
+			}
+			catch (UnsupportedOperationException x) { }
+		}
+		finally {
+			shm.dispose();
+			sems.dispose();
+		}
+		System.out.println("ShmMutex ok");
+	}
+}
@@ -0,0 +1,101 @@
+package posix;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class TestShmQueue {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws Exception {
+		final ShmQueue q =
+			new ShmQueue(IPC.IPC_PRIVATE,8,64,IPC.IPC_CREAT|0600);
+		try {
+			byte[] buf = new byte[64];
+			check(q.isEmpty() && q.poll(buf,0,64) == -1,"empty");
+			int n = 0;
+			while (q.offer(new byte[] { (byte)n },0,1))
+				n++;
+			check(n == q.capacity(),"filled "+n+" of "+q.capacity());
+			for (int i = 0; i < n; i++)
+				check(q.poll(buf,0,64) == 1 && (buf[0] & 0xff) == i,"fifo "+i);
+			check(q.isEmpty(),"drained");
+			try {
+				q.offer(new byte[65],0,65);
+				check(false,"oversized record");
+			}
+			catch (IllegalArgumentException x) { }
+
+			// a producer thread blocks on a full queue
+			final int count = 100000;
+			Thread p = new Thread() {
+				public void run() {
+					byte[] b = new byte[4];
+					try {
+						for (int i = 0; i < count; i++) {
+							b[0] = (byte)i; b[1] = (byte)(i >> 8); b[2] = (byte)(i >> 16);
+							q.put(b,0,1 + i % 3);
+						}
+					}
+					catch (IPCException x) {
+						x.printStackTrace();
+					}
+				}
+			};
+			p.start();
+			for (int i = 0; i < count; i++) {
+				int len = q.take(buf,0,64);
+				check(len == 1 + i % 3,"length "+i);
+				int v = buf[0] & 0xff;
+				if (len > 1) v |= (buf[1] & 0xff) << 8;
+				if (len > 2) v |= (buf[2] & 0xff) << 16;
+				check(v == (i & ((1 << 8 * len) - 1)),"record "+i);
+			}
+			p.join();
+			check(q.isEmpty() && q.recover() == 0,"end");
+
+			// Consumers waiting together each take one record per round.
+			// A wakeup lost while one closes the gate leaves another
+			// asleep with a record in the queue.
+			final int consumers = 4, rounds = 3000;
+			final CyclicBarrier start = new CyclicBarrier(consumers + 1);
+			final Semaphore done = new Semaphore(0);
+			for (int i = 0; i < consumers; i++) {
+				Thread c = new Thread() {
+					public void run() {
+						byte[] b = new byte[64];
+						try {
+							for (;;) {
+								start.await();
+								q.take(b,0,64);
+								done.release();
+							}
+						}
+						catch (Exception x) { }
+					}
+				};
+				c.setDaemon(true);
+				c.start();
+			}
+			for (int r = 0; r < rounds; r++) {
+				start.await();
+				Thread.sleep(r % 3);
+				for (int i = 0; i < consumers; i++) {
+					// space the records so consumers are closing the gate
+					for (long t = System.nanoTime() + (r * 7 + i * 13) % 100 * 1000;
+						System.nanoTime() < t;)
+						Thread.onSpinWait();
+					q.put(buf,0,1);
+				}
+				check(done.tryAcquire(consumers,5,TimeUnit.SECONDS),
+					"consumer not woken in round "+r);
+			}
+		}
+		finally {
+			q.dispose();
+		}
+		System.out.println("ShmQueue ok");
+	}
+}
@@ -0,0 +1,60 @@
+package posix;
+
+public class TestShmRing {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws Exception {
+		final ShmRing q =
+			new ShmRing(IPC.IPC_PRIVATE,256,IPC.IPC_CREAT|0600);
+		try {
+			byte[] buf = new byte[64];
+			check(q.isEmpty() && q.poll(buf,0,64) == -1,"empty");
+			int n = 0;
+			while (q.offer(new byte[] { (byte)n },0,1))
+				n++;
+			check(n > 0 && n <= q.capacity(),"filled "+n);
+			for (int i = 0; i < n; i++)
+				check(q.poll(buf,0,64) == 1 && (buf[0] & 0xff) == i,"fifo "+i);
+			check(q.isEmpty(),"drained");
+			try {
+				q.offer(new byte[q.maxRecord() + 1],0,q.maxRecord() + 1);
+				check(false,"oversized record");
+			}
+			catch (IllegalArgumentException x) { }
+
+			// a producer thread blocks on a full queue
+			final int count = 100000;
+			Thread p = new Thread() {
+				public void run() {
+					byte[] b = new byte[4];
+					try {
+						for (int i = 0; i < count; i++) {
+							b[0] = (byte)i; b[1] = (byte)(i >> 8); b[2] = (byte)(i >> 16);
+							q.put(b,0,1 + i % 3);
+						}
+					}
+					catch (IPCException x) {
+						x.printStackTrace();
+					}
+				}
+			};
+			p.start();
+			for (int i = 0; i < count; i++) {
+				int len = q.take(buf,0,64);
+				check(len == 1 + i % 3,"length "+i);
+				int v = buf[0] & 0xff;
+				if (len > 1) v |= (buf[1] & 0xff) << 8;
+				if (len > 2) v |= (buf[2] & 0xff) << 16;
+				check(v == (i & ((1 << 8 * len) - 1)),"record "+i);
+			}
+			p.join();
+			check(q.isEmpty(),"end");
+		}
+		finally {
+			q.dispose();
+		}
+		System.out.println("ShmRing ok");
+	}
+}
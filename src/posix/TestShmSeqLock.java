@@ -0,0 +1,66 @@
+package posix;
+
+public class TestShmSeqLock {
+	static volatile boolean stop;
+
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws Exception {
+		SharedMem shm =
+			new SharedMem(IPC.IPC_PRIVATE,4096,IPC.IPC_CREAT|0600);
+		try {
+			CPtr mem = shm.attach();
+			final ShmSeqLock w = new ShmSeqLock(mem,0,ShmSeqLock.HEADER + 64);
+			ShmSeqLock r = new ShmSeqLock(mem,0,ShmSeqLock.HEADER + 64);
+			check(w.capacity() == 64,"capacity");
+			check(r.read().length == 0 && r.sequence() == 0,"empty snapshot");
+			w.write("hello".getBytes(),0,5);
+			check("hello".equals(new String(r.read())),"read");
+			check(r.sequence() == 2,"sequence");
+			long s = r.readBegin();
+			check(r.validate(s),"validate");
+			w.write("x".getBytes(),0,1);
+			check(!r.validate(s),"validate after write");
+			try {
+				r.read(new byte[0],0,0);
+				check(false,"short buffer");
+			}
+			catch (IllegalArgumentException x) { }
+			try {
+				w.writeEnd();
+				check(false,"writeEnd without writeBegin");
+			}
+			catch (IllegalStateException x) { }
+
+			// a reader never sees a torn snapshot: every byte is the same
+			Thread t = new Thread() {
+				public void run() {
+					byte[] b = new byte[64];
+					for (int i = 0; !stop; i++) {
+						java.util.Arrays.fill(b,(byte)i);
+						w.write(b,0,1 + (i & 63));
+					}
+				}
+			};
+			t.start();
+			byte[] buf = new byte[64];
+			try {
+				for (int i = 0; i < 200000; i++) {
+					int n = r.read(buf,0,64);
+					for (int j = 1; j < n; j++)
+						check(buf[j] == buf[0],"torn snapshot");
+				}
+			}
+			finally {
+				stop = true;
+				t.join();
+			}
+		}
+		finally {
+			shm.dispose();
+		}
+		System.out.println("ShmSeqLock ok");
+	}
+}
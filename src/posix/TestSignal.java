@@ -0,0 +1,89 @@
+package posix;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TestSignal {
+	static final int SI_USER = 0, SI_QUEUE = -1;
+
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	static SignalEvent next(BlockingQueue<SignalEvent> q,String what)
+		throws InterruptedException {
+		SignalEvent e = q.poll(5,TimeUnit.SECONDS);
+		check(e != null,what);
+		return e;
+	}
+
+	public static void main(String[] args) throws Exception {
+		BlockingQueue<SignalEvent> got = new LinkedBlockingQueue<>();
+		SignalListener l = got::add;
+
+		// real-time signals are queued with their values.  A signal first
+		// delivered to another thread is forwarded, so order is not kept.
+		Signal rt = Signal.forName("SIGRTMIN+1");
+		check(rt == Signal.rt(1) && rt.getNumber() == Signal.getRTMin() + 1,
+			"forName");
+		check("SIGRTMIN+1".equals(rt.toString()),"toString");
+		rt.addSignalListener(l);
+		rt.setAction(Signal.SIG_EVT);
+		try {
+			for (int i = 0; i < 10; i++)
+				rt.sigqueue(IPC.pid,100 + i);
+			boolean[] seen = new boolean[10];
+			for (int i = 0; i < 10; i++) {
+				SignalEvent e = next(got,"sigqueue "+i);
+				int v = e.getValue() - 100;
+				check(e.getSignal() == rt && v >= 0 && v < 10 && !seen[v],
+					"value "+e.getValue());
+				seen[v] = true;
+				check(e.getCode() == SI_QUEUE && e.getPid() == IPC.pid,
+					"sender of sigqueue");
+			}
+
+			// a kill from another process names the sender.  It reads as
+			// SI_USER, or as SI_QUEUE if forwarded from another thread.
+			Process p = new ProcessBuilder("sh","-c",
+				"kill -" + rt.getNumber() + " " + IPC.pid).start();
+			check(p.waitFor() == 0,"kill exit");
+			SignalEvent e = next(got,"external kill");
+			check(e.getSignal() == rt && e.getPid() == (int)p.pid(),
+				"external sender "+e.getPid());
+			check(e.getCode() == SI_USER || e.getCode() == SI_QUEUE,
+				"kill code "+e.getCode());
+
+			// so does a kill from this process
+			rt.kill(IPC.pid);
+			e = next(got,"kill");
+			check(e.getPid() == IPC.pid
+				&& (e.getCode() == SI_USER || e.getCode() == SI_QUEUE),"kill");
+		}
+		finally {
+			rt.setAction(Signal.SIG_DFL);
+			rt.removeSignalListener(l);
+		}
+		check(got.poll(100,TimeUnit.MILLISECONDS) == null,"no extra signals");
+
+		// a predefined signal goes through the signalfd too with that
+		// backend.  Under sigwait, JVM threads that do not block it may
+		// take the default action, so it is not tried.
+		if (Signal.useSignalfd) {
+			Signal.SIGUSR1.addSignalListener(l);
+			Signal.SIGUSR1.setAction(Signal.SIG_EVT);
+			try {
+				Signal.SIGUSR1.kill(IPC.pid);
+				SignalEvent e = next(got,"SIGUSR1");
+				check(e.getSignal() == Signal.SIGUSR1 && e.getPid() == IPC.pid,
+					"SIGUSR1 sender");
+			}
+			finally {
+				Signal.SIGUSR1.setAction(Signal.SIG_DFL);
+				Signal.SIGUSR1.removeSignalListener(l);
+			}
+		}
+		System.out.println("Signal ok");
+	}
+}
@@ -0,0 +1,57 @@
+package posix;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class TestTreeWalker {
+	static void check(boolean ok,String what) {
+		if (!ok) throw new AssertionError(what);
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path root = Files.createTempDirectory("TestTreeWalker");
+		try {
+			Path sub = Files.createDirectories(root.resolve("a/b"));
+			Files.write(root.resolve("f1"),new byte[10]);
+			Files.write(sub.resolve("f2"),new byte[1000]);
+			Files.createLink(sub.resolve("f3"),root.resolve("f1"));
+			Files.createSymbolicLink(root.resolve("ln"),Paths.get("a"));
+			testWalk(root);
+		}
+		finally {
+			try (Stream<Path> s = Files.walk(root)) {
+				s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+		System.out.println("TreeWalker ok");
+	}
+
+	static void testWalk(Path root) throws IOException {
+		Map<String,TreeWalker.Entry> seen = new HashMap<>();
+		String r = root.toString();
+		try (TreeWalker w = new TreeWalker(r)) {
+			w.stream().forEach(e -> seen.put(e.path,e));
+		}
+		check(seen.keySet().equals(new HashSet<>(Arrays.asList(r + "/a",
+			r + "/a/b",r + "/a/b/f2",r + "/a/b/f3",r + "/f1",r + "/ln"))),
+			"paths "+seen.keySet());
+		for (TreeWalker.Entry e: seen.values())
+			check(e.error == null,"error "+e.error);
+		TreeWalker.Entry b = seen.get(r + "/a/b");
+		check(b.isDIR() && b.getName().equals("b"),"directory entry");
+		check(seen.get(r + "/a/b/f2").size == 1000,"size");
+		check(seen.get(r + "/ln").isLNK(),"links are not followed");
+		// one of the two names of the file is reported as a hard link
+		check(seen.get(r + "/f1").hardLink != seen.get(r + "/a/b/f3").hardLink,
+			"hard link");
+		check(seen.get(r + "/f1").ino == seen.get(r + "/a/b/f3").ino,"same file");
+	}
+}
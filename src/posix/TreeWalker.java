@@ -0,0 +1,434 @@
+package posix;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** Walk a directory tree in parallel, reporting the status of every
+  file.  Each directory is read with Linux <code>getdents64</code> and its
+  entries are stat'ed relative to the directory fd with {@link StatBatch},
+  so no path is resolved twice.  Subdirectories are walked as tasks on a
+  {@link ForkJoinPool}.
+  <p>
+  Entries are passed to the caller through a bounded queue, read with
+  {@link #spliterator} or {@link #stream}.  When the caller falls behind,
+  the walk waits, so memory does not grow with the size of the tree:
+  what is held is the queue, the names of directories not yet walked,
+  and one fd for each directory with subdirectories not yet opened.
+  The order of entries is not defined.
+  <p>
+  Symbolic links are reported, but not followed.  A file with more than
+  one link is reported for each of its names, and every report after the
+  first of a given (dev, ino) has {@link Entry#hardLink} set, so sizes can
+  be totalled without counting a file twice.  The (dev, ino) of such
+  files are remembered for the whole walk.
+  <p>
+  A file that cannot be stat'ed, or a directory that cannot be opened or
+  read, is reported as an Entry with its {@link Entry#error} set.  A
+  directory is reported before its contents.  The root itself is not
+  reported.
+ */
+public class TreeWalker implements AutoCloseable {
+  /** Bytes of directory entries read per getdents64 call. */
+  private static final int BUFSIZE = 32768;
+  /** The smallest linux_dirent64 record, with a 1 byte name. */
+  private static final int MIN_RECLEN = 24;
+  /** Offsets in struct linux_dirent64 (Linux). */
+  private static final int D_RECLEN = 16, D_NAME = 19;
+
+  /** The status of one file.  The fields are those of {@link StatBatch},
+    and are 0 if {@link #error} is set. */
+  public static final class Entry {
+    /** The path, starting with the root passed to the TreeWalker. */
+    public final String path;
+    /** Why the file could not be stat'ed, or its directory read, or
+      null.  The message starts with the path. */
+    public final IOException error;
+    /** True if an earlier Entry of this walk had the same dev and ino. */
+    public final boolean hardLink;
+    /** ID of device containing a directory entry for this file. */
+    public final long dev;
+    /** File serial number. */
+    public final long ino;
+    /** File mode. */
+    public final int mode;
+    /** Number of links. */
+    public final int nlink;
+    /** User ID of the file's owner */
+    public final int uid;
+    /** Group ID of the file's group */
+    public final int gid;
+    /** File size in bytes. */
+    public final long size;
+    /** Actual number of 512 byte blocks allocated. */
+    public final long blocks;
+    /** Time of last access */
+    public final long atime;
+    /** Time of last data modification */
+    public final long mtime;
+    /** Time of last file status change */
+    public final long ctime;
+
+    private Entry(String path,StatBatch sb,int i,boolean hardLink) {
+      this.path = path;
+      this.error = null;
+      this.hardLink = hardLink;
+      dev = sb.dev[i];
+      ino = sb.ino[i];
+      mode = sb.mode[i];
+      nlink = sb.nlink[i];
+      uid = sb.uid[i];
+      gid = sb.gid[i];
+      size = sb.size[i];
+      blocks = sb.blocks[i];
+      atime = sb.atime[i];
+      mtime = sb.mtime[i];
+      ctime = sb.ctime[i];
+    }
+
+    private Entry(String path,IOException error) {
+      this.path = path;
+      this.error = error;
+      hardLink = false;
+      dev = ino = size = blocks = atime = mtime = ctime = 0L;
+      mode = nlink = uid = gid = 0;
+    }
+
+    /** Return the last component of the path. */
+    public String getName() {
+      return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /** True if this is a directory. */
+    public boolean isDIR() {
+      return (mode & StatBatch.S_IFMT) == StatBatch.S_IFDIR;
+    }
+    /** True if this is a regular file. */
+    public boolean isREG() {
+      return (mode & StatBatch.S_IFMT) == StatBatch.S_IFREG;
+    }
+    /** True if this is a symbolic link. */
+    public boolean isLNK() {
+      return (mode & StatBatch.S_IFMT) == StatBatch.S_IFLNK;
+    }
+
+    public String toString() {
+      return error != null ? error.getMessage() : path;
+    }
+  }
+
+  /** The key of a file with more than one link. */
+  private static final class Inode {
+    final long dev, ino;
+    Inode(long dev,long ino) {
+      this.dev = dev;
+      this.ino = ino;
+    }
+    public boolean equals(Object o) {
+      if (!(o instanceof Inode)) return false;
+      Inode n = (Inode)o;
+      return n.dev == dev && n.ino == ino;
+    }
+    public int hashCode() {
+      return Long.hashCode(ino * 31 + dev);
+    }
+  }
+
+  /** An open directory, closed when it has been read and all its
+    subdirectories have been opened. */
+  private static final class Node {
+    final Dir dir;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    Node(Dir dir) { this.dir = dir; }
+    void ref() { refs.incrementAndGet(); }
+    void unref() {
+      if (refs.decrementAndGet() == 0)
+	dir.close();
+    }
+  }
+
+  /** Buffers for reading one directory.  A task never waits for
+    another, so there are at most as many sets as worker threads. */
+  private static final class Buffers {
+    final Malloc dents = new Malloc(BUFSIZE);
+    final byte[] names = new byte[BUFSIZE + 1];	// last byte stays 0
+    final ByteBuffer bb = ByteBuffer.wrap(names).order(ByteOrder.nativeOrder());
+    final int[] offs = new int[BUFSIZE / MIN_RECLEN + 1];
+    final StatBatch sb = new StatBatch(offs.length);
+  }
+
+  /** Marks the end of the walk in the queue. */
+  private static final Entry END = new Entry("",(IOException)null);
+
+  private final String root;
+  private final ForkJoinPool pool;
+  private final BlockingQueue<Entry> queue;
+  private final Set<Inode> links = ConcurrentHashMap.newKeySet();
+  private final ConcurrentLinkedQueue<Buffers> spare =
+    new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private volatile boolean cancelled;
+  private volatile Throwable failure;
+  private Dir top;	// until the walk starts
+  private boolean started, done;
+
+  /** Prepare to walk a tree.
+    @param root	the directory to walk
+    @param pool	runs the walk
+    @param capacity	the most entries to queue for the caller
+    @throws IOException if root cannot be opened
+   */
+  public TreeWalker(String root,ForkJoinPool pool,int capacity)
+    throws IOException {
+    if (capacity < 1)
+      throw new IllegalArgumentException("TreeWalker: bad capacity "+capacity);
+    while (root.length() > 1 && root.endsWith("/"))
+      root = root.substring(0,root.length() - 1);
+    this.root = root;
+    this.pool = pool;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.top = new Dir(root);
+  }
+
+  /** Prepare to walk a tree on the common pool, queueing up to 4096
+    entries. */
+  public TreeWalker(String root) throws IOException {
+    this(root,ForkJoinPool.commonPool(),4096);
+  }
+
+  /** Start the walk, once. */
+  private synchronized void start() {
+    if (started) return;
+    started = true;
+    Dir d = top;
+    top = null;
+    if (d == null) {		// closed before starting
+      queue.offer(END);
+      return;
+    }
+    pending.incrementAndGet();
+    pool.execute(new Task(new Node(d),root));
+  }
+
+  /** Return the entries of the walk, which starts on the first call to
+    tryAdvance.  The spliterator does not split: parallelism is in the
+    walk itself.  An entry can only be taken once, so a TreeWalker walks
+    the tree once.
+   */
+  public Spliterator<Entry> spliterator() {
+    return new Spliterator<Entry>() {
+      public boolean tryAdvance(Consumer<? super Entry> action) {
+	Entry e = next();
+	if (e == null) return false;
+	action.accept(e);
+	return true;
+      }
+      public Spliterator<Entry> trySplit() { return null; }
+      public long estimateSize() { return Long.MAX_VALUE; }
+      public int characteristics() {
+	return Spliterator.NONNULL | Spliterator.DISTINCT;
+      }
+    };
+  }
+
+  /** Return a sequential stream of the entries.  Closing the stream
+    closes the TreeWalker. */
+  public Stream<Entry> stream() {
+    return StreamSupport.stream(spliterator(),false).onClose(this::close);
+  }
+
+  /** Wait for the next entry.
+    @return the entry, or null at the end of the walk
+   */
+  private Entry next() {
+    start();
+    if (done) return null;
+    Entry e;
+    try {
+      e = queue.take();
+    }
+    catch (InterruptedException x) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new IllegalStateException("TreeWalker interrupted",x);
+    }
+    if (e != END) return e;
+    done = true;
+    Throwable t = failure;
+    if (t instanceof RuntimeException) throw (RuntimeException)t;
+    if (t instanceof Error) throw (Error)t;
+    return null;
+  }
+
+  /** Stop the walk.  Tasks already running finish their current
+    directory without reporting it, and directory fds are closed. */
+  public void close() {
+    cancelled = true;
+    Dir d;
+    synchronized (this) {
+      d = top;
+      top = null;
+    }
+    if (d != null) d.close();
+    queue.clear();		// release any task waiting to report
+  }
+
+  /** Queue an entry for the caller, waiting while the queue is full.
+    @return false if the walk was cancelled
+   */
+  private boolean report(Entry e) {
+    if (cancelled) return false;
+    if (queue.offer(e)) return true;
+    ForkJoinPool.ManagedBlocker b = new ForkJoinPool.ManagedBlocker() {
+      private boolean queued;
+      public boolean block() throws InterruptedException {
+	while (!queued && !cancelled)
+	  queued = queue.offer(e,100,TimeUnit.MILLISECONDS);
+	return true;
+      }
+      public boolean isReleasable() {
+	return queued || cancelled || (queued = queue.offer(e));
+      }
+    };
+    try {
+      ForkJoinPool.managedBlock(b);
+    }
+    catch (InterruptedException x) {
+      cancelled = true;
+    }
+    return !cancelled;
+  }
+
+  /** Walk one directory.  Tasks are forked and never joined, and the
+    last to finish ends the walk. */
+  private final class Task extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Node parent;	// null if dir is already open
+    private final byte[] name;	// NUL terminated
+    private final String path;
+    private Node node;
+
+    Task(Node node,String path) {
+      this.parent = null;
+      this.name = null;
+      this.path = path;
+      this.node = node;
+    }
+
+    Task(Node parent,byte[] name,String path) {
+      this.parent = parent;
+      this.name = name;
+      this.path = path;
+    }
+
+    protected void compute() {
+      try {
+	if (parent != null) {
+	  try {
+	    if (!cancelled)
+	      node = new Node(new Dir(parent.dir,name,path));
+	  }
+	  catch (IOException x) {
+	    report(new Entry(path,x));
+	  }
+	  finally {
+	    parent.unref();
+	  }
+	}
+	if (node != null)
+	  list();
+      }
+      catch (RuntimeException | Error x) {
+	if (failure == null) failure = x;
+	cancelled = true;
+      }
+      finally {
+	if (node != null) node.unref();
+	if (pending.decrementAndGet() == 0)
+	  end();
+      }
+    }
+
+    /** Report the entries of the directory, and fork a task for each
+      subdirectory. */
+    private void list() {
+      Buffers b = spare.poll();
+      if (b == null) b = new Buffers();
+      ArrayList<byte[]> subdirs = new ArrayList<>();
+      ArrayList<String> subpaths = new ArrayList<>();
+      String prefix = path.endsWith("/") ? path : path + "/";
+      try {
+	for (int n; !cancelled && (n = node.dir.getdents(b.dents)) > 0; ) {
+	  b.dents.copyOut(0,b.names,0,n);
+	  int cnt = 0;
+	  for (int pos = 0; pos < n; pos += b.bb.getShort(pos + D_RECLEN) & 0xffff) {
+	    int o = pos + D_NAME;
+	    if (b.names[o] == '.' && (b.names[o + 1] == 0
+		|| b.names[o + 1] == '.' && b.names[o + 2] == 0))
+	      continue;
+	    b.offs[cnt++] = o;
+	  }
+	  StatBatch sb = b.sb;
+	  sb.stat(node.dir,b.names,b.offs,cnt,false);
+	  for (int i = 0; i < cnt; ++i) {
+	    String p = prefix + Dir.fromC(b.names,b.offs[i]);
+	    Entry e;
+	    if (sb.errno[i] != 0)
+	      e = new Entry(p,new IOException(p+": "+Errno.getErrdesc(sb.errno[i])));
+	    else {
+	      boolean dup = sb.nlink[i] > 1 && !sb.isDIR(i)
+		  && !links.add(new Inode(sb.dev[i],sb.ino[i]));
+	      e = new Entry(p,sb,i,dup);
+	      if (sb.isDIR(i)) {
+		// keep the bytes, the name may not survive decoding
+		int o = b.offs[i], end = o;
+		while (b.names[end] != 0) ++end;
+		subdirs.add(Arrays.copyOfRange(b.names,o,end + 1));
+		subpaths.add(p);
+	      }
+	    }
+	    if (!report(e)) break;
+	  }
+	}
+      }
+      catch (IOException x) {
+	report(new Entry(path,new IOException(path+": "+x.getMessage(),x)));
+      }
+      finally {
+	spare.offer(b);
+      }
+      for (int i = 0; i < subdirs.size(); ++i) {
+	if (cancelled) return;
+	node.ref();
+	pending.incrementAndGet();
+	new Task(node,subdirs.get(i),subpaths.get(i)).fork();
+      }
+    }
+  }
+
+  /** Free the buffers and queue END for the caller. */
+  private void end() {
+    for (Buffers b; (b = spare.poll()) != null; )
+      b.dents.free();
+    if (report(END)) return;
+    // cancelled or failed: entries are no longer wanted, but the caller
+    // may still be waiting
+    while (!queue.offer(END))
+      queue.poll();
+  }
+}
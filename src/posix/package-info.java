@@ -32,6 +32,9 @@ jnios package requires jython.
 
 There is fairly complete support for IPC.  The {@link posix.MsgQ} class wraps
 message queues, and {@link posix.SemSet} wraps semaphores.
+{@link posix.SemLock} and {@link posix.SemCountingSemaphore} use a semaphore
+as a Lock or Semaphore shared between processes.  {@link posix.ShmMutex}
+is a lock in shared memory that makes no system call unless contended.
 <p>
 The {@link posix.SharedMem} class wraps an ipc shared memory segment.
 Attaching a SharedMem returns a {@link posix.CPtr} which allows safe 
@@ -39,6 +42,21 @@ and portable access to C format structures in the shared memory.  (You
 can only trash stuff in the share memory, not anywhere else.)  Similarly,
 {@link posix.Malloc} safely allocates and accesses blocks of C memory
 which can be passed to C apis and are not garbage collected.
+{@link posix.PosixShm} maps a posix shared memory object, which may be
+larger than 2G and can grow.
+{@link posix.MallocArena} pools such blocks by size for buffers that are
+allocated and freed at a high rate.
+<p>
+{@link posix.ShmRing} passes variable length records between two processes
+through a SharedMem segment without system calls on the fast path.
+{@link posix.ShmQueue} does the same for any number of producer and
+consumer processes, and recovers slots held by processes that crash.
+{@link posix.ShmHashMap} is a hash table in shared memory which one process
+loads and many processes read without locking.
+{@link posix.ShmSeqLock} publishes snapshots to any number of reader processes,
+which never write shared memory and retry a read torn by a write.
+{@link posix.ShmAllocator} manages a segment as size classed slabs, so that
+processes can allocate and free records in it concurrently.
 
 <h3> The Passwd class </h3>
 
@@ -50,7 +68,10 @@ The {@link posix.Passwd} class provides read only access to files in the unix
 The {@link posix.Stat} class provides the most common fields from
 <code>stat.h</code> and a <code>stat()</code> method to fill them in.  The 
 {@link posix.File} class extends java.io.File to provide
-additional attributes such as lastAccessed().
+additional attributes such as lastAccessed().  {@link posix.StatBatch}
+stats many names relative to an open {@link posix.Dir} with one JNI call,
+storing the fields in parallel arrays.  {@link posix.TreeWalker} walks a
+directory tree with them on a ForkJoinPool, streaming an entry per file.
 
 <h3> The Posix Signal API for Java </h3>
 
@@ -67,6 +88,9 @@ through JNI to wait on a semaphore.  The JNI code actually spawns another
 non-Java thread to call sigwait, because that thread must be cancelled
 in order to change the set of signals handled by Java.
 The Java Signal Thread generates a {@link posix.SignalEvent} for each signal.
+With the system property <code>posix.signal.backend=signalfd</code>, the
+Java Signal Thread instead reads signals in batches from a Linux signalfd,
+and the events identify the sending process.
 <p>
 This implementation should be portable to any pthreads platform.
 It uses mutexes and condition variables - which the JVM would also have